@@ -57,4 +57,15 @@ object Config {
     fun setAutoStopRecord(b: Boolean) {
         preference.putBoolean("auto_stop_record", b)
     }
+
+    /**
+     * VPN 流量统计使用的代理引擎名称（见 ProxyEngines），为空时按 CPU 核数自动选择
+     */
+    fun getProxyEngine(): String {
+        return preference.getString("proxy_engine", "")!!
+    }
+
+    fun setProxyEngine(name: String) {
+        preference.putString("proxy_engine", name)
+    }
 }
\ No newline at end of file
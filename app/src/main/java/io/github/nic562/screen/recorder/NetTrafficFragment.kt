@@ -25,7 +25,10 @@ import com.google.android.material.snackbar.Snackbar
 import io.github.nic562.screen.recorder.base.BaseFragment
 import io.github.nic562.screen.recorder.base.SomethingWithNotification
 import io.github.nic562.screen.recorder.databinding.FragmentNetTrafficBinding
+import io.github.nic562.screen.recorder.tools.traffic.TrafficLogReader
+import io.github.nic562.screen.recorder.tools.traffic.TrafficRingLogReader
 import java.io.File
+import java.io.IOException
 
 class NetTrafficFragment : BaseFragment(), View.OnClickListener,
     SomethingWithNetTrafficStatistics,
@@ -35,8 +38,13 @@ class NetTrafficFragment : BaseFragment(), View.OnClickListener,
     private val reqCodeNotificationSetting = 101
     private val reqCodeFilePermissionSetting = 102
     private val logFilePath: String by lazy {
-        File(requireActivity().getExternalFilesDir("tmp")!!.absolutePath, "net-traffic.log").absolutePath
+        File(requireActivity().getExternalFilesDir("tmp")!!.absolutePath, "net-traffic.dat").absolutePath
     }
+    private val ringLogFilePath: String by lazy {
+        File(requireActivity().getExternalFilesDir("tmp")!!.absolutePath, "net-traffic.ring").absolutePath
+    }
+    // 读取日志时附带的高频采样条数，默认间隔下为最近一分钟
+    private val ringLogSamples = 60 * 1000 / NetTrafficStatisticsServiceHelper.RING_LOG_DEFAULT_INTERVAL_MS
 
     override val notificationChannel: String = "test" // 本Fragment暂时不发送通知，因此暂时无用
     override val notificationManager: NotificationManagerCompat by lazy {
@@ -208,7 +216,12 @@ class NetTrafficFragment : BaseFragment(), View.OnClickListener,
             binding.btnReadLog.id -> {
                 val logFile = File(logFilePath)
                 if (logFile.exists()) {
-                    val rs = logFile.readText()
+                    // 二进制日志导出为 TSV 文本显示
+                    val rs = try {
+                        StringBuilder().also { TrafficLogReader.exportTsv(logFile, it) }.toString()
+                    } catch (e: IOException) {
+                        ""
+                    }.let { it + readRingLog() }
                     if (rs.isEmpty()) {
                         Snackbar.make(binding.root, R.string.file_not_exists, Snackbar.LENGTH_LONG)
                             .show()
@@ -227,6 +240,23 @@ class NetTrafficFragment : BaseFragment(), View.OnClickListener,
         }
     }
 
+    /**
+     * 服务可能仍在写入，按序号读取已写完的部分
+     */
+    private fun readRingLog(): String {
+        val ringLogFile = File(ringLogFilePath)
+        if (!ringLogFile.exists()) {
+            return ""
+        }
+        return try {
+            TrafficRingLogReader(ringLogFile).use {
+                StringBuilder("\n").also { sb -> it.exportTsv(sb, ringLogSamples) }.toString()
+            }
+        } catch (e: IOException) {
+            ""
+        }
+    }
+
     private fun checkingFilePermission() {
         binding.btnPermission.visibility =
             if (Build.VERSION.SDK_INT > Build.VERSION_CODES.Q && !Environment.isExternalStorageManager()) View.VISIBLE else View.GONE
@@ -246,6 +276,7 @@ class NetTrafficFragment : BaseFragment(), View.OnClickListener,
             val bu = Bundle()
             bu.putString("save2File", logFilePath)
             bu.putBoolean("logDateTime", true)
+            bu.putString("ringLogFile", ringLogFilePath)
             startStatisticsService(chooseAppPkgList.toList(), bu)
         }
     }
@@ -9,6 +9,7 @@ import android.os.Bundle
 import android.os.IBinder
 import android.util.Log
 import io.github.nic562.screen.recorder.base.BaseForegroundService
+import io.github.nic562.screen.recorder.tools.traffic.TrafficRingLog
 
 /**
  * 基于[TrafficStats] 的网络请求统计服务，仅可以统计全局流量
@@ -43,6 +44,7 @@ class NetTrafficStatisticsService : BaseForegroundService(), NetTrafficStatistic
 
     override var saveFile: NetTrafficStatisticsServiceHelper.NetTrafficStatisticsLogHandler? = null
     override var logDateTime: Boolean = false
+    override var ringLogThread: Thread? = null
 
     override fun onNetTrafficReceiveActionToStop() {
         stopSelf()
@@ -83,8 +85,12 @@ class NetTrafficStatisticsService : BaseForegroundService(), NetTrafficStatistic
         super.onDestroy()
     }
 
-    override fun sendNetTrafficBroadcastWorking(downByteSize: Long, upByteSize: Long) {
-        sendNetTrafficBroadcastWorking("normal", downByteSize, upByteSize)
+    override fun sendNetTrafficBroadcastWorking(
+        downByteSize: Long,
+        upByteSize: Long,
+        topDestinations: List<Pair<String, Long>>
+    ) {
+        sendNetTrafficBroadcastWorking("normal", downByteSize, upByteSize, topDestinations)
     }
 
 
@@ -98,6 +104,11 @@ class NetTrafficStatisticsService : BaseForegroundService(), NetTrafficStatistic
             }).apply {
                 start()
             }
+            startTrafficRingLog(intent, object : TrafficRingLog.Source {
+                override fun downBytes(): Long = TrafficStats.getTotalRxBytes()
+
+                override fun upBytes(): Long = TrafficStats.getTotalTxBytes()
+            })
         }
     }
 
@@ -7,11 +7,13 @@ import android.content.IntentFilter
 import android.os.Bundle
 import android.util.Log
 import io.github.nic562.screen.recorder.base.SomethingWithNotification
+import io.github.nic562.screen.recorder.tools.traffic.TrafficLogReader
+import io.github.nic562.screen.recorder.tools.traffic.TrafficLogWriter
+import io.github.nic562.screen.recorder.tools.traffic.TrafficRingLog
+import io.github.nic562.screen.recorder.tools.traffic.TrafficRingLogReader
 import java.io.Closeable
 import java.io.File
-import java.io.FileWriter
 import java.lang.Exception
-import java.time.LocalDateTime
 
 interface NetTrafficStatisticsServiceHelper : SomethingWithNotification {
 
@@ -19,6 +21,11 @@ interface NetTrafficStatisticsServiceHelper : SomethingWithNotification {
         const val RECEIVE_BROADCAST_ACTION_NAME_ID =
             R.string.broadcast_receiver_action_net_traffic_statistics_receive
 
+        // 环形日志的采样间隔和保留时长
+        const val RING_LOG_DEFAULT_INTERVAL_MS = 100
+        const val RING_LOG_MIN_INTERVAL_MS = 10
+        const val RING_LOG_SECONDS = 600
+
         fun sendBroadcastToStop(ctx: Context) {
             ctx.sendBroadcast(
                 Intent(ctx.getString(RECEIVE_BROADCAST_ACTION_NAME_ID)).putExtra(
@@ -51,14 +58,20 @@ interface NetTrafficStatisticsServiceHelper : SomethingWithNotification {
     var saveFile: NetTrafficStatisticsLogHandler?
     var logDateTime: Boolean
 
+    /**
+     * 高频采样写入环形日志的线程，由 [startTrafficRingLog] 赋值
+     * 初始化时置空null 即可
+     */
+    var ringLogThread: Thread?
+
     fun onNetTrafficReceiveActionToStop()
 
     fun onNetTrafficReceiveActionToStart(intent: Intent)
 
     /**
-     * @see [sendNetTrafficBroadcastWorking(network, downByteSize, upByteSize)]
+     * @see [sendNetTrafficBroadcastWorking(network, downByteSize, upByteSize, topDestinations)]
      */
-    fun sendNetTrafficBroadcastWorking(downByteSize: Long, upByteSize: Long)
+    fun sendNetTrafficBroadcastWorking(downByteSize: Long, upByteSize: Long, topDestinations: List<Pair<String, Long>>)
 
     private fun registerReceiveNetTrafficBroadcastReceiver() {
         IntentFilter().apply {
@@ -118,26 +131,49 @@ interface NetTrafficStatisticsServiceHelper : SomethingWithNotification {
         })
     }
 
-    fun sendNetTrafficBroadcastWorking(network: String, downByteSize: Long, upByteSize: Long) {
+    /**
+     * @param topDestinations 累计流量最大的目的地址及其字节数，从大到小，放在 topDestinations 和 topDestinationByteSizes 中
+     */
+    fun sendNetTrafficBroadcastWorking(
+        network: String,
+        downByteSize: Long,
+        upByteSize: Long,
+        topDestinations: List<Pair<String, Long>> = emptyList()
+    ) {
         sendNetTrafficBroadcast("working", Bundle().apply {
             putString("network", network)
             putLong("downByteSize", downByteSize)
             putLong("upByteSize", upByteSize)
+            if (topDestinations.isNotEmpty()) {
+                putStringArrayList("topDestinations", ArrayList(topDestinations.map { it.first }))
+                putLongArray("topDestinationByteSizes", topDestinations.map { it.second }.toLongArray())
+            }
         })
     }
 
-    fun onNetTrafficStatistics(idx: Int, downByteSize: Long, upByteSize: Long) {
+    /**
+     * @param topDestinations 仅 VPN 模式下有，累计流量最大的目的地址及其字节数
+     * @param apps 仅 VPN 模式下有，本间隔各应用的 包名, 下行字节数, 上行字节数
+     */
+    fun onNetTrafficStatistics(
+        idx: Int,
+        downByteSize: Long,
+        upByteSize: Long,
+        topDestinations: List<Pair<String, Long>> = emptyList(),
+        apps: List<Triple<String, Long, Long>> = emptyList()
+    ) {
         val msg = "${
             getContext().getString(R.string.download_speed, downByteSize / 1024.0)
         } - ${getContext().getString(R.string.upload_speed, upByteSize / 1024.0)}"
         notify(msg)
-        sendNetTrafficBroadcastWorking(downByteSize, upByteSize)
-        if (logDateTime) {
-            val current = LocalDateTime.now()
-            saveFile?.write("$current\t$downByteSize\t$upByteSize")
-        } else {
-            saveFile?.write("$idx\t$downByteSize\t$upByteSize")
-        }
+        sendNetTrafficBroadcastWorking(downByteSize, upByteSize, topDestinations)
+        saveFile?.write(
+            if (logDateTime) System.currentTimeMillis() else idx.toLong(),
+            downByteSize,
+            upByteSize,
+            apps,
+            topDestinations
+        )
     }
 
     fun onNetTrafficStatisticsCreate() {
@@ -148,6 +184,9 @@ interface NetTrafficStatisticsServiceHelper : SomethingWithNotification {
     fun onNetTrafficStatisticsDestroy() {
         unregisterReceiveNetTrafficBroadcastReceiver()
         saveFile?.close()
+        // 线程结束时关闭环形日志
+        ringLogThread?.interrupt()
+        ringLogThread = null
         sendNetTrafficBroadcastDestroy()
     }
 
@@ -163,7 +202,7 @@ interface NetTrafficStatisticsServiceHelper : SomethingWithNotification {
                         }
                     }
                     try {
-                        saveFile = NetTrafficStatisticsLogHandler(path, onError)
+                        saveFile = NetTrafficStatisticsLogHandler(path, logDateTime, onError)
                         Log.w(javaClass.simpleName, "Willing to save log to [$path]")
                     } catch (e: Exception) {
                         Log.w(javaClass.simpleName, "create NetTrafficStatisticsLogHandler($path) error:", e)
@@ -181,32 +220,67 @@ interface NetTrafficStatisticsServiceHelper : SomethingWithNotification {
         return false
     }
 
-    class NetTrafficStatisticsLogHandler(val path: String, val onError: OnError) : Closeable {
+    /**
+     * 启动参数中有 ringLogFile 时，每隔 ringLogIntervalMs（默认 [RING_LOG_DEFAULT_INTERVAL_MS]）毫秒
+     * 把这段时间的流量写入内存映射的环形文件，保留最近 [RING_LOG_SECONDS] 秒；
+     * 不经过广播和每秒的统计，可以用 [TrafficRingLogReader] 在采样的同时读取
+     * @param source 累计的下行、上行字节数
+     */
+    fun startTrafficRingLog(intent: Intent, source: TrafficRingLog.Source) {
+        val path = intent.getStringExtra("ringLogFile")
+        if (path == null || path.isBlank()) {
+            return
+        }
+        val intervalMs = intent.getIntExtra("ringLogIntervalMs", RING_LOG_DEFAULT_INTERVAL_MS)
+            .coerceIn(RING_LOG_MIN_INTERVAL_MS, 1000)
+        try {
+            val log = TrafficRingLog(File(path), RING_LOG_SECONDS * 1000 / intervalMs, intervalMs)
+            ringLogThread?.interrupt()
+            ringLogThread = Thread(log.sampler(source), "TrafficRingLogThread").apply {
+                start()
+            }
+            Log.w(javaClass.simpleName, "Willing to sample every $intervalMs ms to [$path]")
+        } catch (e: Exception) {
+            Log.w(javaClass.simpleName, "create TrafficRingLog($path) error:", e)
+            sendNetTrafficBroadcastError(e.toString())
+        }
+    }
+
+    /**
+     * 以 [TrafficLogWriter] 的二进制格式追加写入，可用 [TrafficLogReader] 读取或导出为 TSV
+     * @param logDateTime 时间记为 epoch 毫秒，否则记为采样序号
+     */
+    class NetTrafficStatisticsLogHandler(
+        val path: String,
+        logDateTime: Boolean,
+        val onError: OnError
+    ) : Closeable {
         interface OnError {
             fun error(e: String)
         }
 
         private val tag = javaClass.simpleName
-        private val file = File(path)
-        private val fs: FileWriter by lazy {
-            FileWriter(file, true)
-        }
+        private val writer = TrafficLogWriter(
+            File(path),
+            if (logDateTime) TrafficLogWriter.FLAG_DATE_TIME else 0
+        )
 
-        init {
-            if (!file.exists()) {
-                val dirPath = File(file.parent!!)
-                if (!dirPath.exists()) {
-                    dirPath.mkdirs()
-                }
-                file.createNewFile()
-            }
-        }
-
-        fun write(m: String) {
+        fun write(
+            time: Long,
+            downByteSize: Long,
+            upByteSize: Long,
+            apps: List<Triple<String, Long, Long>>,
+            destinations: List<Pair<String, Long>>
+        ) {
             try {
-                fs.write(m)
-                fs.write("\n")
-                fs.flush()
+                writer.beginSample(time, downByteSize, upByteSize)
+                for (app in apps) {
+                    writer.app(app.first, app.second, app.third)
+                }
+                for (destination in destinations) {
+                    writer.destination(destination.first, destination.second)
+                }
+                writer.endSample()
             } catch (e: Exception) {
                 Log.e(tag, "file write error:", e)
             }
@@ -214,8 +288,7 @@ interface NetTrafficStatisticsServiceHelper : SomethingWithNotification {
 
         override fun close() {
             try {
-                fs.flush()
-                fs.close()
+                writer.close()
             } catch (e: Exception) {
                 Log.e(tag, "file close error:", e)
             }
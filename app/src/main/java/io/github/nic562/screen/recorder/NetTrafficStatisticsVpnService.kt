@@ -3,25 +3,41 @@ package io.github.nic562.screen.recorder
 import android.content.BroadcastReceiver
 import android.content.Context
 import android.content.Intent
+import android.content.pm.PackageManager
+import android.net.ConnectivityManager
 import android.net.VpnService
+import android.os.Build
+import android.os.Bundle
 import android.os.Handler
 import android.os.IBinder
 import android.os.ParcelFileDescriptor
 import android.util.Log
+import android.util.SparseArray
+import androidx.annotation.RequiresApi
 import androidx.core.app.NotificationCompat
 import androidx.core.app.NotificationManagerCompat
-import io.github.nic562.screen.recorder.tools.bio.BioUdpHandler
-import io.github.nic562.screen.recorder.tools.bio.NioSingleThreadTcpHandler
+import io.github.nic562.screen.recorder.tools.bio.ProxyEngines
+import io.github.nic562.screen.recorder.tools.bio.TcpHandler
+import io.github.nic562.screen.recorder.tools.bio.UdpHandler
+import io.github.nic562.screen.recorder.tools.protocol.ByteBufferPool
+import io.github.nic562.screen.recorder.tools.protocol.FlowKey
 import io.github.nic562.screen.recorder.tools.protocol.Packet
+import io.github.nic562.screen.recorder.tools.protocol.PacketView
+import io.github.nic562.screen.recorder.tools.traffic.FlowStats
+import io.github.nic562.screen.recorder.tools.traffic.HostnameCache
+import io.github.nic562.screen.recorder.tools.traffic.TrafficAccounting
 import java.io.Closeable
 import java.io.FileInputStream
 import java.io.FileOutputStream
+import java.net.InetAddress
+import java.net.InetSocketAddress
 import java.nio.ByteBuffer
 import java.nio.channels.ClosedByInterruptException
 import java.nio.channels.FileChannel
 import java.util.concurrent.ArrayBlockingQueue
 import java.util.concurrent.BlockingQueue
 import java.util.concurrent.Executors
+import java.util.concurrent.Future
 
 /**
  * 基于VPN网关转发的网络流量统计服务，可统计指定应用
@@ -35,6 +51,9 @@ class NetTrafficStatisticsVpnService : VpnService(), NetTrafficStatisticsService
         fun getActivityIntentForPrepareVpn(ctx: Context): Intent? {
             return prepare(ctx)
         }
+
+        // tun 的地址，即设备一侧所有连接的本地地址
+        private const val VPN_ADDRESS = "10.0.1.2"
     }
 
     private val tag: String by lazy {
@@ -53,29 +72,39 @@ class NetTrafficStatisticsVpnService : VpnService(), NetTrafficStatisticsService
         Executors.newFixedThreadPool(10)
     }
 
-    private val deviceToNetworkUDPQueue: BlockingQueue<Packet> by lazy {
+    private val networkToDeviceQueue: BlockingQueue<ByteBuffer> by lazy {
         ArrayBlockingQueue(1000)
     }
 
-    private val deviceToNetworkTCPQueue: BlockingQueue<Packet> by lazy {
-        ArrayBlockingQueue(1000)
+    // 收发包共用的直接内存缓冲池，包写入tun后归还
+    private val bufferPool: ByteBufferPool by lazy {
+        ByteBufferPool()
     }
 
-    private val networkToDeviceQueue: BlockingQueue<ByteBuffer> by lazy {
-        ArrayBlockingQueue(1000)
-    }
+    // 本次会话的 TCP、UDP 处理器，由启动时选定的引擎创建，停止时中断
+    private var handlerFutures: List<Future<*>> = emptyList()
 
     private var tunnelThread: TunnelThread? = null
+    // 本次会话的流量统计，收发线程记录，主线程每秒取一次快照
+    private var accounting: TrafficAccounting? = null
+    // UID 对应的包名
+    private val appNames = SparseArray<String>()
     private val handler by lazy {
         Handler(mainLooper)
     }
     private val updateNotificationRunnable = object : Runnable {
         private var idx = 0
         override fun run() {
-            tunnelThread?.apply {
-                val downByteSize = this.getAndResetDownloadSize()
-                val upByteSize = this.getAndResetUploadSize()
-                onNetTrafficStatistics(idx++, downByteSize, upByteSize)
+            accounting?.apply {
+                val snapshot = this.snapshot()
+                val apps = snapshot.apps.map { Triple(getAppName(it.uid), it.downBytes, it.upBytes) }
+                onNetTrafficStatistics(
+                    idx++,
+                    snapshot.total.downBytes,
+                    snapshot.total.upBytes,
+                    snapshot.destinations.map { it.toString() to it.bytes },
+                    apps)
+                sendAppTrafficBroadcast(apps)
                 updateNotification()
             }
         }
@@ -92,26 +121,38 @@ class NetTrafficStatisticsVpnService : VpnService(), NetTrafficStatisticsService
 
     override var saveFile: NetTrafficStatisticsServiceHelper.NetTrafficStatisticsLogHandler? = null
     override var logDateTime: Boolean = false
+    override var ringLogThread: Thread? = null
 
     override fun onNetTrafficReceiveActionToStart(intent: Intent) {
         if (tunnelThread == null || tunnelThread?.isAlive == false) {
+            // 启动参数优先，其次是配置，都没有时按 CPU 核数选择
+            val engine = ProxyEngines.byName(intent.getStringExtra("engine") ?: Config.getProxyEngine())
+            Log.w(tag, "Proxy engine: $engine")
             val apps = intent.getStringArrayListExtra("apps")
             if (apps != null && apps.size > 0) {
                 Log.w(tag, "Willing to listening with: [${apps.joinToString(",")}]")
-                startListener(*apps.toTypedArray())
+                startListener(engine, *apps.toTypedArray())
             } else {
-                startListener()
+                startListener(engine)
+            }
+            accounting?.let {
+                startTrafficRingLog(intent, it)
             }
         }
     }
 
     override fun onNetTrafficReceiveActionToStop() {
         tunnelThread?.interrupt()
+        stopHandlers()
         stopSelf()
     }
 
-    override fun sendNetTrafficBroadcastWorking(downByteSize: Long, upByteSize: Long) {
-        sendNetTrafficBroadcastWorking("vpn", downByteSize, upByteSize)
+    override fun sendNetTrafficBroadcastWorking(
+        downByteSize: Long,
+        upByteSize: Long,
+        topDestinations: List<Pair<String, Long>>
+    ) {
+        sendNetTrafficBroadcastWorking("vpn", downByteSize, upByteSize, topDestinations)
     }
 
     override fun notify(msg: String) {
@@ -140,14 +181,6 @@ class NetTrafficStatisticsVpnService : VpnService(), NetTrafficStatisticsService
 
     override fun onCreate() {
         super.onCreate()
-        executorService.submit(BioUdpHandler(deviceToNetworkUDPQueue, networkToDeviceQueue, this))
-        executorService.submit(
-            NioSingleThreadTcpHandler(
-                deviceToNetworkTCPQueue,
-                networkToDeviceQueue,
-                this
-            )
-        )
         onNetTrafficStatisticsCreate()
     }
 
@@ -162,19 +195,31 @@ class NetTrafficStatisticsVpnService : VpnService(), NetTrafficStatisticsService
                 this.interrupt()
             tunnelThread = null
         }
+        stopHandlers()
         executorService.shutdown()
         onNetTrafficStatisticsDestroy()
         cancelNotification(notificationID)
         super.onDestroy()
     }
 
-    private fun startListener(vararg appPkgNames: String) {
+    private fun startListener(engine: ProxyEngines, vararg appPkgNames: String) {
         createTunnel(*appPkgNames)?.apply {
+            stopHandlers()
+            // 由经过的 DNS 应答得到主机名，统计中以主机名代替 IP
+            val hostnames = HostnameCache()
+            val accounting = createAccounting(hostnames, *appPkgNames)
+            this@NetTrafficStatisticsVpnService.accounting = accounting
+            val tcpHandler = engine.createTcpHandler(networkToDeviceQueue, this@NetTrafficStatisticsVpnService, bufferPool)
+            val udpHandler = engine.createUdpHandler(networkToDeviceQueue, this@NetTrafficStatisticsVpnService, bufferPool)
+            udpHandler.setDnsListener(hostnames)
+            handlerFutures = listOf(executorService.submit(udpHandler), executorService.submit(tcpHandler))
             tunnelThread = TunnelThread(
                 this,
-                deviceToNetworkUDPQueue,
-                deviceToNetworkTCPQueue,
-                networkToDeviceQueue
+                udpHandler,
+                tcpHandler,
+                networkToDeviceQueue,
+                bufferPool,
+                accounting
             ).apply {
                 start()
             }
@@ -183,13 +228,85 @@ class NetTrafficStatisticsVpnService : VpnService(), NetTrafficStatisticsService
         }
     }
 
+    private fun stopHandlers() {
+        for (f in handlerFutures) {
+            f.cancel(true)
+        }
+        handlerFutures = emptyList()
+    }
+
+    /**
+     * Android 10 起可由系统查询每个连接所属的 UID；更早的版本只有在只代理一个应用时才能确定归属
+     */
+    private fun createAccounting(hostnames: HostnameCache, vararg appPkgNames: String): TrafficAccounting {
+        var defaultUid = FlowStats.UID_UNKNOWN
+        if (appPkgNames.size == 1) {
+            try {
+                defaultUid = packageManager.getApplicationInfo(appPkgNames[0], 0).uid
+            } catch (e: PackageManager.NameNotFoundException) {
+                Log.w(tag, "Unknown package: ${appPkgNames[0]}")
+            }
+        }
+        val resolver = if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) createUidResolver() else null
+        return TrafficAccounting(resolver, executorService, defaultUid, hostnames)
+    }
+
+    @RequiresApi(Build.VERSION_CODES.Q)
+    private fun createUidResolver(): TrafficAccounting.UidResolver {
+        val cm = getSystemService(ConnectivityManager::class.java)
+        val local = InetAddress.getByName(VPN_ADDRESS)
+        return TrafficAccounting.UidResolver { protocol, key ->
+            try {
+                cm.getConnectionOwnerUid(
+                    protocol,
+                    InetSocketAddress(local, FlowKey.sourcePort(key)),
+                    InetSocketAddress(PacketView.toInetAddress(FlowKey.destinationAddress(key)), FlowKey.destinationPort(key))
+                )
+            } catch (e: Exception) {
+                Log.w(tag, "getConnectionOwnerUid error: ${FlowKey.toString(key)}", e)
+                FlowStats.UID_UNKNOWN
+            }
+        }
+    }
+
+    /**
+     * 按应用发送本间隔的流量
+     * @param apps 包名, 下行字节数, 上行字节数
+     */
+    private fun sendAppTrafficBroadcast(apps: List<Triple<String, Long, Long>>) {
+        if (apps.isEmpty()) {
+            return
+        }
+        sendNetTrafficBroadcast("apps", Bundle().apply {
+            putStringArrayList("apps", ArrayList(apps.map { it.first }))
+            putLongArray("downByteSizes", apps.map { it.second }.toLongArray())
+            putLongArray("upByteSizes", apps.map { it.third }.toLongArray())
+        })
+    }
+
+    /**
+     * UID 对应多个包名（sharedUserId）时取第一个
+     */
+    private fun getAppName(uid: Int): String {
+        if (uid == FlowStats.UID_UNKNOWN) {
+            return "unknown"
+        }
+        return appNames[uid] ?: (packageManager.getPackagesForUid(uid)?.firstOrNull() ?: uid.toString()).also {
+            appNames.put(uid, it)
+        }
+    }
+
     private fun createTunnel(vararg appPkgNames: String): ParcelFileDescriptor? {
         val bd = Builder()
-            .addAddress("10.0.1.2", 32)
+            .addAddress(VPN_ADDRESS, 32)
             .addRoute("0.0.0.0", 0)
             .addDnsServer("114.114.114.114")
             .addDnsServer("8.8.8.8")
             .setSession(getString(R.string.net_traffic_statistics))
+            // 阻塞模式：没有数据时 read 挂起，有包即返回，无需轮询休眠
+            .setBlocking(true)
+            // TCP 代理通告的 MSS 由此推算
+            .setMtu(Packet.MTU)
         for (x in appPkgNames) {
             bd.addAllowedApplication(x)
         }
@@ -200,18 +317,25 @@ class NetTrafficStatisticsVpnService : VpnService(), NetTrafficStatisticsService
         handler.postDelayed(updateNotificationRunnable, 1000)
     }
 
+    /**
+     * 把网络返回的包写入 tun
+     * 队列中的缓冲区已由生产者置为读模式，一次取出所有就绪的包（最多 [maxBatch] 个）后连续写出
+     * tun 按包收发，每次 write 只能写一个完整的 IP 包，因此无法用 gathering write 合并
+     */
     private class TunnelOutputThread(
         private val outputChannel: FileChannel,
-        private val networkToDeviceQueue: BlockingQueue<ByteBuffer>
+        private val networkToDeviceQueue: BlockingQueue<ByteBuffer>,
+        private val bufferPool: ByteBufferPool,
+        accounting: TrafficAccounting,
+        private val maxBatch: Int = DEFAULT_MAX_BATCH
     ) : Thread("TunnelOutputThread") {
-        private var downloadSize = 0L  // 累计下载byte数
-
-        fun getAndResetDownloadSize(): Long {
-            val v = downloadSize
-            downloadSize = 0
-            return v
+        companion object {
+            const val DEFAULT_MAX_BATCH = 64
         }
 
+        private val recorder = accounting.newRecorder()
+        private val batch = ArrayList<ByteBuffer>(maxBatch)
+
         override fun run() {
             try {
                 looping()
@@ -225,15 +349,21 @@ class NetTrafficStatisticsVpnService : VpnService(), NetTrafficStatisticsService
         }
 
         private fun looping() {
-            var len: Int
             while (!isInterrupted) {
-                val bf = networkToDeviceQueue.take()  // 这里会阻塞
-                bf.flip()
-                while (bf.hasRemaining()) {
-                    len = outputChannel.write(bf)
-                    if (len > 0) {
-                        downloadSize += len
+                batch.add(networkToDeviceQueue.take())  // 这里会阻塞
+                networkToDeviceQueue.drainTo(batch, maxBatch - 1)
+                try {
+                    for (bf in batch) {
+                        recorder.recordDownload(bf)
+                        while (bf.hasRemaining()) {
+                            outputChannel.write(bf)
+                        }
                     }
+                } finally {
+                    for (bf in batch) {
+                        bufferPool.release(bf)
+                    }
+                    batch.clear()
                 }
             }
         }
@@ -245,13 +375,15 @@ class NetTrafficStatisticsVpnService : VpnService(), NetTrafficStatisticsService
      */
     private class TunnelThread(
         private val tun: ParcelFileDescriptor,
-        private val deviceToNetworkUdpQueue: BlockingQueue<Packet>,
-        private val deviceToNetworkTcpQueue: BlockingQueue<Packet>,
-        private val networkToDeviceQueue: BlockingQueue<ByteBuffer>
+        private val udpHandler: UdpHandler,
+        private val tcpHandler: TcpHandler,
+        private val networkToDeviceQueue: BlockingQueue<ByteBuffer>,
+        private val bufferPool: ByteBufferPool,
+        private val accounting: TrafficAccounting
     ) : Thread("TunnelThread") {
-        var idle: Boolean = true // 是否空闲
-            private set
-        private var uploadSize = 0L  // 累计上传byte数
+        private val recorder = accounting.newRecorder()
+        // 解析每个读到的包，只在本线程使用
+        private val view = PacketView()
         private val fd by lazy {
             tun.fileDescriptor
         }
@@ -261,7 +393,7 @@ class NetTrafficStatisticsVpnService : VpnService(), NetTrafficStatisticsService
         private val outputChannel: FileChannel by lazy {
             FileOutputStream(fd).channel
         }
-        private val outThread by lazy { TunnelOutputThread(outputChannel, networkToDeviceQueue) }
+        private val outThread by lazy { TunnelOutputThread(outputChannel, networkToDeviceQueue, bufferPool, accounting) }
 
         override fun run() {
             try {
@@ -279,51 +411,41 @@ class NetTrafficStatisticsVpnService : VpnService(), NetTrafficStatisticsService
             }
         }
 
-        fun getAndResetUploadSize(): Long {
-            val v = uploadSize
-            uploadSize = 0L
-            return v
-        }
-
-        fun getAndResetDownloadSize(): Long {
-            return outThread.getAndResetDownloadSize()
-        }
-
         private fun looping() {
-            var lastIOTime = 0L
-            var nextSleep = 0L
             var len: Int
-            var buffer: ByteBuffer
+            var buffer: ByteBuffer? = null
             while (!isInterrupted) {
-                idle = true
-                buffer = ByteBuffer.allocate(Packet.DEF_BUFFER_SIZE)
-                len = inputChannel.read(buffer)
+                if (buffer == null) {
+                    // tun 的 MTU 已设为 Packet.MTU，一个中等规格的缓冲区即可容纳；TCP 载荷可能随缓冲区一起被长时间持有
+                    buffer = bufferPool.acquire(Packet.MTU)
+                }
+                len = inputChannel.read(buffer)  // tun 为阻塞模式，这里会阻塞直到有包；interrupt 时抛出 ClosedByInterruptException
                 if (len > 0) {
-                    uploadSize += len
                     buffer.flip()
-                    val pk = Packet(buffer)
-                    if (pk.isUDP) {
-                        deviceToNetworkUdpQueue.offer(pk)
-                    } else if (pk.isTCP) {
-                        deviceToNetworkTcpQueue.offer(pk)
+                    recorder.recordUpload(buffer)
+                    // 过短或头部不合法的包在读取任何头部字段前丢弃
+                    val queued = if (!PacketView.isValid(buffer)) {
+                        Log.w(name, "Malformed packet of $len bytes")
+                        false
                     } else {
-                        Log.w(name, "UnHandle packet protocol type: ${pk.ip4Header.protocolNum}")
-                    }
-                    idle = false
-                    lastIOTime = System.currentTimeMillis()
-                }
-
-                if (idle) {
-                    if (System.currentTimeMillis() - lastIOTime > 100) {
-                        // 对比上一次IO时间，空闲超过100毫秒, 每次循环额外延迟休眠时间，最高500ms
-                        if (nextSleep < 500) {
-                            nextSleep += 50
+                        val pk = Packet(buffer, view)
+                        if (pk.isUDP) {
+                            udpHandler.offer(pk)
+                        } else if (pk.isTCP) {
+                            tcpHandler.offer(pk)
+                        } else {
+                            Log.w(name, "UnHandle packet protocol type: ${view.protocol()}")
+                            false
                         }
-                    } else {
-                        // 不足的，则恢复休眠时间
-                        nextSleep = 50
                     }
-                    sleep(nextSleep)
+                    if (!queued) {
+                        bufferPool.release(buffer)
+                    }
+                    // 缓冲区已交给处理器，下次读取另取一个
+                    buffer = null
+                } else if (len < 0) {
+                    Log.w(name, "Tun closed!")
+                    break
                 }
             }
         }
@@ -44,6 +44,13 @@ interface SomethingWithNetTrafficStatistics : SomethingWithContext {
                                     intent.getLongExtra("upByteSize", 0L)
                                 )
                             }
+                            "apps" -> {
+                                onNetStatisticsApps(
+                                    intent.getStringArrayListExtra("apps") ?: emptyList<String>(),
+                                    intent.getLongArrayExtra("downByteSizes") ?: LongArray(0),
+                                    intent.getLongArrayExtra("upByteSizes") ?: LongArray(0)
+                                )
+                            }
                             "error" -> {
                                 onNetStatisticsError(intent.getStringExtra("error") ?: "UnKnown error!")
                             }
@@ -57,6 +64,11 @@ interface SomethingWithNetTrafficStatistics : SomethingWithContext {
     fun onNetStatisticsCreate() {}
     fun onNetStatisticsDestroy() {}
     fun onNetStatisticsWorking(network: String, downByteSize: Long, uploadByteSize: Long) {}
+
+    /**
+     * VPN 模式下每个间隔按应用统计的流量，三个参数按下标对应，按总流量从大到小排列
+     */
+    fun onNetStatisticsApps(apps: List<String>, downByteSizes: LongArray, upByteSizes: LongArray) {}
     fun onNetStatisticsError(error: String) {
         Toast.makeText(getContext(), error, Toast.LENGTH_LONG).show()
     }
@@ -8,73 +8,95 @@ import java.net.ConnectException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
 import java.nio.channels.DatagramChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
-import java.util.HashMap;
+import java.util.ArrayList;
 import java.util.Iterator;
-import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import io.github.nic562.screen.recorder.tools.protocol.ByteBufferPool;
+import io.github.nic562.screen.recorder.tools.protocol.DnsResponseParser;
+import io.github.nic562.screen.recorder.tools.protocol.FlowKey;
 import io.github.nic562.screen.recorder.tools.protocol.Packet;
+import io.github.nic562.screen.recorder.tools.protocol.PacketView;
 
 /**
  * BIO UDP处理器
  * 从queue获取udp包，转发给指定的dns
  */
-public class BioUdpHandler implements Runnable {
+public class BioUdpHandler implements UdpHandler {
 
     BlockingQueue<Packet> queue;
 
     BlockingQueue<ByteBuffer> networkToDeviceQueue;
     VpnService vpnService;
+    ByteBufferPool bufferPool;
 
     private Selector selector;
+    private volatile DnsResponseParser.Listener dnsListener;
     private static final int HEADER_SIZE = Packet.IP4_HEADER_SIZE + Packet.UDP_HEADER_SIZE;
+    // 最多同时打开的 UDP 套接字数，超出时关闭最久未发送的
+    private static final int MAX_SOCKETS = 256;
+    /**
+     * 空闲超时：RFC 4787 要求 NAT 的 UDP 映射至少保留 2 分钟，但允许 53 等端口更短；
+     * DNS 每次查询通常换一个源端口，查询结束后映射就没用了
+     */
+    private static final long IDLE_TIMEOUT_MS = 120 * 1000L;
+    private static final long DNS_IDLE_TIMEOUT_MS = 10 * 1000L;
+    private static final int DNS_PORT = 53;
+    // 检查空闲映射的间隔
+    private static final long EXPIRE_INTERVAL_MS = 1000;
 
     private static class UdpDownWorker implements Runnable {
 
         BlockingQueue<ByteBuffer> networkToDeviceQueue;
         BlockingQueue<UdpTunnel> tunnelQueue;
         Selector selector;
+        ByteBufferPool bufferPool;
+        BioUdpHandler handler;
 
         private static AtomicInteger ipId = new AtomicInteger();
-
-        private void sendUdpPack(UdpTunnel tunnel, InetSocketAddress source, byte[] data) throws IOException {
-            int dataLen = 0;
-            if (data != null) {
-                dataLen = data.length;
-            }
-            Packet packet = Packet.buildUdpPacket(tunnel.remote, tunnel.local, ipId.addAndGet(1));
-
-            ByteBuffer byteBuffer = ByteBuffer.allocate(Packet.DEF_BUFFER_SIZE);
-            //
-            byteBuffer.position(HEADER_SIZE);
-            if (data != null) {
-                if (byteBuffer.remaining() < data.length) {
-                    System.currentTimeMillis();
-                }
-                byteBuffer.put(data);
+        // 下一次读取的目标，MTU 大小，数据读到头部之后；读到数据后连同头部整个交给输出线程
+        private ByteBuffer receiveBuffer;
+        // 分散读取时接住超出 receiveBuffer 的部分，只在本线程中使用，不入队
+        private final ByteBuffer overflowBuffer = ByteBuffer.allocate(Packet.DEF_BUFFER_SIZE);
+        private final ByteBuffer[] receiveBuffers = new ByteBuffer[2];
+        private final DnsResponseParser dnsParser = new DnsResponseParser();
+
+        /**
+         * @param byteBuffer 载荷已在 HEADER_SIZE 处，套上隧道的头部模板后交给输出线程
+         */
+        private void sendUdpPack(UdpTunnel tunnel, ByteBuffer byteBuffer, int dataLen) {
+            Packet.writeUDPHeader(byteBuffer, tunnel.headerTemplate, ipId.addAndGet(1), dataLen);
+            // 入队前置为读模式，输出线程直接写出，不再 flip
+            byteBuffer.limit(HEADER_SIZE + dataLen);
+            byteBuffer.position(0);
+            if (!this.networkToDeviceQueue.offer(byteBuffer)) {
+                bufferPool.release(byteBuffer);
             }
-            packet.updateUDPBuffer(byteBuffer, dataLen);
-            byteBuffer.position(HEADER_SIZE + dataLen);
-            this.networkToDeviceQueue.offer(byteBuffer);
         }
 
 
-        public UdpDownWorker(Selector selector, BlockingQueue<ByteBuffer> networkToDeviceQueue, BlockingQueue<UdpTunnel> tunnelQueue) {
+        public UdpDownWorker(Selector selector, BlockingQueue<ByteBuffer> networkToDeviceQueue, BlockingQueue<UdpTunnel> tunnelQueue, ByteBufferPool bufferPool, BioUdpHandler handler) {
             this.networkToDeviceQueue = networkToDeviceQueue;
             this.tunnelQueue = tunnelQueue;
             this.selector = selector;
+            this.bufferPool = bufferPool;
+            this.handler = handler;
         }
 
         @Override
         public void run() {
             try {
-                while (true) {
+                // 中断会使 select() 立即返回
+                while (!Thread.currentThread().isInterrupted()) {
                     int readyChannels = selector.select();
                     while (true) {
                         UdpTunnel tunnel = tunnelQueue.poll();
@@ -85,7 +107,8 @@ public class BioUdpHandler implements Runnable {
                                 SelectionKey key = tunnel.channel.register(selector, SelectionKey.OP_READ, tunnel);
                                 key.interestOps(SelectionKey.OP_READ);
                                 boolean isvalid = key.isValid();
-                            } catch (IOException e) {
+                            } catch (IOException | CancelledKeyException e) {
+                                // 注册前已因空闲或超出数量被关闭
                                 Log.d(TAG, "register fail", e);
                             }
                         }
@@ -99,114 +122,286 @@ public class BioUdpHandler implements Runnable {
                     while (keyIterator.hasNext()) {
                         SelectionKey key = keyIterator.next();
                         keyIterator.remove();
-                        if (key.isValid() && key.isReadable()) {
-                            try {
-                                DatagramChannel inputChannel = (DatagramChannel) key.channel();
-
-                                ByteBuffer receiveBuffer = ByteBuffer.allocate(Packet.DEF_BUFFER_SIZE);
-                                inputChannel.read(receiveBuffer);
-                                receiveBuffer.flip();
-                                byte[] data = new byte[receiveBuffer.remaining()];
-                                receiveBuffer.get(data);
-                                sendUdpPack((UdpTunnel) key.attachment(), (InetSocketAddress) inputChannel.getLocalAddress(), data);
-                            } catch (IOException e) {
-                                Log.e(TAG, "error", e);
+                        try {
+                            if (key.isValid() && key.isReadable()) {
+                                receive((DatagramChannel) key.channel(), (UdpTunnel) key.attachment());
                             }
-
+                        } catch (CancelledKeyException | ClosedChannelException e) {
+                            // 映射刚被上行线程关闭，isValid() 之后也可能被取消
+                        } catch (IOException e) {
+                            Log.e(TAG, "error", e);
                         }
                     }
                 }
             } catch (Exception e) {
-                Log.e(TAG, "error", e);
-                System.exit(0);
+                // 不再接收；上行线程发现本线程已退出后也会停止并关闭所有映射
+                Log.e(TAG, "down worker error", e);
             } finally {
+                bufferPool.release(receiveBuffer);
                 Log.d(TAG, "BioUdpHandler quit");
             }
+        }
 
+        private void receive(DatagramChannel inputChannel, UdpTunnel tunnel) throws IOException {
+            tunnel.lastActive = nowMillis();
 
+            if (receiveBuffer == null) {
+                receiveBuffer = bufferPool.acquire(ByteBufferPool.MEDIUM_BUFFER_SIZE);
+            }
+            receiveBuffer.clear();
+            receiveBuffer.position(HEADER_SIZE);
+            overflowBuffer.clear();
+            receiveBuffers[0] = receiveBuffer;
+            receiveBuffers[1] = overflowBuffer;
+            int n = (int) inputChannel.read(receiveBuffers);
+            if (n <= 0) {
+                return;
+            }
+            ByteBuffer packet;
+            if (overflowBuffer.position() == 0) {
+                // 绝大多数数据报不超过一个 MTU，直接交出，不复制
+                packet = receiveBuffer;
+                receiveBuffer = null;
+            } else {
+                // 超过 MTU 的数据报很少见，拼接到一个足够大的缓冲区，receiveBuffer 留作下次读取
+                packet = bufferPool.acquire(HEADER_SIZE + n);
+                receiveBuffer.flip();
+                receiveBuffer.position(HEADER_SIZE);
+                overflowBuffer.flip();
+                packet.position(HEADER_SIZE);
+                packet.put(receiveBuffer);
+                packet.put(overflowBuffer);
+            }
+            DnsResponseParser.Listener dnsListener = handler.dnsListener;
+            if (tunnel.dns && dnsListener != null) {
+                dnsParser.parse(packet, HEADER_SIZE, n, dnsListener);
+            }
+            sendUdpPack(tunnel, packet, n);
         }
     }
 
-    public BioUdpHandler(BlockingQueue<Packet> queue, BlockingQueue<ByteBuffer> networkToDeviceQueue, VpnService vpnService) {
+    public BioUdpHandler(BlockingQueue<Packet> queue, BlockingQueue<ByteBuffer> networkToDeviceQueue, VpnService vpnService, ByteBufferPool bufferPool) {
         this.queue = queue;
         this.networkToDeviceQueue = networkToDeviceQueue;
         this.vpnService = vpnService;
+        this.bufferPool = bufferPool;
     }
 
     private static final String TAG = BioUdpHandler.class.getSimpleName();
 
+    @Override
+    public boolean offer(Packet packet) {
+        return queue.offer(packet);
+    }
+
+    @Override
+    public void setDnsListener(DnsResponseParser.Listener listener) {
+        dnsListener = listener;
+    }
+
 
-    Map<String, DatagramChannel> udpSockets = new HashMap();
+    // 当前的 UDP 映射，只在本处理器的线程中访问
+    LongObjectMap<UdpTunnel> udpSockets = new LongObjectMap<>();
+    // 按最近发送时间排列的双向链表的哨兵，next 为最久未发送的映射
+    private final UdpTunnel lru = new UdpTunnel();
+    // 读取设备包头部用，逐个包重新指向，不为每个包分配
+    private final PacketView packetView = new PacketView();
 
+    {
+        lru.prev = lru;
+        lru.next = lru;
+    }
 
     private static class UdpTunnel {
         InetSocketAddress local;
         InetSocketAddress remote;
         DatagramChannel channel;
+        // 发往设备的包的 IP 和 UDP 头部，每次只需改长度、标识和校验和
+        ByteBuffer headerTemplate;
+        long key;
+        // 发往 53 端口，应答可供 dnsListener 解析
+        boolean dns;
+        long idleTimeout;
+        // 最近一次收发的时间，接收线程收到数据时也会更新
+        volatile long lastActive;
+        UdpTunnel prev;
+        UdpTunnel next;
+    }
+
+    private static long nowMillis() {
+        return System.nanoTime() / 1000000;
+    }
+
+    /**
+     * 移到 LRU 链表末尾
+     */
+    private void touch(UdpTunnel tunnel) {
+        if (tunnel.next != null) {
+            tunnel.prev.next = tunnel.next;
+            tunnel.next.prev = tunnel.prev;
+        }
+        tunnel.prev = lru.prev;
+        tunnel.next = lru;
+        lru.prev.next = tunnel;
+        lru.prev = tunnel;
+    }
 
+    /**
+     * 删除映射并关闭套接字。关闭会取消其在接收线程 selector 上的注册，
+     * 文件描述符在 selector 下一次 select 时才真正释放，调用方需要在之后 wakeup
+     */
+    private void removeTunnel(UdpTunnel tunnel) {
+        tunnel.prev.next = tunnel.next;
+        tunnel.next.prev = tunnel.prev;
+        tunnel.prev = null;
+        tunnel.next = null;
+        udpSockets.remove(tunnel.key);
+        try {
+            tunnel.channel.close();
+        } catch (IOException e) {
+            Log.w(TAG, "close error: " + FlowKey.toString(tunnel.key), e);
+        }
+    }
+
+    /**
+     * 关闭空闲超时的映射
+     */
+    private void expireIdle(long now) {
+        boolean removed = false;
+        UdpTunnel tunnel = lru.next;
+        while (tunnel != lru) {
+            UdpTunnel next = tunnel.next;
+            if (now - tunnel.lastActive >= tunnel.idleTimeout) {
+                removeTunnel(tunnel);
+                removed = true;
+            }
+            tunnel = next;
+        }
+        if (removed) {
+            selector.wakeup();
+        }
     }
 
     @Override
     public void run() {
+        Thread t = null;
         try {
             BlockingQueue<UdpTunnel> tunnelQueue = new ArrayBlockingQueue<>(100);
             selector = Selector.open();
-            Thread t = new Thread(new UdpDownWorker(selector, networkToDeviceQueue, tunnelQueue));
+            t = new Thread(new UdpDownWorker(selector, networkToDeviceQueue, tunnelQueue, bufferPool, this));
             t.start();
 
 
+            long nextExpire = nowMillis() + EXPIRE_INTERVAL_MS;
             while (true) {
-                Packet packet = queue.take();
+                Packet packet = queue.poll(EXPIRE_INTERVAL_MS, TimeUnit.MILLISECONDS);
+                if (!t.isAlive()) {
+                    // 接收线程异常退出，收不到应答，不再转发
+                    Log.e(TAG, "down worker stopped, quit");
+                    if (packet != null) {
+                        bufferPool.release(packet.backingBuffer);
+                    }
+                    break;
+                }
+                long now = nowMillis();
+                if (now >= nextExpire) {
+                    expireIdle(now);
+                    nextExpire = now + EXPIRE_INTERVAL_MS;
+                }
+                if (packet == null) {
+                    continue;
+                }
 
-                InetAddress destinationAddress = packet.ip4Header.destinationAddress;
-                Packet.UDPHeader header = packet.udpHeader;
+                PacketView view = packet.view(packetView);
 
-                //Log.d(TAG, String.format("get pack %d udp %d ", packet.packId, header.length));
+                //Log.d(TAG, String.format("get pack %d udp %d ", packet.packId, view.udpLength()));
 
-                int destinationPort = header.destinationPort;
-                int sourcePort = header.sourcePort;
-                String ipAndPort = destinationAddress.getHostAddress() + ":" + destinationPort + ":" + sourcePort;
-                if (!udpSockets.containsKey(ipAndPort)) {
+                int destinationPort = view.destinationPort();
+                int sourcePort = view.sourcePort();
+                long key = packet.flowKey;
+                UdpTunnel tunnel = udpSockets.get(key);
+                if (tunnel == null) {
+                    if (udpSockets.size() >= MAX_SOCKETS) {
+                        Log.d(TAG, "too many udp sockets, close " + FlowKey.toString(lru.next.key));
+                        removeTunnel(lru.next);
+                        selector.wakeup();
+                    }
                     DatagramChannel outputChannel = DatagramChannel.open();
                     vpnService.protect(outputChannel.socket());
                     outputChannel.socket().bind(null);
+                    InetAddress destinationAddress = PacketView.toInetAddress(view.destinationAddress());
                     try {
                         outputChannel.connect(new InetSocketAddress(destinationAddress, destinationPort));
                     } catch (ConnectException e) {
-                        Log.w(TAG, "connect error: " + ipAndPort, e);
+                        Log.w(TAG, "connect error: " + FlowKey.toString(key), e);
+                        outputChannel.close();
+                        bufferPool.release(packet.backingBuffer);
                         continue;
                     }
 
                     outputChannel.configureBlocking(false);
 
-                    UdpTunnel tunnel = new UdpTunnel();
-                    tunnel.local = new InetSocketAddress(packet.ip4Header.sourceAddress, header.sourcePort);
-                    tunnel.remote = new InetSocketAddress(packet.ip4Header.destinationAddress, header.destinationPort);
+                    tunnel = new UdpTunnel();
+                    tunnel.local = new InetSocketAddress(PacketView.toInetAddress(view.sourceAddress()), sourcePort);
+                    tunnel.remote = new InetSocketAddress(destinationAddress, destinationPort);
                     tunnel.channel = outputChannel;
+                    tunnel.headerTemplate = Packet.buildUdpHeaderTemplate(tunnel.remote, tunnel.local);
+                    tunnel.key = key;
+                    tunnel.dns = destinationPort == DNS_PORT;
+                    tunnel.idleTimeout = tunnel.dns ? DNS_IDLE_TIMEOUT_MS : IDLE_TIMEOUT_MS;
                     tunnelQueue.offer(tunnel);
 
                     selector.wakeup();
 
-                    udpSockets.put(ipAndPort, outputChannel);
+                    udpSockets.put(key, tunnel);
                 }
+                tunnel.lastActive = now;
+                touch(tunnel);
 
-                DatagramChannel outputChannel = udpSockets.get(ipAndPort);
                 ByteBuffer buffer = packet.backingBuffer;
                 try {
                     while (packet.backingBuffer.hasRemaining()) {
-                        outputChannel.write(buffer);
-//                        Log.d(TAG, String.format("write udp pack %d len %d %s ", packet.packId, w, ipAndPort));
+                        tunnel.channel.write(buffer);
+//                        Log.d(TAG, String.format("write udp pack %d len %d %s ", packet.packId, w, FlowKey.toString(key)));
 
                     }
                 } catch (IOException e) {
                     Log.e(TAG, "udp write error", e);
-                    outputChannel.close();
-                    udpSockets.remove(ipAndPort);
+                    removeTunnel(tunnel);
+                    selector.wakeup();
+                } finally {
+                    bufferPool.release(buffer);
                 }
             }
+        } catch (InterruptedException e) {
+            Log.w(TAG, "interrupted");
         } catch (Exception e) {
             Log.e(TAG, "error", e);
-            System.exit(0);
+        } finally {
+            close(t);
+        }
+    }
+
+    /**
+     * 停止接收线程，关闭所有 UDP 套接字
+     */
+    private void close(Thread downWorker) {
+        try {
+            if (downWorker != null) {
+                downWorker.interrupt();
+                downWorker.join();
+            }
+            ArrayList<UdpTunnel> tunnels = new ArrayList<>(udpSockets.size());
+            udpSockets.valuesTo(tunnels);
+            for (UdpTunnel tunnel : tunnels) {
+                tunnel.channel.close();
+            }
+            udpSockets.clear();
+            if (selector != null) {
+                selector.close();
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "close error", e);
         }
     }
 }
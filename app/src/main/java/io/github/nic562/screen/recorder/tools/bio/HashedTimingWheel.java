@@ -0,0 +1,167 @@
+package io.github.nic562.screen.recorder.tools.bio;
+
+import java.util.ArrayList;
+
+/**
+ * 哈希时间轮，供所有连接共用的定时器。
+ * 每个槽是一个双向链表，调度、取消都是 O(1)，每个 tick 只处理一个槽；
+ * 超过一圈的定时器记录剩余圈数，经过时递减。
+ * 非线程安全，只应在拥有它的线程（selector 线程）中使用，时间由调用方传入。
+ */
+public class HashedTimingWheel {
+
+    /**
+     * 定时器节点，可反复调度；到期时在 {@link #advance(long)} 中回调 {@link #expire()}
+     */
+    public abstract static class Timeout {
+        private Timeout prev;
+        private Timeout next;
+        private int slot = -1;
+        private long remainingRounds;
+        private boolean pendingExpire;
+
+        public boolean isScheduled() {
+            return slot >= 0;
+        }
+
+        protected abstract void expire();
+    }
+
+    private final long tickMillis;
+    private final Timeout[] wheel;
+    private final int mask;
+    private final long startMillis;
+    private long tick = 0;//下一个要处理的 tick
+    private int size = 0;
+    private final ArrayList<Timeout> expired = new ArrayList<>();
+
+    /**
+     * @param wheelSize 槽数，向上取 2 的幂
+     */
+    public HashedTimingWheel(long tickMillis, int wheelSize, long nowMillis) {
+        if (tickMillis <= 0) {
+            throw new IllegalArgumentException("tickMillis must be positive");
+        }
+        int n = Integer.highestOneBit(Math.max(2, wheelSize) - 1) << 1;
+        this.tickMillis = tickMillis;
+        this.wheel = new Timeout[n];
+        this.mask = n - 1;
+        this.startMillis = nowMillis;
+    }
+
+    /**
+     * 调度定时器，已调度的先取消再重新调度
+     */
+    public void schedule(Timeout timeout, long delayMillis, long nowMillis) {
+        cancel(timeout);
+        long deadline = nowMillis + Math.max(0, delayMillis) - startMillis;
+        // 第 n 个 tick 在 start + (n + 1) * tickMillis 时处理，取不早于 deadline 的最小 n
+        long target = Math.max(tick, (deadline + tickMillis - 1) / tickMillis - 1);
+        int slot = (int) (target & mask);
+        timeout.remainingRounds = (target - tick) / wheel.length;
+        timeout.slot = slot;
+        timeout.pendingExpire = false;
+        timeout.prev = null;
+        timeout.next = wheel[slot];
+        if (wheel[slot] != null) {
+            wheel[slot].prev = timeout;
+        }
+        wheel[slot] = timeout;
+        size++;
+    }
+
+    public void cancel(Timeout timeout) {
+        timeout.pendingExpire = false;
+        if (timeout.slot < 0) {
+            return;
+        }
+        unlink(timeout);
+    }
+
+    private void unlink(Timeout timeout) {
+        if (timeout.prev != null) {
+            timeout.prev.next = timeout.next;
+        } else {
+            wheel[timeout.slot] = timeout.next;
+        }
+        if (timeout.next != null) {
+            timeout.next.prev = timeout.prev;
+        }
+        timeout.prev = null;
+        timeout.next = null;
+        timeout.slot = -1;
+        size--;
+    }
+
+    /**
+     * 处理截至 nowMillis 已结束的所有 tick，回调其中到期的定时器。
+     * 回调中可以重新调度或取消任意定时器。
+     *
+     * @return 到期的定时器数
+     */
+    public int advance(long nowMillis) {
+        long lastTick = (nowMillis - startMillis) / tickMillis - 1;
+        int count = 0;
+        if (size == 0) {
+            // 空闲时直接跳过，不逐个 tick 处理
+            tick = Math.max(tick, lastTick + 1);
+            return 0;
+        }
+        while (tick <= lastTick) {
+            Timeout t = wheel[(int) (tick & mask)];
+            while (t != null) {
+                Timeout next = t.next;
+                if (t.remainingRounds <= 0) {
+                    unlink(t);
+                    t.pendingExpire = true;
+                    expired.add(t);
+                } else {
+                    t.remainingRounds--;
+                }
+                t = next;
+            }
+            tick++;
+            for (int i = 0; i < expired.size(); i++) {
+                Timeout e = expired.get(i);
+                // 同一批中前面的回调可能已取消或重新调度了它
+                if (e.pendingExpire) {
+                    e.pendingExpire = false;
+                    count++;
+                    e.expire();
+                }
+            }
+            expired.clear();
+            if (size == 0) {
+                tick = Math.max(tick, lastTick + 1);
+                break;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * 下一个有定时器的槽所在 tick 结束前无需调用 {@link #advance(long)}。
+     * 最多向后找一圈：槽中的定时器即使还有剩余圈数，经过时也要递减，
+     * 因此超时远长于一圈的定时器仍会每圈唤醒调用方一次，这类定时器宜放在 tick 较粗的另一个时间轮中。
+     *
+     * @return 距该 tick 结束的毫秒数，没有定时器时返回 -1
+     */
+    public long millisToNextTimer(long nowMillis) {
+        if (size == 0) {
+            return -1;
+        }
+        long t = tick;
+        for (int i = 0; i < wheel.length && wheel[(int) (t & mask)] == null; i++) {
+            t++;
+        }
+        return Math.max(1, startMillis + (t + 1) * tickMillis - nowMillis);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+}
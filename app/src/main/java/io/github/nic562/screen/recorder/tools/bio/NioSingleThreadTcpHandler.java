@@ -3,43 +3,112 @@ package io.github.nic562.screen.recorder.tools.bio;
 import android.net.VpnService;
 import android.util.Log;
 
-import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
-import java.util.HashMap;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
-import java.util.Map;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import io.github.nic562.screen.recorder.tools.protocol.ByteBufferPool;
+import io.github.nic562.screen.recorder.tools.protocol.FlowKey;
 import io.github.nic562.screen.recorder.tools.protocol.Packet;
 import io.github.nic562.screen.recorder.tools.protocol.Packet.TCPHeader;
+import io.github.nic562.screen.recorder.tools.protocol.PacketView;
 import io.github.nic562.screen.recorder.tools.protocol.TCBStatus;
 
-public class NioSingleThreadTcpHandler implements Runnable {
+public class NioSingleThreadTcpHandler implements TcpHandler {
 
     private static final String TAG = NioSingleThreadTcpHandler.class.getSimpleName();
 
     BlockingQueue<Packet> queue;//用于读包
     BlockingQueue<ByteBuffer> networkToDeviceQueue;//用于写数据
     VpnService vpnService;//用于保护地址
-
-    private ObjAttrUtil objAttrUtil = new ObjAttrUtil();
-    private Selector selector;
-
-    private Map<String, TcpPipe> pipes = new HashMap<>();
+    ByteBufferPool bufferPool;//读写包的缓冲池
+
+    private volatile Selector selector;
+    // 已请求唤醒但 selector 线程尚未开始处理队列，避免每个包都调用一次 wakeup()
+    private final AtomicBoolean wakeupPending = new AtomicBoolean(false);
+
+    private LongObjectMap<TcpPipe> pipes = new LongObjectMap<>();
+    // 因 networkToDeviceQueue 将满而暂停读取远端的 pipe，select 超时后重试
+    private final ArrayList<TcpPipe> queueWaitingPipes = new ArrayList<>();
+    // 从远端读取时的目标缓冲区，每个是一个发往设备的包，数据直接读到头部之后；未用完的留到下次读取
+    private final ByteBuffer[] readSegments = new ByteBuffer[READ_SEGMENTS];
+    // 读取设备包头部用，逐个包重新指向，不为每个包分配
+    private final PacketView packetView = new PacketView();
+    // 所有 pipe 共用的重传定时器
+    private final HashedTimingWheel timingWheel = new HashedTimingWheel(TIMER_TICK_MS, 512, nowMillis());
+    // 空闲超时长达数分钟到两小时，只需秒级精度，放在粗粒度的时间轮中，空闲的连接不会频繁唤醒 select()
+    private final HashedTimingWheel idleWheel = new HashedTimingWheel(IDLE_TIMER_TICK_MS, 512, nowMillis());
+    // 各状态的空闲超时，按 TCBStatus.ordinal() 索引
+    private final long[] idleTimeouts = defaultIdleTimeouts();
+    // 本轮事件循环的时间，用于记录 pipe 的活动时间
+    private long loopMillis = nowMillis();
 
 
     public NioSingleThreadTcpHandler(BlockingQueue<Packet> queue,//用于读包
                                      BlockingQueue<ByteBuffer> networkToDeviceQueue,//用于写数据
-                                     VpnService vpnService//用于保护地址
+                                     VpnService vpnService,//用于保护地址
+                                     ByteBufferPool bufferPool//读写包的缓冲池
     ) {
         this.queue = queue;
         this.vpnService = vpnService;
         this.networkToDeviceQueue = networkToDeviceQueue;
+        this.bufferPool = bufferPool;
+    }
+
+    /**
+     * 供 TunnelThread 投递设备发出的 TCP 包，入队成功后唤醒阻塞在 select() 中的处理线程
+     *
+     * @return 队列已满时返回 false，包由调用方处理
+     */
+    @Override
+    public boolean offer(Packet packet) {
+        if (!queue.offer(packet)) {
+            return false;
+        }
+        if (wakeupPending.compareAndSet(false, true)) {
+            Selector s = selector;
+            if (s != null) {
+                s.wakeup();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 设置某一状态下连接的空闲超时，超时后连接被重置（TIME_WAIT 则直接移除）。
+     * 应在 run() 之前调用。
+     */
+    public void setIdleTimeout(TCBStatus status, long millis) {
+        if (millis <= 0) {
+            throw new IllegalArgumentException("idle timeout must be positive");
+        }
+        idleTimeouts[status.ordinal()] = millis;
+    }
+
+    /**
+     * 默认值参考 RFC 5382 对 NAT 的要求：已建立的连接至少 2 小时 4 分，其余过渡状态至少 4 分钟；
+     * 握手沿用 BSD 的 75 秒，FIN_WAIT_2 沿用 Linux 的 60 秒。
+     * 设备与本端之间是本机 tun，报文不会在网络中滞留，TIME_WAIT 取 10 秒即可。
+     */
+    private static long[] defaultIdleTimeouts() {
+        long[] timeouts = new long[TCBStatus.values().length];
+        Arrays.fill(timeouts, 240 * 1000L);
+        timeouts[TCBStatus.SYN_SENT.ordinal()] = 75 * 1000L;
+        timeouts[TCBStatus.SYN_RECEIVED.ordinal()] = 75 * 1000L;
+        timeouts[TCBStatus.ESTABLISHED.ordinal()] = 7440 * 1000L;
+        timeouts[TCBStatus.FIN_WAIT_2.ordinal()] = 60 * 1000L;
+        timeouts[TCBStatus.TIME_WAIT.ordinal()] = 10 * 1000L;
+        return timeouts;
     }
 
     static class TcpPipe {
@@ -47,14 +116,39 @@ public class NioSingleThreadTcpHandler implements Runnable {
         public long theirSequenceNum = 0;
         public long myAcknowledgementNum = 0;
         public long theirAcknowledgementNum = 0;
-        static Integer tunnelIds = 0;
-        public final int tunnelId = tunnelIds++;
-        public String tunnelKey;
+        // 分片模式下多个处理线程同时创建 pipe
+        static final AtomicInteger tunnelIds = new AtomicInteger();
+        public final int tunnelId = tunnelIds.getAndIncrement();
+        public long tunnelKey;
         public InetSocketAddress sourceAddress;
         public InetSocketAddress destinationAddress;
         public SocketChannel remote;
+        public SelectionKey key;//remote 在 selector 上的注册，attachment 即本 pipe，cleanPipe 时注销
         public TCBStatus tcbStatus = TCBStatus.SYN_SENT;
-        private ByteBuffer remoteOutBuffer = ByteBuffer.allocate(8 * 1024);
+        // 待写往远端的数据，连接建立前及远端写不动时在此累积
+        OutboundChain remoteOut;
+        // 发送窗口（远端 -> 设备），mySequenceNum 即 SND.NXT
+        public long sndUna = 0;//最早未被设备确认的序号
+        public int sndWnd = 0;//设备通告的窗口，已按 sndWndShift 放大
+        public int sndWndShift = 0;//设备 SYN 中的窗口扩大因子
+        public boolean windowScaling = false;//设备 SYN 带有窗口扩大选项，SYN-ACK 中同样带上
+        public int sndMss = TCPHeader.DEFAULT_MSS;//发往设备的数据段大小上限
+        final ArrayDeque<ByteBuffer> unacked = new ArrayDeque<>();//已发出未确认的数据段（整包副本），按序号递增
+        int rcvWndAdvertised = 0;//最近一次通告给设备的接收窗口
+        boolean readPaused = false;//窗口或队列已满，暂停了 OP_READ
+        boolean queueWaiting = false;//在 queueWaitingPipes 中
+        // 重传
+        final RtoEstimator rto = new RtoEstimator();
+        RetransmitTimeout retransmitTimeout;
+        int retransmits = 0;//连续超时重传次数，收到新的确认后清零
+        int dupAcks = 0;
+        boolean inRecovery = false;//丢包恢复中，直到 recover 之前的数据全部被确认
+        long recover = 0;
+        long rttSeq = 0;//正在测量 RTT 的数据段的结束序号
+        long rttStart = -1;//其发送时间，-1 表示没有测量
+        // 空闲回收
+        IdleTimeout idleTimeout;
+        long lastActive;//最近一次收发数据或报文的时间
         //
         public boolean upActive = true;
         public boolean downActive = true;
@@ -67,16 +161,54 @@ public class NioSingleThreadTcpHandler implements Runnable {
     }
 
 
+    /**
+     * pipe 的重传定时器，到期时重传最早未确认的数据段
+     */
+    private class RetransmitTimeout extends HashedTimingWheel.Timeout {
+        final TcpPipe pipe;
+
+        RetransmitTimeout(TcpPipe pipe) {
+            this.pipe = pipe;
+        }
+
+        @Override
+        protected void expire() {
+            onRetransmitTimeout(pipe);
+        }
+    }
+
+    /**
+     * pipe 的空闲定时器。活动时只更新 lastActive，到期时若期间有活动则按剩余时间重新调度
+     */
+    private class IdleTimeout extends HashedTimingWheel.Timeout {
+        final TcpPipe pipe;
+
+        IdleTimeout(TcpPipe pipe) {
+            this.pipe = pipe;
+        }
+
+        @Override
+        protected void expire() {
+            onIdleTimeout(pipe);
+        }
+    }
+
+    private static long nowMillis() {
+        return System.nanoTime() / 1000000;
+    }
+
     private TcpPipe initPipe(Packet packet) throws Exception {
         TcpPipe pipe = new TcpPipe();
-        pipe.sourceAddress = new InetSocketAddress(packet.ip4Header.sourceAddress, packet.tcpHeader.sourcePort);
-        pipe.destinationAddress = new InetSocketAddress(packet.ip4Header.destinationAddress, packet.tcpHeader.destinationPort);
+        pipe.remoteOut = new OutboundChain(bufferPool);
+        pipe.retransmitTimeout = new RetransmitTimeout(pipe);
+        pipe.idleTimeout = new IdleTimeout(pipe);
+        setStatus(pipe, TCBStatus.SYN_SENT);
+        PacketView view = packet.view(packetView);
+        pipe.sourceAddress = new InetSocketAddress(PacketView.toInetAddress(view.sourceAddress()), view.sourcePort());
+        pipe.destinationAddress = new InetSocketAddress(PacketView.toInetAddress(view.destinationAddress()), view.destinationPort());
         pipe.remote = SocketChannel.open();
-        objAttrUtil.setAttr(pipe.remote, "type", "remote");
-        objAttrUtil.setAttr(pipe.remote, "pipe", pipe);
         pipe.remote.configureBlocking(false);
-        SelectionKey key = pipe.remote.register(selector, SelectionKey.OP_CONNECT);
-        objAttrUtil.setAttr(pipe.remote, "key", key);
+        pipe.key = pipe.remote.register(selector, SelectionKey.OP_CONNECT, pipe);
         //very important, protect
         vpnService.protect(pipe.remote.socket());
         boolean b1 = pipe.remote.connect(pipe.destinationAddress);
@@ -87,29 +219,82 @@ public class NioSingleThreadTcpHandler implements Runnable {
 
 
     private static int HEADER_SIZE = Packet.IP4_HEADER_SIZE + Packet.TCP_HEADER_SIZE;
+    // 每个 pipe 待写往远端的数据上限，达到后接收窗口为 0，不再确认设备的新数据
+    private static final int REMOTE_OUT_LIMIT = 64 * 1024;
+    // 一次从远端最多读取的数据段数，每段不超过 MSS
+    private static final int READ_SEGMENTS = 32;
+    // 本端通告的 MSS，发往设备的包不超过 tun 的 MTU
+    private static final int MSS = Packet.MTU - HEADER_SIZE;
+    // networkToDeviceQueue 剩余容量低于此值时暂停读取远端
+    private static final int QUEUE_LOW_WATER = 64;
+    private static final long QUEUE_RETRY_MS = 10;
+    private static final long TIMER_TICK_MS = 10;
+    private static final long IDLE_TIMER_TICK_MS = 1000;
+    // 连续超时重传超过此次数仍无进展则重置连接
+    private static final int MAX_RETRANSMITS = 10;
+    private static final int DUP_ACK_THRESHOLD = 3;
+    /**
+     * SYN-ACK 的选项：MSS，以及设备支持时的窗口扩大选项（本端通告的窗口不超过 65535，扩大因子为 0）
+     */
+    private static byte[] synOptions(TcpPipe pipe) {
+        byte[] mss = {TCPHeader.OPTION_MSS, 4, (byte) (MSS >> 8), (byte) MSS};
+        if (!pipe.windowScaling) {
+            return mss;
+        }
+        return new byte[]{
+                mss[0], mss[1], mss[2], mss[3],
+                TCPHeader.OPTION_NOP, TCPHeader.OPTION_WINDOW_SCALE, 3, 0
+        };
+    }
 
-    private void sendTcpPack(TcpPipe pipe, byte flag, byte[] data) {
+    /**
+     * @param segment 载荷已放在 HEADER_SIZE 处、position 为载荷末尾的包缓冲区，发送后归属输出队列；
+     *                为 null 时只发送头部
+     */
+    private void sendTcpPack(TcpPipe pipe, byte flag, ByteBuffer segment) {
         int dataLen = 0;
-        if (data != null) {
-            dataLen = data.length;
+        if (segment != null) {
+            dataLen = segment.position() - HEADER_SIZE;
         }
+        byte[] options = null;
+        if ((flag & (byte) TCPHeader.SYN) != 0) {
+            options = synOptions(pipe);
+        }
+        int headerSize = HEADER_SIZE + (options == null ? 0 : options.length);
         Packet packet = Packet.buildTcpPacket(pipe.destinationAddress, pipe.sourceAddress, flag,
                 pipe.myAcknowledgementNum, pipe.mySequenceNum, pipe.packId);
         pipe.packId += 1;
-        ByteBuffer byteBuffer = ByteBuffer.allocate(HEADER_SIZE + dataLen);
+        ByteBuffer byteBuffer = segment;
+        if (byteBuffer == null) {
+            byteBuffer = bufferPool.acquire(headerSize);
+        }
         //
-        byteBuffer.position(HEADER_SIZE);
-        if (data != null) {
-            if (byteBuffer.remaining() < data.length) {
-                System.currentTimeMillis();
+        int window = receiveWindow(pipe);
+        pipe.rcvWndAdvertised = window;
+        packet.updateTCPBuffer(byteBuffer, flag, pipe.mySequenceNum, pipe.myAcknowledgementNum, window, options, dataLen);
+        // 入队前置为读模式，输出线程直接写出，不再 flip
+        byteBuffer.limit(headerSize + dataLen);
+        byteBuffer.position(0);
+        if (dataLen > 0 || (flag & (byte) TCPHeader.FIN) != 0) {
+            // 占用序号的数据段保留副本直到设备确认，丢失（包括这里入队失败）时由重传定时器重发
+            ByteBuffer copy = bufferPool.acquire(headerSize + dataLen);
+            copy.put(byteBuffer);
+            copy.flip();
+            byteBuffer.position(0);
+            pipe.unacked.addLast(copy);
+            long now = nowMillis();
+            if (pipe.rttStart < 0) {
+                pipe.rttStart = now;
+                pipe.rttSeq = pipe.mySequenceNum + dataLen;
+            }
+            if (!pipe.retransmitTimeout.isScheduled()) {
+                timingWheel.schedule(pipe.retransmitTimeout, pipe.rto.rto(), now);
             }
-            byteBuffer.put(data);
         }
         //
-        packet.updateTCPBuffer(byteBuffer, flag, pipe.mySequenceNum, pipe.myAcknowledgementNum, dataLen);
-        byteBuffer.position(HEADER_SIZE + dataLen);
-        //
-        networkToDeviceQueue.offer(byteBuffer);
+        if (!networkToDeviceQueue.offer(byteBuffer)) {
+            bufferPool.release(byteBuffer);
+        }
         //
         if ((flag & (byte) TCPHeader.SYN) != 0) {
             pipe.mySequenceNum += 1;
@@ -124,19 +309,34 @@ public class NioSingleThreadTcpHandler implements Runnable {
 
     private void handleSyn(Packet packet, TcpPipe pipe) {
         if (pipe.tcbStatus == TCBStatus.SYN_SENT) {
-            pipe.tcbStatus = TCBStatus.SYN_RECEIVED;
+            setStatus(pipe, TCBStatus.SYN_RECEIVED);
             Log.i(TAG, String.format("handleSyn %s %s", pipe.destinationAddress, pipe.tcbStatus));
         }
         Log.i(TAG, String.format("handleSyn  %d %d", pipe.tunnelId, packet.packId));
-        TCPHeader tcpHeader = packet.tcpHeader;
+        PacketView view = packet.view(packetView);
         if (pipe.synCount == 0) {
+            int mss = view.tcpMss();
+            pipe.sndMss = Math.min(MSS, mss > 0 ? mss : TCPHeader.DEFAULT_MSS);
+            int shift = view.tcpWindowScale();
+            pipe.windowScaling = shift >= 0;
+            pipe.sndWndShift = Math.max(0, shift);
+            // SYN 中的窗口不做放大
+            pipe.sndWnd = view.window();
             pipe.mySequenceNum = 1;
-            pipe.theirSequenceNum = tcpHeader.sequenceNumber;
-            pipe.myAcknowledgementNum = tcpHeader.sequenceNumber + 1;
-            pipe.theirAcknowledgementNum = tcpHeader.acknowledgementNumber;
+            pipe.sndUna = 1;
+            pipe.theirSequenceNum = view.sequenceNumber();
+            pipe.myAcknowledgementNum = view.sequenceNumber() + 1;
+            pipe.theirAcknowledgementNum = view.acknowledgementNumber();
             sendTcpPack(pipe, (byte) (TCPHeader.SYN | TCPHeader.ACK), null);
         } else {
-            pipe.myAcknowledgementNum = tcpHeader.sequenceNumber + 1;
+            pipe.myAcknowledgementNum = view.sequenceNumber() + 1;
+            if (pipe.tcbStatus == TCBStatus.SYN_RECEIVED) {
+                // 重复的 SYN 说明 SYN-ACK 丢失，以原序号重发
+                long next = pipe.mySequenceNum;
+                pipe.mySequenceNum = pipe.sndUna;
+                sendTcpPack(pipe, (byte) (TCPHeader.SYN | TCPHeader.ACK), null);
+                pipe.mySequenceNum = next;
+            }
         }
         pipe.synCount += 1;
     }
@@ -146,82 +346,241 @@ public class NioSingleThreadTcpHandler implements Runnable {
         pipe.upActive = false;
         pipe.downActive = false;
         cleanPipe(pipe);
-        pipe.tcbStatus = TCBStatus.CLOSE_WAIT;
     }
 
     private void handleAck(Packet packet, TcpPipe pipe) throws Exception {
         if (pipe.tcbStatus == TCBStatus.SYN_RECEIVED) {
-            pipe.tcbStatus = TCBStatus.ESTABLISHED;
+            setStatus(pipe, TCBStatus.ESTABLISHED);
 
             Log.i(TAG, String.format("handleAck %s %s", pipe.destinationAddress, pipe.tcbStatus));
         }
 
 //        Log.d(TAG, String.format("handleAck %d ", packet.packId));
 
-        TCPHeader tcpHeader = packet.tcpHeader;
+        PacketView view = packet.view(packetView);
         int payloadSize = packet.backingBuffer.remaining();
+        updateSendWindow(pipe, view, payloadSize);
+        if (!pipe.downActive && pipe.sndUna == pipe.mySequenceNum) {
+            onFinAcked(pipe);
+        }
 
-        if (payloadSize == 0) {
+        if (payloadSize == 0 || !pipe.upActive) {
             return;
         }
 
-        long newAck = tcpHeader.sequenceNumber + payloadSize;
-        if (newAck <= pipe.myAcknowledgementNum) {
-            Log.d(TAG, String.format("handleAck duplicate ack", pipe.myAcknowledgementNum, newAck));
+        // 序号比较均用 int 差值，兼容 32 位回绕
+        int offset = (int) (pipe.myAcknowledgementNum - view.sequenceNumber());
+        if (offset >= payloadSize) {
+            Log.d(TAG, String.format("handleAck duplicate seq %d %d", pipe.myAcknowledgementNum, view.sequenceNumber()));
+            sendTcpPack(pipe, (byte) TCPHeader.ACK, null);
             return;
         }
-
-        pipe.myAcknowledgementNum = tcpHeader.sequenceNumber;
-        pipe.theirAcknowledgementNum = tcpHeader.acknowledgementNumber;
+        int space = REMOTE_OUT_LIMIT - pipe.remoteOut.size();
+        if (offset < 0 || space <= 0) {
+            // 乱序或已达上限，丢弃并重复确认，等待设备重传
+            sendTcpPack(pipe, (byte) TCPHeader.ACK, null);
+            return;
+        }
+        // 跳过已收到的部分，超出上限的部分不确认
+        ByteBuffer payload = packet.backingBuffer;
+        payload.position(payload.position() + offset);
+        payloadSize = Math.min(payloadSize - offset, space);
+        payload.limit(payload.position() + payloadSize);
 
         pipe.myAcknowledgementNum += payloadSize;
-        pipe.remoteOutBuffer.put(packet.backingBuffer);
-        pipe.remoteOutBuffer.flip();
-        tryFlushWrite(pipe, pipe.remote);
+        pipe.theirAcknowledgementNum = view.acknowledgementNumber();
+
+        if (pipe.remoteOut.add(payload)) {
+            // 缓冲区已归 remoteOut，写完后由其归还缓冲池
+            packet.backingBuffer = null;
+        }
+        tryFlushWrite(pipe);
         sendTcpPack(pipe, (byte) TCPHeader.ACK, null);
-        System.currentTimeMillis();
     }
 
-    private SelectionKey getKey(SocketChannel channel) {
-        return (SelectionKey) objAttrUtil.getAttr(channel, "key");
+    /**
+     * 处理设备的 ACK：释放已确认的数据段，更新 RTO 及重传定时器，更新发送窗口，窗口打开时恢复读取远端
+     */
+    private void updateSendWindow(TcpPipe pipe, PacketView view, int payloadSize) {
+        int acked = (int) (view.acknowledgementNumber() - pipe.sndUna);
+        int inFlight = (int) (pipe.mySequenceNum - pipe.sndUna);
+        if (acked < 0 || acked > inFlight) {
+            // 过期或确认了未发送的数据
+            return;
+        }
+        int window = view.window() << pipe.sndWndShift;
+        if (acked > 0) {
+            long now = nowMillis();
+            pipe.sndUna += acked;
+            while (!pipe.unacked.isEmpty() && (segmentEnd(pipe.unacked.peekFirst()) - (int) pipe.sndUna) <= 0) {
+                bufferPool.release(pipe.unacked.pollFirst());
+            }
+            if (pipe.rttStart >= 0 && (int) (pipe.sndUna - pipe.rttSeq) >= 0) {
+                pipe.rto.sample(now - pipe.rttStart);
+                pipe.rttStart = -1;
+            }
+            pipe.rto.resetBackoff();
+            pipe.retransmits = 0;
+            pipe.dupAcks = 0;
+            if (pipe.inRecovery) {
+                if ((int) (pipe.sndUna - pipe.recover) >= 0) {
+                    pipe.inRecovery = false;
+                } else if (!pipe.unacked.isEmpty()) {
+                    // 部分确认（NewReno）：紧接着的数据段也丢了，立即重发而不是等超时
+                    retransmitFirst(pipe);
+                }
+            }
+            // RFC 6298 5.2 / 5.3
+            if (pipe.unacked.isEmpty()) {
+                timingWheel.cancel(pipe.retransmitTimeout);
+            } else {
+                timingWheel.schedule(pipe.retransmitTimeout, pipe.rto.rto(), now);
+            }
+        } else if (payloadSize == 0 && inFlight > 0 && window == pipe.sndWnd && !pipe.unacked.isEmpty()) {
+            // 快速重传：连续重复 ACK
+            if (++pipe.dupAcks == DUP_ACK_THRESHOLD && !pipe.inRecovery) {
+                enterRecovery(pipe);
+                retransmitFirst(pipe);
+            }
+        }
+        pipe.sndWnd = window;
+        resumeRead(pipe);
+    }
+
+    private void onRetransmitTimeout(TcpPipe pipe) {
+        if (pipe.unacked.isEmpty() || !pipe.key.isValid()) {
+            return;
+        }
+        if (++pipe.retransmits > MAX_RETRANSMITS) {
+            Log.w(TAG, String.format("retransmit give up %d %s", pipe.tunnelId, pipe.destinationAddress));
+            try {
+                closeRst(pipe);
+            } catch (Exception e) {
+                Log.e(TAG, e.getMessage(), e);
+            }
+            return;
+        }
+        // RFC 6298 5.4 - 5.6
+        pipe.rto.backoff();
+        enterRecovery(pipe);
+        retransmitFirst(pipe);
+        timingWheel.schedule(pipe.retransmitTimeout, pipe.rto.rto(), nowMillis());
     }
 
-    private boolean tryFlushWrite(TcpPipe pipe, SocketChannel channel) throws Exception {
+    private static void enterRecovery(TcpPipe pipe) {
+        pipe.inRecovery = true;
+        pipe.recover = pipe.mySequenceNum;
+        // 重传期间不测量 RTT（Karn）
+        pipe.rttStart = -1;
+    }
 
-        ByteBuffer buffer = pipe.remoteOutBuffer;
-        if (pipe.remote.socket().isOutputShutdown() && buffer.remaining() != 0) {
-            sendTcpPack(pipe, (byte) (TCPHeader.FIN | Packet.TCPHeader.ACK), null);
-            buffer.compact();
-            return false;
+    /**
+     * 重发最早未确认的数据段，更新其中的确认号和窗口
+     */
+    private void retransmitFirst(TcpPipe pipe) {
+        ByteBuffer segment = pipe.unacked.peekFirst();
+        ByteBuffer byteBuffer = bufferPool.acquire(segment.limit());
+        byteBuffer.put(segment);
+        segment.position(0);
+        byteBuffer.flip();
+        int tcpOffset = (byteBuffer.get(0) & 0x0F) << 2;
+        int window = receiveWindow(pipe);
+        pipe.rcvWndAdvertised = window;
+        Packet.rewriteTCPHeader(byteBuffer, byteBuffer.get(tcpOffset + 13), byteBuffer.getInt(tcpOffset + 4) & 0xFFFFFFFFL,
+                pipe.myAcknowledgementNum, window);
+        if (!networkToDeviceQueue.offer(byteBuffer)) {
+            bufferPool.release(byteBuffer);
+        }
+    }
+
+    /**
+     * @return 数据段占用的最后一个序号之后的序号，FIN 占一个序号
+     */
+    private static int segmentEnd(ByteBuffer segment) {
+        int tcpOffset = (segment.get(0) & 0x0F) << 2;
+        int tcpHeaderLength = (segment.get(tcpOffset + 12) & 0xF0) >> 2;
+        int fin = segment.get(tcpOffset + 13) & TCPHeader.FIN;
+        return segment.getInt(tcpOffset + 4) + segment.limit() - tcpOffset - tcpHeaderLength + fin;
+    }
+
+    /**
+     * @return 设备窗口中尚可发送的字节数
+     */
+    private static int sendBudget(TcpPipe pipe) {
+        return pipe.sndWnd - (int) (pipe.mySequenceNum - pipe.sndUna);
+    }
+
+    /**
+     * 本端接收窗口：距待写往远端数据上限的余量
+     */
+    private static int receiveWindow(TcpPipe pipe) {
+        return Math.min(0xFFFF, Math.max(0, REMOTE_OUT_LIMIT - pipe.remoteOut.size()));
+    }
+
+    private boolean isQueueLow() {
+        return networkToDeviceQueue.remainingCapacity() < QUEUE_LOW_WATER;
+    }
+
+    private void pauseRead(TcpPipe pipe) {
+        if (!pipe.readPaused) {
+            pipe.readPaused = true;
+            pipe.key.interestOps(pipe.key.interestOps() & ~SelectionKey.OP_READ);
+        }
+        if (isQueueLow() && !pipe.queueWaiting) {
+            pipe.queueWaiting = true;
+            queueWaitingPipes.add(pipe);
+        }
+    }
+
+    private void resumeRead(TcpPipe pipe) {
+        if (!pipe.readPaused || !pipe.downActive || !pipe.key.isValid() || sendBudget(pipe) <= 0) {
+            return;
+        }
+        if (isQueueLow()) {
+            if (!pipe.queueWaiting) {
+                pipe.queueWaiting = true;
+                queueWaitingPipes.add(pipe);
+            }
+            return;
+        }
+        pipe.readPaused = false;
+        pipe.key.interestOps(pipe.key.interestOps() | SelectionKey.OP_READ);
+    }
+
+    private void resumeQueueWaiting() {
+        if (queueWaitingPipes.isEmpty() || isQueueLow()) {
+            return;
+        }
+        int n = queueWaitingPipes.size();
+        for (int i = 0; i < n; i++) {
+            TcpPipe pipe = queueWaitingPipes.get(i);
+            pipe.queueWaiting = false;
+            resumeRead(pipe);
         }
+        queueWaitingPipes.subList(0, n).clear();
+    }
+
+    /**
+     * 把 remoteOut 中的数据写往远端，写不完时注册 OP_WRITE 等待
+     *
+     * @return 是否已全部写出
+     */
+    private boolean tryFlushWrite(TcpPipe pipe) throws Exception {
+        SocketChannel channel = pipe.remote;
         if (!channel.isConnected()) {
             Log.i(TAG, "not yet connected");
-            SelectionKey key = (SelectionKey) objAttrUtil.getAttr(channel, "key");
-            int ops = key.interestOps() | SelectionKey.OP_WRITE;
-            key.interestOps(ops);
-            System.currentTimeMillis();
-            buffer.compact();
+            int ops = pipe.key.interestOps() | SelectionKey.OP_WRITE;
+            pipe.key.interestOps(ops);
             return false;
         }
-        while (buffer.hasRemaining()) {
-            int n = 0;
-            n = channel.write(buffer);
-            if (n > 4000) {
-                System.currentTimeMillis();
-            }
-//            Log.i(TAG, String.format("tryFlushWrite write %s", n));
-            if (n <= 0) {
-                Log.i(TAG, "write fail");
-                //
-                SelectionKey key = (SelectionKey) objAttrUtil.getAttr(channel, "key");
-                int ops = key.interestOps() | SelectionKey.OP_WRITE;
-                key.interestOps(ops);
-                System.currentTimeMillis();
-                buffer.compact();
+        if (!pipe.remoteOut.isEmpty()) {
+            pipe.remoteOut.writeTo(channel);
+            if (!pipe.remoteOut.isEmpty()) {
+                int ops = pipe.key.interestOps() | SelectionKey.OP_WRITE;
+                pipe.key.interestOps(ops);
                 return false;
             }
         }
-        buffer.clear();
         if (!pipe.upActive) {
             pipe.remote.shutdownOutput();
         }
@@ -231,55 +590,102 @@ public class NioSingleThreadTcpHandler implements Runnable {
 
     private void closeUpStream(TcpPipe pipe) throws Exception {
         Log.i(TAG, String.format("closeUpStream %d", pipe.tunnelId));
+        pipe.upActive = false;
         try {
-            if (pipe.remote != null && pipe.remote.isOpen()) {
-                if (pipe.remote.isConnected()) {
-                    pipe.remote.shutdownOutput();
-                }
-
+            // 还有未写出的数据时，由 tryFlushWrite 写完后再关闭
+            if (pipe.remote.isConnected() && pipe.remoteOut.isEmpty()) {
+                pipe.remote.shutdownOutput();
             }
         } catch (Exception e) {
             e.printStackTrace();
         }
-        Log.i(TAG, String.format("closeUpStream %d", pipe.tunnelId));
-        pipe.upActive = false;
-
-        if (isClosedTunnel(pipe)) {
-            cleanPipe(pipe);
-        }
     }
 
-    private void handleFin(Packet packet, TcpPipe pipe) throws Exception {
+    /**
+     * 处理设备的 FIN，其中的数据及确认已由 handleAck 处理
+     *
+     * @param finSeq FIN 占用的序号
+     */
+    private void handleFin(TcpPipe pipe, long finSeq) throws Exception {
+        int offset = (int) (finSeq - pipe.myAcknowledgementNum);
+        if (offset != 0) {
+            // 重传的 FIN（确认丢失）重新确认；之前还有数据未收到的 FIN 丢弃，等待设备重传
+            sendTcpPack(pipe, (byte) TCPHeader.ACK, null);
+            return;
+        }
         Log.i(TAG, String.format("handleFin %d", pipe.tunnelId));
-        pipe.myAcknowledgementNum = packet.tcpHeader.sequenceNumber + 1;
-        pipe.theirAcknowledgementNum = packet.tcpHeader.acknowledgementNumber;
-        //TODO
+        pipe.myAcknowledgementNum = finSeq + 1;
         sendTcpPack(pipe, (byte) (TCPHeader.ACK), null);
-        closeUpStream(pipe);
-        pipe.tcbStatus = TCBStatus.CLOSE_WAIT;
+        switch (pipe.tcbStatus) {
+            case SYN_RECEIVED:
+            case ESTABLISHED:
+                setStatus(pipe, TCBStatus.CLOSE_WAIT);
+                closeUpStream(pipe);
+                break;
+            case FIN_WAIT_1:
+                setStatus(pipe, TCBStatus.CLOSING);
+                closeUpStream(pipe);
+                break;
+            case FIN_WAIT_2:
+                closeUpStream(pipe);
+                enterTimeWait(pipe);
+                break;
+            default:
+                break;
+        }
 
         Log.i(TAG, String.format("handleFin %s %s", pipe.destinationAddress, pipe.tcbStatus));
     }
 
+    /**
+     * 设备确认了本端的 FIN
+     */
+    private void onFinAcked(TcpPipe pipe) {
+        switch (pipe.tcbStatus) {
+            case FIN_WAIT_1:
+                setStatus(pipe, TCBStatus.FIN_WAIT_2);
+                break;
+            case CLOSING:
+                enterTimeWait(pipe);
+                break;
+            case LAST_ACK:
+                cleanPipe(pipe);
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * 双向都已关闭：释放远端连接，保留表项一段时间以重新确认设备重传的 FIN
+     */
+    private void enterTimeWait(TcpPipe pipe) {
+        setStatus(pipe, TCBStatus.TIME_WAIT);
+        // 还有数据未写往远端时，由 doWrite 写完后释放
+        if (pipe.remoteOut.isEmpty()) {
+            releasePipe(pipe);
+        }
+    }
+
     private void handlePacket(TcpPipe pipe, Packet packet) throws Exception {
-        boolean end = false;
-        TCPHeader tcpHeader = packet.tcpHeader;
-        if (tcpHeader.isSYN()) {
+        PacketView view = packet.view(packetView);
+        if (view.isSYN()) {
             handleSyn(packet, pipe);
-            end = true;
+            return;
         }
-        if (!end && tcpHeader.isRST()) {
+        if (view.isRST()) {
             handleRst(packet, pipe);
             return;
         }
-        if (!end && tcpHeader.isFIN()) {
-            handleFin(packet, pipe);
-            end = true;
-        }
-        if (!end && tcpHeader.isACK()) {
+        // FIN 可能携带数据，先按普通数据段处理；handleAck 可能接管缓冲区，之后不能再读取 view
+        long finSeq = view.sequenceNumber() + packet.backingBuffer.remaining();
+        boolean fin = view.isFIN();
+        if (view.isACK()) {
             handleAck(packet, pipe);
         }
-
+        if (fin && pipe.tcbStatus != TCBStatus.CLOSED) {
+            handleFin(pipe, finSeq);
+        }
     }
 
     private void handleReadFromVpn() throws Exception {
@@ -288,23 +694,33 @@ public class NioSingleThreadTcpHandler implements Runnable {
             if (currentPacket == null) {
                 return;
             }
-            InetAddress destinationAddress = currentPacket.ip4Header.destinationAddress;
-            TCPHeader tcpHeader = currentPacket.tcpHeader;
-            //Log.d(TAG, String.format("get pack %d tcp " + tcpHeader.printSimple() + " ", currentPacket.packId));
-            int destinationPort = tcpHeader.destinationPort;
-            int sourcePort = tcpHeader.sourcePort;
-            String ipAndPort = destinationAddress.getHostAddress() + ":" +
-                    destinationPort + ":" + sourcePort;
-
-
-            if (!pipes.containsKey(ipAndPort)) {
-                TcpPipe tcpTunnel = initPipe(currentPacket);
-                tcpTunnel.tunnelKey = ipAndPort;
-                pipes.put(ipAndPort, tcpTunnel);
+            //Log.d(TAG, String.format("get pack %d tcp %s", currentPacket.packId, currentPacket.view(packetView)));
+            long key = currentPacket.flowKey;
+            boolean syn = currentPacket.view(packetView).isSYN();
+
+            TcpPipe pipe = pipes.get(key);
+            if (pipe != null && pipe.tcbStatus == TCBStatus.TIME_WAIT && syn) {
+                // 设备复用了端口，旧连接的 TIME_WAIT 提前结束
+                cleanPipe(pipe);
+                pipe = null;
+            }
+            if (pipe == null && !syn) {
+                // 已关闭或未知的连接，不为其建立远端连接
+                bufferPool.release(currentPacket.backingBuffer);
+                continue;
+            }
+            if (pipe == null) {
+                pipe = initPipe(currentPacket);
+                pipe.tunnelKey = key;
+                pipes.put(key, pipe);
+            }
+            pipe.lastActive = loopMillis;
+            try {
+                handlePacket(pipe, currentPacket);
+            } finally {
+                // null if remoteOut took the buffer over
+                bufferPool.release(currentPacket.backingBuffer);
             }
-            TcpPipe pipe = pipes.get(ipAndPort);
-            handlePacket(pipe, currentPacket);
-            System.currentTimeMillis();
         }
     }
 
@@ -312,15 +728,33 @@ public class NioSingleThreadTcpHandler implements Runnable {
         throw new RuntimeException("");
     }
 
-    private void doRead(SocketChannel channel) throws Exception {
-        ByteBuffer buffer = ByteBuffer.allocate(4 * 1024);
+    private void doRead(TcpPipe pipe) throws Exception {
         String quitType = "";
-
-        TcpPipe pipe = (TcpPipe) objAttrUtil.getAttr(channel, "pipe");
+        SocketChannel channel = pipe.remote;
 
         while (true) {
-            buffer.clear();
-            int n = BioUtil.read(channel, buffer);
+            // 只读取设备窗口能容纳的数据，其余留在 socket 接收缓冲中，由 TCP 向远端施加背压
+            int budget = sendBudget(pipe);
+            if (budget <= 0 || isQueueLow()) {
+                pauseRead(pipe);
+                break;
+            }
+            // 按 MSS 准备各段的缓冲区，分散读取后直接补上头部发出，不再复制
+            int count = 0;
+            while (budget > 0 && count < READ_SEGMENTS) {
+                ByteBuffer segment = readSegments[count];
+                if (segment == null) {
+                    segment = bufferPool.acquire(HEADER_SIZE + MSS);
+                    readSegments[count] = segment;
+                }
+                int size = Math.min(budget, pipe.sndMss);
+                segment.clear();
+                segment.position(HEADER_SIZE);
+                segment.limit(HEADER_SIZE + size);
+                budget -= size;
+                count++;
+            }
+            long n = channel.read(readSegments, 0, count);
 //            Log.i(TAG, String.format("read %s", n));
             if (n == -1) {
                 quitType = "fin";
@@ -328,11 +762,11 @@ public class NioSingleThreadTcpHandler implements Runnable {
             } else if (n == 0) {
                 break;
             } else {
-                if (pipe.tcbStatus != TCBStatus.CLOSE_WAIT) {
-                    buffer.flip();
-                    byte[] data = new byte[buffer.remaining()];
-                    buffer.get(data);
-                    sendTcpPack(pipe, (byte) (TCPHeader.ACK), data);
+                pipe.lastActive = loopMillis;
+                for (int i = 0; i < count && readSegments[i].position() > HEADER_SIZE; i++) {
+                    ByteBuffer segment = readSegments[i];
+                    readSegments[i] = null;
+                    sendTcpPack(pipe, (byte) (TCPHeader.ACK), segment);
                 }
             }
         }
@@ -341,17 +775,67 @@ public class NioSingleThreadTcpHandler implements Runnable {
         }
     }
 
-    private void cleanPipe(TcpPipe pipe) {
+    /**
+     * 关闭远端连接并释放待确认的数据段，表项仍保留
+     */
+    private void releasePipe(TcpPipe pipe) {
+        timingWheel.cancel(pipe.retransmitTimeout);
+        for (ByteBuffer segment : pipe.unacked) {
+            bufferPool.release(segment);
+        }
+        pipe.unacked.clear();
+        pipe.remoteOut.clear();
         try {
+            if (pipe.key != null) {
+                pipe.key.cancel();
+                pipe.key.attach(null);
+            }
             if (pipe.remote != null && pipe.remote.isOpen()) {
                 pipe.remote.close();
             }
-            pipes.remove(pipe.tunnelKey);
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
 
+    private void cleanPipe(TcpPipe pipe) {
+        releasePipe(pipe);
+        idleWheel.cancel(pipe.idleTimeout);
+        pipe.tcbStatus = TCBStatus.CLOSED;
+        // 端口复用时表中可能已是新的 pipe
+        if (pipes.get(pipe.tunnelKey) == pipe) {
+            pipes.remove(pipe.tunnelKey);
+        }
+    }
+
+    /**
+     * 切换状态，并按新状态的空闲超时重新计时
+     */
+    private void setStatus(TcpPipe pipe, TCBStatus status) {
+        pipe.tcbStatus = status;
+        pipe.lastActive = loopMillis;
+        idleWheel.schedule(pipe.idleTimeout, idleTimeouts[status.ordinal()], loopMillis);
+    }
+
+    private void onIdleTimeout(TcpPipe pipe) {
+        long timeout = idleTimeouts[pipe.tcbStatus.ordinal()];
+        long idle = loopMillis - pipe.lastActive;
+        if (idle < timeout) {
+            idleWheel.schedule(pipe.idleTimeout, timeout - idle, loopMillis);
+            return;
+        }
+        if (pipe.tcbStatus == TCBStatus.TIME_WAIT) {
+            cleanPipe(pipe);
+            return;
+        }
+        Log.i(TAG, String.format("idle timeout %d %s %s", pipe.tunnelId, pipe.destinationAddress, pipe.tcbStatus));
+        try {
+            closeRst(pipe);
+        } catch (Exception e) {
+            Log.e(TAG, e.getMessage(), e);
+        }
+    }
+
     private void closeRst(TcpPipe pipe) throws Exception {
         Log.i(TAG, String.format("closeRst %d", pipe.tunnelId));
         cleanPipe(pipe);
@@ -364,72 +848,67 @@ public class NioSingleThreadTcpHandler implements Runnable {
         Log.i(TAG, String.format("closeDownStream %d", pipe.tunnelId));
         if (pipe.remote != null && pipe.remote.isConnected()) {
             pipe.remote.shutdownInput();
-            int ops = getKey(pipe.remote).interestOps() & (~SelectionKey.OP_READ);
-            getKey(pipe.remote).interestOps(ops);
+            int ops = pipe.key.interestOps() & (~SelectionKey.OP_READ);
+            pipe.key.interestOps(ops);
         }
 
         sendTcpPack(pipe, (byte) (TCPHeader.FIN | Packet.TCPHeader.ACK), null);
         pipe.downActive = false;
-        if (isClosedTunnel(pipe)) {
-            cleanPipe(pipe);
+        if (pipe.tcbStatus == TCBStatus.CLOSE_WAIT) {
+            setStatus(pipe, TCBStatus.LAST_ACK);
+        } else {
+            setStatus(pipe, TCBStatus.FIN_WAIT_1);
         }
     }
 
-    public boolean isClosedTunnel(TcpPipe tunnel) {
-        return !tunnel.upActive && !tunnel.downActive;
-    }
-
-    private void doConnect(SocketChannel socketChannel) throws Exception {
+    private void doConnect(TcpPipe pipe) throws Exception {
 //        Log.i(TAG, String.format("tick %s", tick));
-        String type = (String) objAttrUtil.getAttr(socketChannel, "type");
-        TcpPipe pipe = (TcpPipe) objAttrUtil.getAttr(socketChannel, "pipe");
-        SelectionKey key = (SelectionKey) objAttrUtil.getAttr(socketChannel, "key");
-        if (type.equals("remote")) {
-            boolean b1 = socketChannel.finishConnect();
-//            Log.i(TAG, String.format("connect %s %s %s", pipe.destinationAddress, b1, System.currentTimeMillis() - pipe.timestamp));
-            pipe.timestamp = System.currentTimeMillis();
-            pipe.remoteOutBuffer.flip();
-            key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
-        }
-
+        boolean b1 = pipe.remote.finishConnect();
+//        Log.i(TAG, String.format("connect %s %s %s", pipe.destinationAddress, b1, System.currentTimeMillis() - pipe.timestamp));
+        pipe.timestamp = System.currentTimeMillis();
+        // OP_WRITE 用于写出连接建立前缓存的数据
+        pipe.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
     }
 
-    private void doWrite(SocketChannel socketChannel) throws Exception {
+    private void doWrite(TcpPipe pipe) throws Exception {
 //        Log.i(TAG, String.format("tick %s", tick));
-        TcpPipe pipe = (TcpPipe) objAttrUtil.getAttr(socketChannel, "pipe");
-        boolean flushed = tryFlushWrite(pipe, socketChannel);
+        boolean flushed = tryFlushWrite(pipe);
+        if (flushed && pipe.tcbStatus == TCBStatus.TIME_WAIT) {
+            releasePipe(pipe);
+            return;
+        }
         if (flushed) {
-            SelectionKey key1 = (SelectionKey) objAttrUtil.getAttr(socketChannel, "key");
-            key1.interestOps(SelectionKey.OP_READ);
+            pipe.key.interestOps(pipe.key.interestOps() & ~SelectionKey.OP_WRITE);
+            if (pipe.rcvWndAdvertised < REMOTE_OUT_LIMIT / 2 && pipe.upActive) {
+                // 之前通告的窗口较小，缓冲清空后主动更新窗口
+                sendTcpPack(pipe, (byte) TCPHeader.ACK, null);
+            }
         }
     }
 
 
     private void handleSockets() throws Exception {
-
-        while (selector.selectNow() > 0) {
-            for (Iterator it = selector.selectedKeys().iterator(); it.hasNext(); ) {
-                SelectionKey key = (SelectionKey) it.next();
-                it.remove();
-                TcpPipe pipe = (TcpPipe) objAttrUtil.getAttr(key.channel(), "pipe");
-                if (key.isValid()) {
-                    try {
-                        if (key.isAcceptable()) {
-                            doAccept((ServerSocketChannel) key.channel());
-                        } else if (key.isReadable()) {
-                            doRead((SocketChannel) key.channel());
-                        } else if (key.isConnectable()) {
-                            doConnect((SocketChannel) key.channel());
-                            System.currentTimeMillis();
-                        } else if (key.isWritable()) {
-                            doWrite((SocketChannel) key.channel());
-                            System.currentTimeMillis();
-                        }
-                    } catch (Exception e) {
-                        Log.e(TAG, e.getMessage(), e);
-                        if (pipe != null) {
-                            closeRst(pipe);
-                        }
+        for (Iterator it = selector.selectedKeys().iterator(); it.hasNext(); ) {
+            SelectionKey key = (SelectionKey) it.next();
+            it.remove();
+            TcpPipe pipe = (TcpPipe) key.attachment();
+            if (key.isValid()) {
+                try {
+                    if (key.isAcceptable()) {
+                        doAccept((ServerSocketChannel) key.channel());
+                    } else if (key.isReadable()) {
+                        doRead(pipe);
+                    } else if (key.isConnectable()) {
+                        doConnect(pipe);
+                        System.currentTimeMillis();
+                    } else if (key.isWritable()) {
+                        doWrite(pipe);
+                        System.currentTimeMillis();
+                    }
+                } catch (Exception e) {
+                    Log.e(TAG, e.getMessage(), e);
+                    if (pipe != null) {
+                        closeRst(pipe);
                     }
                 }
             }
@@ -442,14 +921,48 @@ public class NioSingleThreadTcpHandler implements Runnable {
     public void run() {
         try {
             selector = Selector.open();
-            while (true) {
+            while (!Thread.currentThread().isInterrupted()) {
+                // 先清除标记再取队列：此后 offer 的包要么在本轮被取到，要么会唤醒下面的 select()
+                wakeupPending.set(false);
+                loopMillis = nowMillis();
                 handleReadFromVpn();
+                resumeQueueWaiting();
+                long now = nowMillis();
+                long timeout = timingWheel.millisToNextTimer(now);
+                long idleTimeout = idleWheel.millisToNextTimer(now);
+                if (idleTimeout >= 0 && (timeout < 0 || idleTimeout < timeout)) {
+                    timeout = idleTimeout;
+                }
+                if (!queueWaitingPipes.isEmpty() && (timeout < 0 || timeout > QUEUE_RETRY_MS)) {
+                    timeout = QUEUE_RETRY_MS;
+                }
+                if (timeout < 0) {
+                    selector.select();
+                } else {
+                    selector.select(timeout);
+                }
+                loopMillis = nowMillis();
                 handleSockets();
+                timingWheel.advance(loopMillis);
+                idleWheel.advance(loopMillis);
                 tick += 1;
-                Thread.sleep(1);
             }
         } catch (Exception e) {
             Log.e(TAG, e.getMessage(), e);
+        } finally {
+            // 关闭所有远端连接，避免泄漏文件描述符
+            ArrayList<TcpPipe> remaining = new ArrayList<>(pipes.size());
+            pipes.valuesTo(remaining);
+            for (TcpPipe pipe : remaining) {
+                cleanPipe(pipe);
+            }
+            try {
+                if (selector != null) {
+                    selector.close();
+                }
+            } catch (Exception e) {
+                Log.e(TAG, e.getMessage(), e);
+            }
         }
     }
 }
@@ -0,0 +1,131 @@
+package io.github.nic562.screen.recorder.tools.bio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.ArrayDeque;
+
+import io.github.nic562.screen.recorder.tools.protocol.ByteBufferPool;
+
+/**
+ * 待写往远端的数据：由缓冲池中的块串成的链，按需增长，写出时使用 gathering write。
+ * 较大的载荷直接接管设备包的缓冲区作为块，不复制；较小的载荷复制到链尾块 limit 之后的空闲部分，
+ * 避免每个小包占用一整个缓冲区。已写出的数据不做 compact 移动，写完的块立即归还缓冲池。
+ * 每个块中 position 到 limit 之间是未写出的数据。非线程安全。
+ */
+public class OutboundChain {
+    // 单个块的大小，取缓冲池的中等规格
+    static final int CHUNK_SIZE = ByteBufferPool.MEDIUM_BUFFER_SIZE;
+    // 不超过此大小的载荷复制到链尾块中，不接管其缓冲区
+    static final int COPY_THRESHOLD = CHUNK_SIZE / 4;
+    // 一次 gathering write 最多的块数
+    private static final int MAX_GATHER = 16;
+
+    private final ByteBufferPool bufferPool;
+    private final ArrayDeque<ByteBuffer> chunks = new ArrayDeque<>();
+    private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+    private int size = 0;
+
+    public OutboundChain(ByteBufferPool bufferPool) {
+        this.bufferPool = bufferPool;
+    }
+
+    /**
+     * 把 buffer 中剩余的字节接到链尾
+     *
+     * @param buffer 来自缓冲池，position 到 limit 之间是数据
+     * @return 是否已接管 buffer；接管后调用方不能再使用或归还它，否则 buffer 仍归调用方
+     */
+    public boolean add(ByteBuffer buffer) {
+        int n = buffer.remaining();
+        if (n == 0) {
+            return false;
+        }
+        ByteBuffer tail = chunks.peekLast();
+        if (n <= COPY_THRESHOLD && tail != null && tail.capacity() - tail.limit() >= n) {
+            append(buffer);
+            return false;
+        }
+        chunks.addLast(buffer);
+        size += n;
+        return true;
+    }
+
+    /**
+     * 复制 src 中剩余的全部字节到链尾，src 的 position 移到 limit
+     */
+    public void append(ByteBuffer src) {
+        while (src.hasRemaining()) {
+            ByteBuffer tail = chunks.peekLast();
+            if (tail == null || tail.limit() == tail.capacity()) {
+                tail = bufferPool.acquire(CHUNK_SIZE);
+                tail.limit(0);
+                chunks.addLast(tail);
+            }
+            int n = Math.min(src.remaining(), tail.capacity() - tail.limit());
+            int srcLimit = src.limit();
+            int position = tail.position();
+            int end = tail.limit() + n;
+            src.limit(src.position() + n);
+            tail.limit(end);
+            tail.position(end - n);
+            tail.put(src);
+            tail.position(position);
+            src.limit(srcLimit);
+            size += n;
+        }
+    }
+
+    /**
+     * 尽量写出，直到写完或 channel 不再接收
+     *
+     * @return 写出的字节数
+     */
+    public long writeTo(GatheringByteChannel channel) throws IOException {
+        long total = 0;
+        while (!chunks.isEmpty()) {
+            int count = 0;
+            for (ByteBuffer chunk : chunks) {
+                gather[count++] = chunk;
+                if (count == MAX_GATHER) {
+                    break;
+                }
+            }
+            long n = channel.write(gather, 0, count);
+            for (int i = 0; i < count; i++) {
+                gather[i] = null;
+            }
+            if (n <= 0) {
+                break;
+            }
+            total += n;
+            size -= (int) n;
+            while (!chunks.isEmpty() && !chunks.peekFirst().hasRemaining()) {
+                bufferPool.release(chunks.pollFirst());
+            }
+        }
+        return total;
+    }
+
+    /**
+     * @return 未写出的字节数
+     */
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * 丢弃未写出的数据，归还所有块
+     */
+    public void clear() {
+        for (ByteBuffer chunk : chunks) {
+            bufferPool.release(chunk);
+        }
+        chunks.clear();
+        size = 0;
+    }
+}
@@ -0,0 +1,25 @@
+package io.github.nic562.screen.recorder.tools.bio;
+
+import android.net.VpnService;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.BlockingQueue;
+
+import io.github.nic562.screen.recorder.tools.protocol.ByteBufferPool;
+
+/**
+ * 代理引擎：为一次 VPN 会话创建 TCP、UDP 处理器。
+ * 处理器在 VPN 启动时创建，由调用方在各自的线程中运行，停止时中断这些线程
+ */
+public interface ProxyEngine {
+
+    TcpHandler createTcpHandler(BlockingQueue<ByteBuffer> networkToDeviceQueue,//用于写数据
+                                VpnService vpnService,//用于保护地址
+                                ByteBufferPool bufferPool//读写包的缓冲池
+    );
+
+    UdpHandler createUdpHandler(BlockingQueue<ByteBuffer> networkToDeviceQueue,//用于写数据
+                                VpnService vpnService,//用于保护地址
+                                ByteBufferPool bufferPool//读写包的缓冲池
+    );
+}
@@ -0,0 +1,69 @@
+package io.github.nic562.screen.recorder.tools.bio;
+
+import android.net.VpnService;
+
+import java.nio.ByteBuffer;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import io.github.nic562.screen.recorder.tools.protocol.ByteBufferPool;
+
+/**
+ * 内置的代理引擎，按名称（不区分大小写）从启动参数或配置中选择
+ */
+public enum ProxyEngines implements ProxyEngine {
+    /**
+     * 所有 TCP 连接由一个 selector 线程处理
+     */
+    NIO {
+        @Override
+        public TcpHandler createTcpHandler(BlockingQueue<ByteBuffer> networkToDeviceQueue, VpnService vpnService, ByteBufferPool bufferPool) {
+            return new NioSingleThreadTcpHandler(new ArrayBlockingQueue<>(QUEUE_CAPACITY), networkToDeviceQueue, vpnService, bufferPool);
+        }
+    },
+    /**
+     * TCP 连接按流分给多个 selector 线程，每核一个，最多 {@link #MAX_SHARDS} 个
+     */
+    SHARDED_NIO {
+        @Override
+        public TcpHandler createTcpHandler(BlockingQueue<ByteBuffer> networkToDeviceQueue, VpnService vpnService, ByteBufferPool bufferPool) {
+            return new ShardedNioTcpHandler(shardCount(), QUEUE_CAPACITY, networkToDeviceQueue, vpnService, bufferPool);
+        }
+    };
+
+    // 每个处理器（分片）输入队列的容量
+    public static final int QUEUE_CAPACITY = 1000;
+    // tun 的读写各只有一个线程，分片再多收益有限
+    public static final int MAX_SHARDS = 4;
+
+    static int shardCount() {
+        return Math.max(1, Math.min(MAX_SHARDS, Runtime.getRuntime().availableProcessors()));
+    }
+
+    @Override
+    public UdpHandler createUdpHandler(BlockingQueue<ByteBuffer> networkToDeviceQueue, VpnService vpnService, ByteBufferPool bufferPool) {
+        return new BioUdpHandler(new ArrayBlockingQueue<>(QUEUE_CAPACITY), networkToDeviceQueue, vpnService, bufferPool);
+    }
+
+    /**
+     * 多核时用 {@link #SHARDED_NIO}，否则用 {@link #NIO}
+     */
+    public static ProxyEngines defaultEngine() {
+        return shardCount() > 1 ? SHARDED_NIO : NIO;
+    }
+
+    /**
+     * @param name 引擎名称，为空或无法识别时返回 {@link #defaultEngine()}
+     */
+    public static ProxyEngines byName(String name) {
+        if (name != null && !name.trim().isEmpty()) {
+            try {
+                return valueOf(name.trim().toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                // 使用默认引擎
+            }
+        }
+        return defaultEngine();
+    }
+}
@@ -1,7 +0,0 @@
-package io.github.nic562.screen.recorder.tools.bio;
-
-public class ProxyException extends RuntimeException {
-    public ProxyException(String msg) {
-        super(msg);
-    }
-}
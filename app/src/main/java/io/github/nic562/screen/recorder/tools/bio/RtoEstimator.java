@@ -0,0 +1,62 @@
+package io.github.nic562.screen.recorder.tools.bio;
+
+/**
+ * 重传超时（RTO）估算，RFC 6298。
+ * 设备与代理之间是本机 tun，RTT 很小，下限取 200ms（与 Linux 一致）而不是 RFC 建议的 1s。
+ */
+public class RtoEstimator {
+    public static final long INITIAL_RTO = 1000;
+    public static final long MIN_RTO = 200;
+    public static final long MAX_RTO = 60000;
+    // 时钟粒度 G
+    private static final long GRANULARITY = 10;
+
+    private long srtt = -1;
+    private long rttvar;
+    private long baseRto = INITIAL_RTO;
+    private int backoffShift = 0;
+
+    /**
+     * 记录一次 RTT 测量，重传过的数据段不应测量（Karn 算法）
+     */
+    public void sample(long rttMillis) {
+        long r = Math.max(0, rttMillis);
+        if (srtt < 0) {
+            srtt = r;
+            rttvar = r / 2;
+        } else {
+            rttvar = (3 * rttvar + Math.abs(srtt - r)) / 4;
+            srtt = (7 * srtt + r) / 8;
+        }
+        baseRto = clamp(srtt + Math.max(GRANULARITY, 4 * rttvar));
+        backoffShift = 0;
+    }
+
+    /**
+     * 超时重传后 RTO 加倍
+     */
+    public void backoff() {
+        if (rto() < MAX_RTO) {
+            backoffShift++;
+        }
+    }
+
+    /**
+     * 有新数据被确认说明连接已恢复，不再等待新的 RTT 测量才撤销退避（与 Linux 一致）
+     */
+    public void resetBackoff() {
+        backoffShift = 0;
+    }
+
+    public long rto() {
+        return clamp(baseRto << backoffShift);
+    }
+
+    public long srtt() {
+        return srtt;
+    }
+
+    private static long clamp(long value) {
+        return Math.min(MAX_RTO, Math.max(MIN_RTO, value));
+    }
+}
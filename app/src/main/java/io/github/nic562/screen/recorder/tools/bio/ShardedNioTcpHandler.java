@@ -0,0 +1,80 @@
+package io.github.nic562.screen.recorder.tools.bio;
+
+import android.net.VpnService;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import io.github.nic562.screen.recorder.tools.protocol.ByteBufferPool;
+import io.github.nic562.screen.recorder.tools.protocol.FlowKey;
+import io.github.nic562.screen.recorder.tools.protocol.Packet;
+
+/**
+ * 多 reactor 的 TCP 代理：按连接把包分给 N 个 {@link NioSingleThreadTcpHandler}，
+ * 每个分片有自己的线程、Selector、连接表和输入队列，同一连接始终由同一个线程处理，无需加锁。
+ * 所有分片共用 networkToDeviceQueue 和缓冲池。
+ */
+public class ShardedNioTcpHandler implements TcpHandler {
+
+    private static final String TAG = ShardedNioTcpHandler.class.getSimpleName();
+
+    private final NioSingleThreadTcpHandler[] shards;
+
+    public ShardedNioTcpHandler(int shardCount,
+                                int queueCapacity,//每个分片的输入队列容量
+                                BlockingQueue<ByteBuffer> networkToDeviceQueue,//用于写数据
+                                VpnService vpnService,//用于保护地址
+                                ByteBufferPool bufferPool//读写包的缓冲池
+    ) {
+        if (shardCount <= 0) {
+            throw new IllegalArgumentException("shardCount must be positive");
+        }
+        shards = new NioSingleThreadTcpHandler[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = new NioSingleThreadTcpHandler(new ArrayBlockingQueue<>(queueCapacity),
+                    networkToDeviceQueue, vpnService, bufferPool);
+        }
+    }
+
+    public int shardCount() {
+        return shards.length;
+    }
+
+    /**
+     * 连接所在的分片。分片内的连接表用哈希的低位定位，这里取高位（乘法映射），
+     * 避免同一分片的键在表中挤在少数槽位
+     */
+    int shardOf(long flowKey) {
+        return (int) (((FlowKey.hash(flowKey) & 0xFFFFFFFFL) * shards.length) >>> 32);
+    }
+
+    @Override
+    public boolean offer(Packet packet) {
+        return shards[shardOf(packet.flowKey)].offer(packet);
+    }
+
+    /**
+     * 在各自的线程中运行所有分片，直到当前线程被中断
+     */
+    @Override
+    public void run() {
+        Thread[] threads = new Thread[shards.length];
+        for (int i = 0; i < shards.length; i++) {
+            threads[i] = new Thread(shards[i], TAG + "-" + i);
+            threads[i].start();
+        }
+        try {
+            for (Thread t : threads) {
+                t.join();
+            }
+        } catch (InterruptedException e) {
+            Log.w(TAG, "interrupted");
+        } finally {
+            for (Thread t : threads) {
+                t.interrupt();
+            }
+        }
+    }
+}
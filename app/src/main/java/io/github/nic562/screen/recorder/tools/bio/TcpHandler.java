@@ -0,0 +1,17 @@
+package io.github.nic562.screen.recorder.tools.bio;
+
+import io.github.nic562.screen.recorder.tools.protocol.Packet;
+
+/**
+ * TCP 代理：TunnelThread 把设备发出的 TCP 包交给 {@link #offer(Packet)}，
+ * 处理线程执行 {@link #run()}，把网络返回的包放入 networkToDeviceQueue
+ */
+public interface TcpHandler extends Runnable {
+
+    /**
+     * 投递设备发出的 TCP 包，可在任意线程调用
+     *
+     * @return 队列已满时返回 false，包由调用方处理
+     */
+    boolean offer(Packet packet);
+}
@@ -0,0 +1,25 @@
+package io.github.nic562.screen.recorder.tools.bio;
+
+import io.github.nic562.screen.recorder.tools.protocol.DnsResponseParser;
+import io.github.nic562.screen.recorder.tools.protocol.Packet;
+
+/**
+ * UDP 代理：TunnelThread 把设备发出的 UDP 包交给 {@link #offer(Packet)}，
+ * 处理线程执行 {@link #run()}，把网络返回的包放入 networkToDeviceQueue
+ */
+public interface UdpHandler extends Runnable {
+
+    /**
+     * 投递设备发出的 UDP 包，可在任意线程调用
+     *
+     * @return 队列已满时返回 false，包由调用方处理
+     */
+    boolean offer(Packet packet);
+
+    /**
+     * 设置 DNS 应答的监听器：接收线程解析经过的 DNS 应答，把其中的 IPv4 地址回调给它
+     *
+     * @param listener 可为 null，表示不解析
+     */
+    void setDnsListener(DnsResponseParser.Listener listener);
+}
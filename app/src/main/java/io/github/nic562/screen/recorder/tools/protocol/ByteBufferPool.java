@@ -0,0 +1,105 @@
+package io.github.nic562.screen.recorder.tools.protocol;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Bounded, size-classed pool of direct {@link ByteBuffer}s for the VPN tunnel read/write path.
+ * <p>
+ * A buffer handed out by {@link #acquire(int)} is owned by whoever holds it until it is passed on
+ * (e.g. through a queue) or given back with {@link #release(ByteBuffer)}. Releasing is optional:
+ * a buffer that is never released is simply collected, and a full size class drops whatever is
+ * released beyond its capacity, so the pool never holds more than the configured number of buffers.
+ * <p>
+ * Thread-safe, buffers may be released on a different thread than the one that acquired them.
+ * Releasing the same buffer twice would let two later acquirers share it; with assertions enabled
+ * (e.g. in unit tests) that is caught on the second release.
+ */
+public class ByteBufferPool {
+    /**
+     * Header-only segments: SYN, ACK, FIN, RST.
+     */
+    public static final int SMALL_BUFFER_SIZE = 128;
+    /**
+     * One MTU-sized packet.
+     */
+    public static final int MEDIUM_BUFFER_SIZE = 2048;
+    public static final int LARGE_BUFFER_SIZE = Packet.DEF_BUFFER_SIZE;
+
+    private final int[] classSizes;
+    private final List<BlockingQueue<ByteBuffer>> freeBuffers;
+
+    public ByteBufferPool() {
+        this(new int[]{SMALL_BUFFER_SIZE, MEDIUM_BUFFER_SIZE, LARGE_BUFFER_SIZE}, new int[]{512, 512, 128});
+    }
+
+    /**
+     * @param classSizes  buffer capacity of each size class, ascending
+     * @param maxRetained max number of idle buffers kept for each size class
+     */
+    public ByteBufferPool(int[] classSizes, int[] maxRetained) {
+        if (classSizes.length != maxRetained.length) {
+            throw new IllegalArgumentException("classSizes and maxRetained must have the same length");
+        }
+        this.classSizes = classSizes.clone();
+        this.freeBuffers = new ArrayList<>(classSizes.length);
+        for (int i = 0; i < classSizes.length; i++) {
+            if (i > 0 && classSizes[i] <= classSizes[i - 1]) {
+                throw new IllegalArgumentException("classSizes must be ascending");
+            }
+            freeBuffers.add(new ArrayBlockingQueue<>(maxRetained[i]));
+        }
+    }
+
+    /**
+     * @return a cleared buffer with at least {@code size} bytes of capacity.
+     * Requests larger than the biggest size class get an unpooled heap buffer.
+     */
+    public ByteBuffer acquire(int size) {
+        for (int i = 0; i < classSizes.length; i++) {
+            if (size <= classSizes[i]) {
+                ByteBuffer buffer = freeBuffers.get(i).poll();
+                if (buffer == null) {
+                    return ByteBuffer.allocateDirect(classSizes[i]);
+                }
+                buffer.clear();
+                return buffer;
+            }
+        }
+        return ByteBuffer.allocate(size);
+    }
+
+    /**
+     * Gives a buffer back to the pool. Buffers that were not acquired from a pool are ignored.
+     * The caller must not touch the buffer afterwards.
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer == null || !buffer.isDirect()) {
+            return;
+        }
+        int capacity = buffer.capacity();
+        for (int i = 0; i < classSizes.length; i++) {
+            if (capacity == classSizes[i]) {
+                BlockingQueue<ByteBuffer> free = freeBuffers.get(i);
+                assert !containsSame(free, buffer) : "buffer released twice";
+                free.offer(buffer);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Identity lookup, {@link ByteBuffer#equals(Object)} compares contents.
+     */
+    private static boolean containsSame(BlockingQueue<ByteBuffer> queue, ByteBuffer buffer) {
+        for (ByteBuffer b : queue) {
+            if (b == buffer) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
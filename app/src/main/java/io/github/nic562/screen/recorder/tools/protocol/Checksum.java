@@ -0,0 +1,141 @@
+package io.github.nic562.screen.recorder.tools.protocol;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Internet checksum (RFC 1071) engine for IPv4/TCP/UDP headers.
+ * <p>
+ * The full-sum path reads the data 8 bytes at a time with {@link ByteBuffer#getLong(int)} and
+ * folds the carries at the end, instead of one {@code getShort()} per 16-bit word.
+ * <p>
+ * When only a few header words change (sequence/ack numbers, flags, window, IP identification,
+ * lengths) the checksum can be patched in place with the incremental form of RFC 1624
+ * ({@code HC' = ~(~HC + ~m + m')}) without touching the rest of the packet.
+ * <p>
+ * All offsets are absolute and the buffer must be in big-endian (network) order.
+ */
+public final class Checksum {
+
+    private Checksum() {
+
+    }
+
+    /**
+     * Adds the {@code length} bytes at {@code offset} to an unfolded one's complement sum.
+     *
+     * @param sum unfolded sum to add to, 0 to start a new one
+     * @return the unfolded sum, pass it to {@link #fold(long)} to get the 16-bit result
+     */
+    public static long sum(ByteBuffer buffer, int offset, int length, long sum) {
+        int end = offset + length;
+        int i = offset;
+        // each 64-bit word contributes its two 32-bit halves, the accumulator cannot overflow
+        // before 2^31 words so there is no per-step carry handling.
+        for (; i + 8 <= end; i += 8) {
+            long word = buffer.getLong(i);
+            sum += (word >>> 32) + (word & 0xFFFFFFFFL);
+        }
+        if (i + 4 <= end) {
+            sum += buffer.getInt(i) & 0xFFFFFFFFL;
+            i += 4;
+        }
+        if (i + 2 <= end) {
+            sum += buffer.getShort(i) & 0xFFFF;
+            i += 2;
+        }
+        if (i < end) {
+            sum += (buffer.get(i) & 0xFF) << 8;
+        }
+        return sum;
+    }
+
+    /**
+     * Folds an unfolded sum into 16 bits (still not complemented).
+     */
+    public static int fold(long sum) {
+        while ((sum >>> 16) != 0) {
+            sum = (sum & 0xFFFF) + (sum >>> 16);
+        }
+        return (int) sum;
+    }
+
+    /**
+     * Unfolded sum of the TCP/UDP pseudo header.
+     *
+     * @param sourceAddress      IPv4 source address, big-endian
+     * @param destinationAddress IPv4 destination address, big-endian
+     * @param transportLength    transport header plus payload length
+     */
+    public static long pseudoHeaderSum(int sourceAddress, int destinationAddress, int protocol, int transportLength) {
+        return (sourceAddress >>> 16) + (sourceAddress & 0xFFFF)
+                + (destinationAddress >>> 16) + (destinationAddress & 0xFFFF)
+                + protocol + transportLength;
+    }
+
+    /**
+     * Recomputes the IPv4 header checksum of the packet at {@code ipOffset} and writes it in place.
+     *
+     * @return the new checksum
+     */
+    public static int updateIp4(ByteBuffer buffer, int ipOffset) {
+        int headerLength = (buffer.get(ipOffset) & 0x0F) << 2;
+        buffer.putShort(ipOffset + 10, (short) 0);
+        int checksum = ~fold(sum(buffer, ipOffset, headerLength, 0)) & 0xFFFF;
+        buffer.putShort(ipOffset + 10, (short) checksum);
+        return checksum;
+    }
+
+    /**
+     * Recomputes the TCP checksum of the segment at {@code tcpOffset} and writes it in place.
+     * Addresses for the pseudo header are read from the IPv4 header at {@code ipOffset}.
+     *
+     * @param tcpLength TCP header plus payload length
+     * @return the new checksum
+     */
+    public static int updateTcp(ByteBuffer buffer, int ipOffset, int tcpOffset, int tcpLength) {
+        buffer.putShort(tcpOffset + 16, (short) 0);
+        long sum = pseudoHeaderSum(buffer.getInt(ipOffset + 12), buffer.getInt(ipOffset + 16),
+                Packet.IP4Header.TransportProtocol.TCP.getNumber(), tcpLength);
+        int checksum = ~fold(sum(buffer, tcpOffset, tcpLength, sum)) & 0xFFFF;
+        buffer.putShort(tcpOffset + 16, (short) checksum);
+        return checksum;
+    }
+
+    /**
+     * RFC 1624 eqn. 3: the checksum after one 16-bit word changes from {@code oldWord} to {@code newWord}.
+     */
+    public static int adjust(int checksum, int oldWord, int newWord) {
+        long sum = (~checksum & 0xFFFF) + (~oldWord & 0xFFFF) + (newWord & 0xFFFF);
+        return ~fold(sum) & 0xFFFF;
+    }
+
+    /**
+     * Same as {@link #adjust(int, int, int)} for a 32-bit field (two 16-bit words).
+     */
+    public static int adjust32(int checksum, int oldValue, int newValue) {
+        long sum = (~checksum & 0xFFFF)
+                + (~oldValue >>> 16 & 0xFFFF) + (~oldValue & 0xFFFF)
+                + (newValue >>> 16) + (newValue & 0xFFFF);
+        return ~fold(sum) & 0xFFFF;
+    }
+
+    /**
+     * Writes a 16-bit field and patches the checksum at {@code checksumOffset} incrementally.
+     */
+    public static void putShort(ByteBuffer buffer, int offset, short value, int checksumOffset) {
+        int old = buffer.getShort(offset) & 0xFFFF;
+        int checksum = buffer.getShort(checksumOffset) & 0xFFFF;
+        buffer.putShort(offset, value);
+        buffer.putShort(checksumOffset, (short) adjust(checksum, old, value & 0xFFFF));
+    }
+
+    /**
+     * Writes a 32-bit field and patches the checksum at {@code checksumOffset} incrementally.
+     */
+    public static void putInt(ByteBuffer buffer, int offset, int value, int checksumOffset) {
+        int old = buffer.getInt(offset);
+        int checksum = buffer.getShort(checksumOffset) & 0xFFFF;
+        buffer.putInt(offset, value);
+        buffer.putShort(checksumOffset, (short) adjust32(checksum, old, value));
+    }
+}
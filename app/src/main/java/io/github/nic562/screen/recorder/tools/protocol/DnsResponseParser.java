@@ -0,0 +1,150 @@
+package io.github.nic562.screen.recorder.tools.protocol;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Extracts the IPv4 answers (A records) of a DNS response (RFC 1035) read straight from a packet buffer.
+ * <p>
+ * Every address is reported under the name that was asked for in the question, so a chain of CNAMEs
+ * still labels the CDN address with the host the app looked up. Names of answer records are skipped
+ * without being decoded; the question name is decoded into a reused {@link StringBuilder} and turned
+ * into a {@link String} at most once per response, and only when the response carries an A record.
+ * Malformed or truncated messages are ignored.
+ * <p>
+ * Not thread-safe, keep one instance per thread.
+ */
+public final class DnsResponseParser {
+
+    public interface Listener {
+        /**
+         * @param address IPv4 address, big-endian
+         */
+        void onAddress(String name, int address, long ttlSeconds);
+    }
+
+    private static final int HEADER_SIZE = 12;
+    private static final int FLAG_RESPONSE = 0x8000;
+    private static final int RCODE_MASK = 0x000F;
+    private static final int TYPE_A = 1;
+    private static final int CLASS_IN = 1;
+    private static final int MAX_NAME_LENGTH = 255;
+    // compression pointers followed while decoding one name, guards against loops
+    private static final int MAX_POINTERS = 16;
+
+    private final StringBuilder name = new StringBuilder(64);
+
+    /**
+     * @param offset start of the DNS message (the UDP payload) in {@code buffer}, absolute
+     * @return number of addresses passed to the listener
+     */
+    public int parse(ByteBuffer buffer, int offset, int length, Listener listener) {
+        int end = offset + length;
+        if (length < HEADER_SIZE || end > buffer.limit()) {
+            return 0;
+        }
+        int flags = buffer.getShort(offset + 2) & 0xFFFF;
+        if ((flags & FLAG_RESPONSE) == 0 || (flags & RCODE_MASK) != 0) {
+            return 0;
+        }
+        int questions = buffer.getShort(offset + 4) & 0xFFFF;
+        int answers = buffer.getShort(offset + 6) & 0xFFFF;
+        if (questions != 1 || answers == 0) {
+            return 0;
+        }
+        int questionName = offset + HEADER_SIZE;
+        int position = skipName(buffer, questionName, end);
+        // QTYPE, QCLASS
+        if (position < 0 || position + 4 > end) {
+            return 0;
+        }
+        position += 4;
+        String host = null;
+        int count = 0;
+        for (int i = 0; i < answers; i++) {
+            position = skipName(buffer, position, end);
+            // TYPE, CLASS, TTL, RDLENGTH
+            if (position < 0 || position + 10 > end) {
+                break;
+            }
+            int type = buffer.getShort(position) & 0xFFFF;
+            int recordClass = buffer.getShort(position + 2) & 0xFFFF;
+            long ttl = buffer.getInt(position + 4) & 0xFFFFFFFFL;
+            int dataLength = buffer.getShort(position + 8) & 0xFFFF;
+            position += 10;
+            if (position + dataLength > end) {
+                break;
+            }
+            if (type == TYPE_A && recordClass == CLASS_IN && dataLength == 4) {
+                if (host == null) {
+                    host = readName(buffer, offset, questionName, end);
+                    if (host == null) {
+                        break;
+                    }
+                }
+                listener.onAddress(host, buffer.getInt(position), ttl);
+                count++;
+            }
+            position += dataLength;
+        }
+        return count;
+    }
+
+    /**
+     * @return position after the name, -1 if malformed
+     */
+    private static int skipName(ByteBuffer buffer, int position, int end) {
+        while (position < end) {
+            int length = buffer.get(position) & 0xFF;
+            if ((length & 0xC0) == 0xC0) {
+                return position + 2 <= end ? position + 2 : -1;
+            }
+            if ((length & 0xC0) != 0) {
+                return -1;
+            }
+            if (length == 0) {
+                return position + 1;
+            }
+            position += 1 + length;
+        }
+        return -1;
+    }
+
+    /**
+     * Decodes the name at {@code position}, following compression pointers, in lower case.
+     *
+     * @param message start of the DNS message, pointers are relative to it
+     * @return null if malformed
+     */
+    private String readName(ByteBuffer buffer, int message, int position, int end) {
+        name.setLength(0);
+        int pointers = 0;
+        while (position < end) {
+            int length = buffer.get(position) & 0xFF;
+            if ((length & 0xC0) == 0xC0) {
+                if (position + 2 > end || ++pointers > MAX_POINTERS) {
+                    return null;
+                }
+                position = message + ((length & 0x3F) << 8 | buffer.get(position + 1) & 0xFF);
+                continue;
+            }
+            if ((length & 0xC0) != 0 || position + 1 + length > end) {
+                return null;
+            }
+            if (length == 0) {
+                return name.toString();
+            }
+            if (name.length() + length + 1 > MAX_NAME_LENGTH) {
+                return null;
+            }
+            if (name.length() > 0) {
+                name.append('.');
+            }
+            for (int i = position + 1; i <= position + length; i++) {
+                char c = (char) (buffer.get(i) & 0xFF);
+                name.append(c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c);
+            }
+            position += 1 + length;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,53 @@
+package io.github.nic562.screen.recorder.tools.protocol;
+
+/**
+ * Flow key packed into a primitive {@code long}: IPv4 destination address in the high 32 bits,
+ * then destination port and source port, 16 bits each.
+ * <p>
+ * The source address is always the tun interface and the protocol is implied by the handler owning
+ * the table, so these three fields identify a flow of the VPN. Building a key allocates nothing.
+ */
+public final class FlowKey {
+
+    private FlowKey() {
+
+    }
+
+    public static long of(int destinationAddress, int destinationPort, int sourcePort) {
+        return (destinationAddress & 0xFFFFFFFFL) << 32
+                | (destinationPort & 0xFFFFL) << 16
+                | (sourcePort & 0xFFFFL);
+    }
+
+    /**
+     * Key of a packet travelling from the device to the network.
+     */
+    public static long of(PacketView view) {
+        return of(view.destinationAddress(), view.destinationPort(), view.sourcePort());
+    }
+
+    public static int destinationAddress(long key) {
+        return (int) (key >>> 32);
+    }
+
+    public static int destinationPort(long key) {
+        return (int) (key >>> 16) & 0xFFFF;
+    }
+
+    public static int sourcePort(long key) {
+        return (int) key & 0xFFFF;
+    }
+
+    /**
+     * Well mixed 32-bit hash of a key, suitable for power-of-two tables.
+     */
+    public static int hash(long key) {
+        key *= 0x9E3779B97F4A7C15L;
+        return (int) (key ^ (key >>> 32));
+    }
+
+    public static String toString(long key) {
+        return PacketView.addressToString(destinationAddress(key)) + ":" +
+                destinationPort(key) + ":" + sourcePort(key);
+    }
+}
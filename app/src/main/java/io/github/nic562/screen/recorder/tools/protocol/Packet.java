@@ -3,7 +3,6 @@ package io.github.nic562.screen.recorder.tools.protocol;
 
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
-import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -13,6 +12,10 @@ import java.util.concurrent.atomic.AtomicInteger;
 // TODO: Reduce public mutability
 public class Packet {
     public static final int DEF_BUFFER_SIZE = 16384;
+    /**
+     * MTU of the tun interface, every packet written to it must fit.
+     */
+    public static final int MTU = 1500;
     public static final int IP4_HEADER_SIZE = 20;
     public static final int TCP_HEADER_SIZE = 20;
     public static final int UDP_HEADER_SIZE = 8;
@@ -20,36 +23,102 @@ public class Packet {
 
     private static final AtomicInteger globalPackId = new AtomicInteger();
     public int packId = globalPackId.addAndGet(1);
+    /**
+     * Header objects. For packets parsed from a buffer they are only materialized on demand,
+     * use {@link #getIp4Header()}, {@link #getTcpHeader()} and {@link #getUdpHeader()} to read them,
+     * or better, read the fields through {@link #view(PacketView)} which does not allocate.
+     */
     public IP4Header ip4Header;
     public TCPHeader tcpHeader;
     public UDPHeader udpHeader;
     public ByteBuffer backingBuffer;
+    /**
+     * For packets parsed from a buffer: the buffer and the offset of the IP header. They are kept even
+     * after {@link #backingBuffer} has been replaced, and stay readable until the buffer goes back to
+     * the pool. Read the fields with {@link #view(PacketView)}.
+     */
+    private final ByteBuffer received;
+    public final int ipOffset;
+    /**
+     * {@link FlowKey} of a parsed TCP or UDP packet, computed once by the thread that read it.
+     */
+    public final long flowKey;
 
     public boolean isTCP;
     public boolean isUDP;
 
     public Packet() {
+        this.received = null;
+        this.ipOffset = 0;
+        this.flowKey = 0;
+    }
 
+    /**
+     * Same as {@link #Packet(ByteBuffer, PacketView)} with a throwaway view, for code off the hot path.
+     */
+    public Packet(ByteBuffer buffer) {
+        this(buffer, new PacketView());
     }
 
-    public Packet(ByteBuffer buffer) throws UnknownHostException {
-        this.ip4Header = new IP4Header(buffer);
-        if (this.ip4Header.protocol == IP4Header.TransportProtocol.TCP) {
-            this.tcpHeader = new TCPHeader(buffer);
-            this.isTCP = true;
-        } else if (ip4Header.protocol == IP4Header.TransportProtocol.UDP) {
-            this.udpHeader = new UDPHeader(buffer);
-            this.isUDP = true;
+    /**
+     * Wraps a received packet without decoding its headers.
+     * The buffer is left positioned at the start of the transport payload.
+     *
+     * @param view scratch view owned by the calling thread, re-pointed at the buffer and not retained,
+     *             so that a reader thread can reuse one view for every packet
+     * @throws IllegalArgumentException if the buffer fails {@link PacketView#isValid(ByteBuffer)}
+     */
+    public Packet(ByteBuffer buffer, PacketView view) {
+        if (!PacketView.isValid(buffer)) {
+            throw new IllegalArgumentException("malformed packet");
         }
+        view.wrap(buffer);
+        this.received = buffer;
+        this.ipOffset = buffer.position();
+        this.isTCP = view.isTCP();
+        this.isUDP = view.isUDP();
+        this.flowKey = isTCP || isUDP ? FlowKey.of(view) : 0;
         this.backingBuffer = buffer;
+        buffer.position(view.payloadOffset());
+    }
+
+    /**
+     * Points the caller's view at this packet's headers; the consuming thread keeps one view and
+     * re-wraps it for each packet instead of every packet carrying its own.
+     *
+     * @return {@code view}, or null for packets that were not parsed from a buffer
+     */
+    public PacketView view(PacketView view) {
+        return received == null ? null : view.wrap(received, ipOffset);
+    }
+
+    public IP4Header getIp4Header() {
+        if (ip4Header == null && received != null) {
+            ip4Header = new IP4Header(view(new PacketView()));
+        }
+        return ip4Header;
+    }
+
+    public TCPHeader getTcpHeader() {
+        if (tcpHeader == null && received != null && isTCP) {
+            tcpHeader = new TCPHeader(view(new PacketView()));
+        }
+        return tcpHeader;
+    }
+
+    public UDPHeader getUdpHeader() {
+        if (udpHeader == null && received != null && isUDP) {
+            udpHeader = new UDPHeader(view(new PacketView()));
+        }
+        return udpHeader;
     }
 
     @Override
     public String toString() {
         final StringBuilder sb = new StringBuilder("Packet{");
-        sb.append("ip4Header=").append(ip4Header);
-        if (isTCP) sb.append(", tcpHeader=").append(tcpHeader);
-        else if (isUDP) sb.append(", udpHeader=").append(udpHeader);
+        sb.append("ip4Header=").append(getIp4Header());
+        if (isTCP) sb.append(", tcpHeader=").append(getTcpHeader());
+        else if (isUDP) sb.append(", udpHeader=").append(getUdpHeader());
         sb.append(", payloadSize=").append(backingBuffer.limit() - backingBuffer.position());
         sb.append('}');
         return sb.toString();
@@ -57,6 +126,20 @@ public class Packet {
 
 
     public void updateTCPBuffer(ByteBuffer buffer, byte flags, long sequenceNum, long ackNum, int payloadSize) {
+        updateTCPBuffer(buffer, flags, sequenceNum, ackNum, tcpHeader.window, null, payloadSize);
+    }
+
+    /**
+     * Same as {@link #updateTCPBuffer(ByteBuffer, byte, long, long, int)} with an explicit window and
+     * TCP options. The options are written right after the fixed TCP header and must already be padded
+     * to a multiple of 4 bytes; a payload, if any, must sit behind them.
+     *
+     * @param options may be null
+     */
+    public void updateTCPBuffer(ByteBuffer buffer, byte flags, long sequenceNum, long ackNum, int window,
+                                byte[] options, int payloadSize) {
+        int optionsLength = options == null ? 0 : options.length;
+        tcpHeader.window = window;
         buffer.position(0);
         fillHeader(buffer);
         backingBuffer = buffer;
@@ -70,14 +153,19 @@ public class Packet {
         tcpHeader.acknowledgementNumber = ackNum;
         backingBuffer.putInt(IP4_HEADER_SIZE + 8, (int) ackNum);
 
-        // Reset header size, since we don't need options
-        byte dataOffset = (byte) (TCP_HEADER_SIZE << 2);
+        // data offset in 32-bit words, in the high nibble
+        int tcpHeaderLength = TCP_HEADER_SIZE + optionsLength;
+        byte dataOffset = (byte) (tcpHeaderLength << 2);
         tcpHeader.dataOffsetAndReserved = dataOffset;
+        tcpHeader.headerLength = tcpHeaderLength;
         backingBuffer.put(IP4_HEADER_SIZE + 12, dataOffset);
+        for (int i = 0; i < optionsLength; i++) {
+            backingBuffer.put(IP4_HEADER_SIZE + TCP_HEADER_SIZE + i, options[i]);
+        }
 
-        updateTCPChecksum(payloadSize);
+        updateTCPChecksum(optionsLength + payloadSize);
 
-        int ip4TotalLength = IP4_HEADER_SIZE + TCP_HEADER_SIZE + payloadSize;
+        int ip4TotalLength = IP4_HEADER_SIZE + tcpHeaderLength + payloadSize;
         backingBuffer.putShort(2, (short) ip4TotalLength);
         ip4Header.totalLength = ip4TotalLength;
 
@@ -104,59 +192,60 @@ public class Packet {
         updateIP4Checksum();
     }
 
-    private void updateIP4Checksum() {
-        ByteBuffer buffer = backingBuffer.duplicate();
-        buffer.position(0);
-
-        // Clear previous checksum
-        buffer.putShort(10, (short) 0);
+    /**
+     * Builds the IPv4 and UDP headers of an empty datagram from {@code source} to {@code dest}, to be
+     * copied in front of every datagram of that flow by {@link #writeUDPHeader}.
+     */
+    public static ByteBuffer buildUdpHeaderTemplate(InetSocketAddress source, InetSocketAddress dest) {
+        ByteBuffer template = ByteBuffer.allocate(IP4_HEADER_SIZE + UDP_HEADER_SIZE);
+        buildUdpPacket(source, dest, 0).updateUDPBuffer(template, 0);
+        template.clear();
+        return template;
+    }
 
-        int ipLength = ip4Header.headerLength;
-        int sum = 0;
-        while (ipLength > 0) {
-            sum += BitUtils.getUnsignedShort(buffer.getShort());
-            ipLength -= 2;
+    /**
+     * Copies a template from {@link #buildUdpHeaderTemplate} to the start of {@code buffer} and patches
+     * the lengths and the IP identification in place. The IPv4 checksum is adjusted incrementally
+     * (RFC 1624); the UDP checksum stays disabled, as in {@link #updateUDPBuffer}.
+     * Position and limit of {@code buffer} are not changed.
+     *
+     * @param buffer a datagram whose payload already sits at {@code IP4_HEADER_SIZE + UDP_HEADER_SIZE}
+     */
+    public static void writeUDPHeader(ByteBuffer buffer, ByteBuffer template, int ipId, int payloadSize) {
+        for (int i = 0; i < IP4_HEADER_SIZE + UDP_HEADER_SIZE; i += 4) {
+            buffer.putInt(i, template.getInt(i));
         }
-        while (sum >> 16 > 0)
-            sum = (sum & 0xFFFF) + (sum >> 16);
+        int udpTotalLength = UDP_HEADER_SIZE + payloadSize;
+        buffer.putShort(IP4_HEADER_SIZE + 4, (short) udpTotalLength);
+        Checksum.putShort(buffer, 2, (short) (IP4_HEADER_SIZE + udpTotalLength), 10);
+        Checksum.putShort(buffer, 4, (short) ipId, 10);
+    }
 
-        sum = ~sum;
-        ip4Header.headerChecksum = sum;
-        backingBuffer.putShort(10, (short) sum);
+    private void updateIP4Checksum() {
+        ip4Header.headerChecksum = Checksum.updateIp4(backingBuffer, 0);
     }
 
     private void updateTCPChecksum(int payloadSize) {
-        int sum = 0;
-        int tcpLength = TCP_HEADER_SIZE + payloadSize;
-
-        // Calculate pseudo-header checksum
-        ByteBuffer buffer = ByteBuffer.wrap(ip4Header.sourceAddress.getAddress());
-        sum = BitUtils.getUnsignedShort(buffer.getShort()) + BitUtils.getUnsignedShort(buffer.getShort());
-
-        buffer = ByteBuffer.wrap(ip4Header.destinationAddress.getAddress());
-        sum += BitUtils.getUnsignedShort(buffer.getShort()) + BitUtils.getUnsignedShort(buffer.getShort());
-
-        sum += IP4Header.TransportProtocol.TCP.getNumber() + tcpLength;
-
-        buffer = backingBuffer.duplicate();
-        // Clear previous checksum
-        buffer.putShort(IP4_HEADER_SIZE + 16, (short) 0);
-
-        // Calculate TCP segment checksum
-        buffer.position(IP4_HEADER_SIZE);
-        while (tcpLength > 1) {
-            sum += BitUtils.getUnsignedShort(buffer.getShort());
-            tcpLength -= 2;
-        }
-        if (tcpLength > 0)
-            sum += BitUtils.getUnsignedByte(buffer.get()) << 8;
-
-        while (sum >> 16 > 0)
-            sum = (sum & 0xFFFF) + (sum >> 16);
+        tcpHeader.checksum = Checksum.updateTcp(backingBuffer, 0, IP4_HEADER_SIZE, TCP_HEADER_SIZE + payloadSize);
+    }
 
-        sum = ~sum;
-        tcpHeader.checksum = sum;
-        backingBuffer.putShort(IP4_HEADER_SIZE + 16, (short) sum);
+    /**
+     * Rewrites sequence number, acknowledgement number, flags and window of a TCP packet that already
+     * carries valid checksums, e.g. one built by {@link #updateTCPBuffer} and kept for re-sending.
+     * The TCP checksum is patched incrementally (RFC 1624) so the payload is never re-read; the IPv4
+     * header is not affected by these fields.
+     *
+     * @param buffer a whole IPv4 packet starting at offset 0
+     */
+    public static void rewriteTCPHeader(ByteBuffer buffer, byte flags, long sequenceNum, long ackNum, int window) {
+        int tcpOffset = (buffer.get(0) & 0x0F) << 2;
+        int checksumOffset = tcpOffset + 16;
+        Checksum.putInt(buffer, tcpOffset + 4, (int) sequenceNum, checksumOffset);
+        Checksum.putInt(buffer, tcpOffset + 8, (int) ackNum, checksumOffset);
+        // flags share a 16-bit word with the data offset
+        short offsetAndFlags = (short) ((buffer.get(tcpOffset + 12) & 0xFF) << 8 | (flags & 0xFF));
+        Checksum.putShort(buffer, tcpOffset + 12, offsetAndFlags, checksumOffset);
+        Checksum.putShort(buffer, tcpOffset + 14, (short) window, checksumOffset);
     }
 
     private void fillHeader(ByteBuffer buffer) {
@@ -215,30 +304,23 @@ public class Packet {
 
         }
 
-        private IP4Header(ByteBuffer buffer) throws UnknownHostException {
-            byte versionAndIHL = buffer.get();
-            this.version = (byte) (versionAndIHL >> 4);
-            this.IHL = (byte) (versionAndIHL & 0x0F);
-            this.headerLength = this.IHL << 2;
+        private IP4Header(PacketView view) {
+            this.version = (byte) view.version();
+            this.headerLength = view.ipHeaderLength();
+            this.IHL = (byte) (this.headerLength >> 2);
 
-            this.typeOfService = BitUtils.getUnsignedByte(buffer.get());
-            this.totalLength = BitUtils.getUnsignedShort(buffer.getShort());
+            this.typeOfService = (short) view.typeOfService();
+            this.totalLength = view.totalLength();
 
-            this.identificationAndFlagsAndFragmentOffset = buffer.getInt();
+            this.identificationAndFlagsAndFragmentOffset = view.identificationAndFlagsAndFragmentOffset();
 
-            this.TTL = BitUtils.getUnsignedByte(buffer.get());
-            this.protocolNum = BitUtils.getUnsignedByte(buffer.get());
+            this.TTL = (short) view.ttl();
+            this.protocolNum = (short) view.protocol();
             this.protocol = TransportProtocol.numberToEnum(protocolNum);
-            this.headerChecksum = BitUtils.getUnsignedShort(buffer.getShort());
-
-            byte[] addressBytes = new byte[4];
-            buffer.get(addressBytes, 0, 4);
-            this.sourceAddress = InetAddress.getByAddress(addressBytes);
-
-            buffer.get(addressBytes, 0, 4);
-            this.destinationAddress = InetAddress.getByAddress(addressBytes);
+            this.headerChecksum = view.ipChecksum();
 
-            //this.optionsAndPadding = buffer.getInt();
+            this.sourceAddress = PacketView.toInetAddress(view.sourceAddress());
+            this.destinationAddress = PacketView.toInetAddress(view.destinationAddress());
         }
 
         public void fillHeader(ByteBuffer buffer) {
@@ -282,6 +364,18 @@ public class Packet {
         public static final int ACK = 0x10;
         public static final int URG = 0x20;
 
+        /**
+         * Option kinds, RFC 793 / RFC 7323
+         */
+        public static final int OPTION_END = 0;
+        public static final int OPTION_NOP = 1;
+        public static final int OPTION_MSS = 2;
+        public static final int OPTION_WINDOW_SCALE = 3;
+        /**
+         * MSS to assume when the SYN carries no MSS option, RFC 1122
+         */
+        public static final int DEFAULT_MSS = 536;
+
         public int sourcePort;
         public int destinationPort;
 
@@ -320,6 +414,30 @@ public class Packet {
             }
         }
 
+        private TCPHeader(PacketView view) {
+            this.sourcePort = view.sourcePort();
+            this.destinationPort = view.destinationPort();
+
+            this.sequenceNumber = view.sequenceNumber();
+            this.acknowledgementNumber = view.acknowledgementNumber();
+
+            this.dataOffsetAndReserved = view.dataOffsetAndReserved();
+            this.headerLength = view.tcpHeaderLength();
+            this.flags = view.tcpFlags();
+            this.window = view.window();
+
+            this.checksum = view.tcpChecksum();
+            this.urgentPointer = view.urgentPointer();
+
+            int optionsLength = this.headerLength - TCP_HEADER_SIZE;
+            if (optionsLength > 0) {
+                optionsAndPadding = new byte[optionsLength];
+                ByteBuffer buffer = view.buffer().duplicate();
+                buffer.position(view.tcpOptionsOffset());
+                buffer.get(optionsAndPadding, 0, optionsLength);
+            }
+        }
+
         public TCPHeader() {
 
         }
@@ -421,12 +539,12 @@ public class Packet {
         public UDPHeader() {
         }
 
-        private UDPHeader(ByteBuffer buffer) {
-            this.sourcePort = BitUtils.getUnsignedShort(buffer.getShort());
-            this.destinationPort = BitUtils.getUnsignedShort(buffer.getShort());
+        private UDPHeader(PacketView view) {
+            this.sourcePort = view.sourcePort();
+            this.destinationPort = view.destinationPort();
 
-            this.length = BitUtils.getUnsignedShort(buffer.getShort());
-            this.checksum = BitUtils.getUnsignedShort(buffer.getShort());
+            this.length = view.udpLength();
+            this.checksum = view.udpChecksum();
         }
 
         private void fillHeader(ByteBuffer buffer) {
@@ -450,10 +568,6 @@ public class Packet {
     }
 
     private static class BitUtils {
-        private static short getUnsignedByte(byte value) {
-            return (short) (value & 0xFF);
-        }
-
         private static int getUnsignedShort(short value) {
             return value & 0xFFFF;
         }
@@ -484,11 +598,8 @@ public class Packet {
         ip4Header.typeOfService = 0;
         ip4Header.TTL = 64;
 
-        ByteBuffer byteBuffer = ByteBuffer.allocate(DEF_BUFFER_SIZE);
-        byteBuffer.flip();
-
+        // backingBuffer is supplied later by updateTCPBuffer / updateUDPBuffer
         packet.ip4Header = ip4Header;
-        packet.backingBuffer = byteBuffer;
         return packet;
     }
 
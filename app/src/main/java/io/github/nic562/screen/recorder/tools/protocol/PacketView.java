@@ -0,0 +1,328 @@
+package io.github.nic562.screen.recorder.tools.protocol;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+
+/**
+ * Flyweight accessor over an IPv4 packet (with TCP or UDP transport) held in a {@link ByteBuffer}.
+ * <p>
+ * Every field is read lazily by absolute offset straight from the backing buffer, so wrapping and
+ * reading a packet never allocates and never moves the buffer's position. Addresses are exposed as
+ * big-endian {@code int}s; use {@link #toInetAddress(int)} or {@link #addressToString(int)} only when
+ * an object form is really needed (e.g. logging or opening a socket).
+ * <p>
+ * A single instance may be re-pointed at successive buffers with {@link #wrap(ByteBuffer)}.
+ * Accessors do not check bounds; buffers from the network must pass {@link #isValid(ByteBuffer)} first.
+ */
+public final class PacketView {
+    private ByteBuffer buffer;
+    private int start;
+    private int transportOffset;
+
+    public PacketView() {
+
+    }
+
+    public PacketView(ByteBuffer buffer) {
+        wrap(buffer);
+    }
+
+    /**
+     * Points this view at the packet starting at {@code buffer.position()}.
+     * The buffer's limit is taken as the end of the packet.
+     */
+    public PacketView wrap(ByteBuffer buffer) {
+        return wrap(buffer, buffer.position());
+    }
+
+    /**
+     * Points this view at the packet starting at absolute offset {@code start}.
+     */
+    public PacketView wrap(ByteBuffer buffer, int start) {
+        this.buffer = buffer;
+        this.start = start;
+        this.transportOffset = start + ((buffer.get(start) & 0x0F) << 2);
+        return this;
+    }
+
+    /**
+     * Checks that the bytes from {@code buffer.position()} to the limit hold an IPv4 header whose
+     * header and total lengths fit, followed by a complete TCP or UDP header when the protocol is one
+     * of those, so that every accessor of this class stays in bounds. Reads by absolute offset only.
+     */
+    public static boolean isValid(ByteBuffer buffer) {
+        int start = buffer.position();
+        int length = buffer.remaining();
+        if (length < Packet.IP4_HEADER_SIZE) {
+            return false;
+        }
+        int versionAndIhl = buffer.get(start);
+        int ipHeaderLength = (versionAndIhl & 0x0F) << 2;
+        if ((versionAndIhl >> 4 & 0x0F) != 4 || ipHeaderLength < Packet.IP4_HEADER_SIZE || ipHeaderLength > length) {
+            return false;
+        }
+        int totalLength = buffer.getShort(start + 2) & 0xFFFF;
+        if (totalLength < ipHeaderLength || totalLength > length) {
+            return false;
+        }
+        int protocol = buffer.get(start + 9) & 0xFF;
+        if (protocol == 6) {
+            if (ipHeaderLength + Packet.TCP_HEADER_SIZE > length) {
+                return false;
+            }
+            int tcpHeaderLength = (buffer.get(start + ipHeaderLength + 12) & 0xF0) >> 2;
+            return tcpHeaderLength >= Packet.TCP_HEADER_SIZE && ipHeaderLength + tcpHeaderLength <= length;
+        }
+        if (protocol == 17) {
+            return ipHeaderLength + Packet.UDP_HEADER_SIZE <= length;
+        }
+        return true;
+    }
+
+    public ByteBuffer buffer() {
+        return buffer;
+    }
+
+    // ---- IPv4 ----
+
+    public int version() {
+        return (buffer.get(start) >> 4) & 0x0F;
+    }
+
+    public int ipHeaderLength() {
+        return transportOffset - start;
+    }
+
+    public int typeOfService() {
+        return buffer.get(start + 1) & 0xFF;
+    }
+
+    public int totalLength() {
+        return buffer.getShort(start + 2) & 0xFFFF;
+    }
+
+    public int identificationAndFlagsAndFragmentOffset() {
+        return buffer.getInt(start + 4);
+    }
+
+    public int ttl() {
+        return buffer.get(start + 8) & 0xFF;
+    }
+
+    public int protocol() {
+        return buffer.get(start + 9) & 0xFF;
+    }
+
+    public int ipChecksum() {
+        return buffer.getShort(start + 10) & 0xFFFF;
+    }
+
+    public int sourceAddress() {
+        return buffer.getInt(start + 12);
+    }
+
+    public int destinationAddress() {
+        return buffer.getInt(start + 16);
+    }
+
+    public boolean isTCP() {
+        return protocol() == 6;
+    }
+
+    public boolean isUDP() {
+        return protocol() == 17;
+    }
+
+    // ---- TCP / UDP common ----
+
+    public int transportOffset() {
+        return transportOffset;
+    }
+
+    public int sourcePort() {
+        return buffer.getShort(transportOffset) & 0xFFFF;
+    }
+
+    public int destinationPort() {
+        return buffer.getShort(transportOffset + 2) & 0xFFFF;
+    }
+
+    // ---- TCP ----
+
+    public long sequenceNumber() {
+        return buffer.getInt(transportOffset + 4) & 0xFFFFFFFFL;
+    }
+
+    public long acknowledgementNumber() {
+        return buffer.getInt(transportOffset + 8) & 0xFFFFFFFFL;
+    }
+
+    public byte dataOffsetAndReserved() {
+        return buffer.get(transportOffset + 12);
+    }
+
+    public int tcpHeaderLength() {
+        return (buffer.get(transportOffset + 12) & 0xF0) >> 2;
+    }
+
+    public byte tcpFlags() {
+        return buffer.get(transportOffset + 13);
+    }
+
+    public int window() {
+        return buffer.getShort(transportOffset + 14) & 0xFFFF;
+    }
+
+    public int tcpChecksum() {
+        return buffer.getShort(transportOffset + 16) & 0xFFFF;
+    }
+
+    public int urgentPointer() {
+        return buffer.getShort(transportOffset + 18) & 0xFFFF;
+    }
+
+    public int tcpOptionsOffset() {
+        return transportOffset + Packet.TCP_HEADER_SIZE;
+    }
+
+    public int tcpOptionsLength() {
+        return tcpHeaderLength() - Packet.TCP_HEADER_SIZE;
+    }
+
+    /**
+     * @return absolute offset of the first TCP option of the given kind, -1 if absent or malformed
+     */
+    public int tcpOptionOffset(int kind) {
+        int i = tcpOptionsOffset();
+        int end = i + tcpOptionsLength();
+        while (i < end) {
+            int k = buffer.get(i) & 0xFF;
+            if (k == Packet.TCPHeader.OPTION_END) {
+                return -1;
+            }
+            if (k == Packet.TCPHeader.OPTION_NOP) {
+                i++;
+                continue;
+            }
+            if (i + 1 >= end) {
+                return -1;
+            }
+            int length = buffer.get(i + 1) & 0xFF;
+            if (length < 2 || i + length > end) {
+                return -1;
+            }
+            if (k == kind) {
+                return i;
+            }
+            i += length;
+        }
+        return -1;
+    }
+
+    /**
+     * @return value of the MSS option, -1 if absent
+     */
+    public int tcpMss() {
+        int offset = tcpOptionOffset(Packet.TCPHeader.OPTION_MSS);
+        if (offset < 0 || (buffer.get(offset + 1) & 0xFF) != 4) {
+            return -1;
+        }
+        return buffer.getShort(offset + 2) & 0xFFFF;
+    }
+
+    /**
+     * @return shift count of the window scale option (RFC 7323), capped at 14, -1 if absent
+     */
+    public int tcpWindowScale() {
+        int offset = tcpOptionOffset(Packet.TCPHeader.OPTION_WINDOW_SCALE);
+        if (offset < 0 || (buffer.get(offset + 1) & 0xFF) != 3) {
+            return -1;
+        }
+        return Math.min(14, buffer.get(offset + 2) & 0xFF);
+    }
+
+    public boolean isFIN() {
+        return (tcpFlags() & Packet.TCPHeader.FIN) != 0;
+    }
+
+    public boolean isSYN() {
+        return (tcpFlags() & Packet.TCPHeader.SYN) != 0;
+    }
+
+    public boolean isRST() {
+        return (tcpFlags() & Packet.TCPHeader.RST) != 0;
+    }
+
+    public boolean isPSH() {
+        return (tcpFlags() & Packet.TCPHeader.PSH) != 0;
+    }
+
+    public boolean isACK() {
+        return (tcpFlags() & Packet.TCPHeader.ACK) != 0;
+    }
+
+    public boolean isURG() {
+        return (tcpFlags() & Packet.TCPHeader.URG) != 0;
+    }
+
+    // ---- UDP ----
+
+    public int udpLength() {
+        return buffer.getShort(transportOffset + 4) & 0xFFFF;
+    }
+
+    public int udpChecksum() {
+        return buffer.getShort(transportOffset + 6) & 0xFFFF;
+    }
+
+    // ---- payload ----
+
+    /**
+     * Absolute offset of the transport payload, or of the transport header for other protocols.
+     */
+    public int payloadOffset() {
+        int protocol = protocol();
+        if (protocol == 6)
+            return transportOffset + tcpHeaderLength();
+        if (protocol == 17)
+            return transportOffset + Packet.UDP_HEADER_SIZE;
+        return transportOffset;
+    }
+
+    public int payloadSize() {
+        return buffer.limit() - payloadOffset();
+    }
+
+    public static InetAddress toInetAddress(int address) {
+        byte[] bytes = {
+                (byte) (address >>> 24), (byte) (address >>> 16), (byte) (address >>> 8), (byte) address
+        };
+        try {
+            return InetAddress.getByAddress(bytes);
+        } catch (UnknownHostException e) {
+            // only thrown for an illegal address length
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    public static String addressToString(int address) {
+        return ((address >>> 24) & 0xFF) + "." + ((address >>> 16) & 0xFF) + "." +
+                ((address >>> 8) & 0xFF) + "." + (address & 0xFF);
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder("PacketView{");
+        sb.append("protocol=").append(protocol());
+        sb.append(", source=").append(addressToString(sourceAddress()));
+        sb.append(", destination=").append(addressToString(destinationAddress()));
+        if (isTCP() || isUDP()) {
+            sb.append(", sourcePort=").append(sourcePort());
+            sb.append(", destinationPort=").append(destinationPort());
+        }
+        sb.append(", payloadSize=").append(payloadSize());
+        sb.append('}');
+        return sb.toString();
+    }
+}
@@ -4,6 +4,13 @@ public enum  TCBStatus {
     SYN_SENT,
     SYN_RECEIVED,
     ESTABLISHED,
+    // 本端先关闭：已发送 FIN
+    FIN_WAIT_1,
+    // 本端的 FIN 已被确认，等待对端 FIN
+    FIN_WAIT_2,
+    // 双方同时关闭，等待本端 FIN 的确认
+    CLOSING,
+    TIME_WAIT,
     CLOSE_WAIT,
     LAST_ACK,
     //new
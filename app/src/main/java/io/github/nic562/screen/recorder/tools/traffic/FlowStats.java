@@ -0,0 +1,48 @@
+package io.github.nic562.screen.recorder.tools.traffic;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import io.github.nic562.screen.recorder.tools.protocol.FlowKey;
+
+/**
+ * 一个流的累计流量，流由协议和 {@link FlowKey} 确定。
+ * 计数使用 {@link LongAdder}，上传和下载两个线程同时累加时不会争用同一个计数单元；
+ * 只有 {@link TrafficAccounting#snapshot()} 读取计数并计算每个间隔的增量。
+ */
+public final class FlowStats {
+    public static final int UID_UNKNOWN = -1;
+
+    public final int protocol;
+    public final long key;
+
+    final LongAdder upBytes = new LongAdder();
+    final LongAdder upPackets = new LongAdder();
+    final LongAdder downBytes = new LongAdder();
+    final LongAdder downPackets = new LongAdder();
+
+    // 所属应用，由后台线程解析后写入
+    volatile int uid = UID_UNKNOWN;
+    // 已从流表中移除，记录器不应再向其累加
+    volatile boolean retired;
+
+    // 以下只在快照时访问：上一次快照时的累计值，以及连续没有流量的快照次数
+    long reportedUpBytes;
+    long reportedUpPackets;
+    long reportedDownBytes;
+    long reportedDownPackets;
+    int idleSnapshots;
+
+    FlowStats(int protocol, long key) {
+        this.protocol = protocol;
+        this.key = key;
+    }
+
+    public int uid() {
+        return uid;
+    }
+
+    @Override
+    public String toString() {
+        return "FlowStats{" + protocol + " " + FlowKey.toString(key) + " uid=" + uid + "}";
+    }
+}
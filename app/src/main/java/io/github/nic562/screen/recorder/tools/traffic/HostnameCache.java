@@ -0,0 +1,78 @@
+package io.github.nic562.screen.recorder.tools.traffic;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import io.github.nic562.screen.recorder.tools.protocol.DnsResponseParser;
+
+/**
+ * 由经过的 DNS 应答得到的 IPv4 地址到主机名的映射，用于在统计中以主机名代替 IP。
+ * 条目数有上限，满时移除最早写入的条目；条目按 TTL 过期。
+ * 写入来自 UDP 接收线程，查询来自统计线程，方法均加锁。
+ */
+public class HostnameCache implements DnsResponseParser.Listener {
+    // DNS 的 TTL 常只有几十秒，而按该地址建立的连接可能持续更久，条目至少保留这么久
+    private static final long MIN_RETAIN_MS = 5 * 60 * 1000L;
+
+    private static final class Entry {
+        final String name;
+        final long expiresAt;
+
+        Entry(String name, long expiresAt) {
+            this.name = name;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final int capacity;
+    // 按写入顺序排列
+    private final LinkedHashMap<Integer, Entry> entries = new LinkedHashMap<>();
+
+    public HostnameCache() {
+        this(4096);
+    }
+
+    public HostnameCache(int capacity) {
+        this.capacity = capacity;
+    }
+
+    private static long nowMillis() {
+        return System.nanoTime() / 1000000;
+    }
+
+    @Override
+    public synchronized void onAddress(String name, int address, long ttlSeconds) {
+        long now = nowMillis();
+        // 先删除再写入，使其排到最后
+        entries.remove(address);
+        entries.put(address, new Entry(name, now + Math.max(ttlSeconds * 1000, MIN_RETAIN_MS)));
+        // 移除队首已过期或超出容量的条目
+        for (Iterator<Entry> it = entries.values().iterator(); it.hasNext(); ) {
+            Entry entry = it.next();
+            if (entries.size() <= capacity && entry.expiresAt > now) {
+                break;
+            }
+            it.remove();
+        }
+    }
+
+    /**
+     * @param address IPv4 地址，大端序
+     * @return 主机名，未知或已过期时为 null
+     */
+    public synchronized String lookup(int address) {
+        Entry entry = entries.get(address);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.expiresAt <= nowMillis()) {
+            entries.remove(address);
+            return null;
+        }
+        return entry.name;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+}
@@ -0,0 +1,139 @@
+package io.github.nic562.screen.recorder.tools.traffic;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import io.github.nic562.screen.recorder.tools.bio.LongObjectMap;
+
+/**
+ * Space-Saving 算法（Metwally 等，2005）的加权版本：用固定数量的计数器找出累计权重最大的若干个元素。
+ * <p>
+ * 已监视的元素直接累加；否则若计数器已满，就把计数最小的计数器让给新元素，
+ * 新元素的计数为原最小值加上本次权重，原最小值记为其误差上限。
+ * 于是每个计数都不小于真实值，且至多多出 error；真实累计超过 总权重 / capacity 的元素一定在监视之列。
+ * 计数器放在以计数为序的小根堆中，更新为 O(log capacity)，填满后不再分配内存。非线程安全。
+ */
+public class SpaceSaving {
+
+    public static final class Entry {
+        public final long item;
+        // 估计值，不小于真实累计值
+        public final long count;
+        // count 可能多出的上限
+        public final long error;
+
+        Entry(long item, long count, long error) {
+            this.item = item;
+            this.count = count;
+            this.error = error;
+        }
+    }
+
+    private static final class Counter {
+        long item;
+        long count;
+        long error;
+        int heapIndex;
+    }
+
+    private final int capacity;
+    private final Counter[] heap;
+    private final LongObjectMap<Counter> index;
+    private int size = 0;
+
+    public SpaceSaving(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        this.capacity = capacity;
+        this.heap = new Counter[capacity];
+        this.index = new LongObjectMap<>(capacity);
+    }
+
+    public void add(long item, long weight) {
+        Counter counter = index.get(item);
+        if (counter != null) {
+            counter.count += weight;
+            siftDown(counter.heapIndex);
+            return;
+        }
+        if (size < capacity) {
+            counter = new Counter();
+            counter.item = item;
+            counter.count = weight;
+            index.put(item, counter);
+            heap[size] = counter;
+            siftUp(size++);
+            return;
+        }
+        // 替换计数最小的元素
+        counter = heap[0];
+        index.remove(counter.item);
+        counter.item = item;
+        counter.error = counter.count;
+        counter.count += weight;
+        index.put(item, counter);
+        siftDown(0);
+    }
+
+    /**
+     * @return 计数最大的至多 n 个元素，从大到小
+     */
+    public List<Entry> top(int n) {
+        Counter[] sorted = Arrays.copyOf(heap, size);
+        Arrays.sort(sorted, (a, b) -> Long.compare(b.count, a.count));
+        int count = Math.min(n, size);
+        List<Entry> result = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            result.add(new Entry(sorted[i].item, sorted[i].count, sorted[i].error));
+        }
+        return result;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        Arrays.fill(heap, null);
+        index.clear();
+        size = 0;
+    }
+
+    private void siftUp(int i) {
+        Counter counter = heap[i];
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (heap[parent].count <= counter.count) {
+                break;
+            }
+            heap[i] = heap[parent];
+            heap[i].heapIndex = i;
+            i = parent;
+        }
+        heap[i] = counter;
+        counter.heapIndex = i;
+    }
+
+    private void siftDown(int i) {
+        Counter counter = heap[i];
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && heap[child + 1].count < heap[child].count) {
+                child++;
+            }
+            if (heap[child].count >= counter.count) {
+                break;
+            }
+            heap[i] = heap[child];
+            heap[i].heapIndex = i;
+            i = child;
+        }
+        heap[i] = counter;
+        counter.heapIndex = i;
+    }
+}
@@ -0,0 +1,291 @@
+package io.github.nic562.screen.recorder.tools.traffic;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+
+import io.github.nic562.screen.recorder.tools.bio.LongObjectMap;
+import io.github.nic562.screen.recorder.tools.protocol.FlowKey;
+import io.github.nic562.screen.recorder.tools.protocol.Packet;
+import io.github.nic562.screen.recorder.tools.protocol.PacketView;
+
+/**
+ * 按流和应用统计经过 tun 的流量。
+ * <p>
+ * 收发线程各自通过 {@link #newRecorder()} 取得一个 {@link Recorder}，每个包只做一次线程私有表的查找和几次
+ * {@link LongAdder} 累加，不加锁、不分配内存；流第一次出现时才访问共享的流表，并交给后台线程解析所属的 UID。
+ * 统计线程定期调用 {@link #snapshot()} 取得这一间隔内的增量，长期没有流量的流在快照时移除。
+ * 各流的流量在快照时按目的地址和端口汇入 {@link SpaceSaving}，内存有界地找出整个会话中流量最大的目的地址。
+ * 作为 {@link TrafficRingLog.Source} 时只读取全部流量的累计值，不影响快照，可以在任意线程高频调用。
+ */
+public class TrafficAccounting implements TrafficRingLog.Source {
+
+    /**
+     * 查询流所属的应用，会在 {@link TrafficAccounting} 构造时传入的 Executor 上调用
+     */
+    public interface UidResolver {
+        /**
+         * @param protocol IP 协议号，TCP 或 UDP
+         * @param key      {@link FlowKey}，源地址为 tun 的地址
+         * @return UID，无法确定时为 {@link FlowStats#UID_UNKNOWN}
+         */
+        int resolve(int protocol, long key);
+    }
+
+    private static final int TCP = Packet.IP4Header.TransportProtocol.TCP.getNumber();
+    private static final int UDP = Packet.IP4Header.TransportProtocol.UDP.getNumber();
+    // 连续这么多次快照都没有流量的流从流表中移除
+    private static final int IDLE_SNAPSHOTS = 60;
+    // 目的地址的计数器个数：累计流量超过总量 1/256 的目的地址一定会被统计到
+    private static final int DESTINATION_COUNTERS = 256;
+    // 每次快照给出的目的地址个数
+    private static final int TOP_DESTINATIONS = 10;
+
+    private final ConcurrentHashMap<Long, FlowStats> tcpFlows = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Long, FlowStats> udpFlows = new ConcurrentHashMap<>();
+    // 全部流量，包括无法归入流的包
+    private final LongAdder upBytes = new LongAdder();
+    private final LongAdder upPackets = new LongAdder();
+    private final LongAdder downBytes = new LongAdder();
+    private final LongAdder downPackets = new LongAdder();
+    // 每次有流被移除时加一，记录器据此清理自己缓存中已移除的流
+    private volatile int retireGeneration;
+
+    private final UidResolver resolver;
+    private final Executor resolveExecutor;
+    // resolver 无法确定时使用的 UID，例如只代理了一个应用时
+    private final int defaultUid;
+    private final HostnameCache hostnames;
+
+    // 以下只在快照时访问
+    private final TrafficSnapshot.Counters reportedTotal = new TrafficSnapshot.Counters();
+    // 上一次快照移除的流，移除前后仍可能有记录器向其累加，下一次快照再统计一次
+    private final ArrayList<FlowStats> retiring = new ArrayList<>();
+    private final SpaceSaving destinations = new SpaceSaving(DESTINATION_COUNTERS);
+
+    /**
+     * @param resolver  可为 null，此时所有流都计入 defaultUid
+     * @param hostnames 快照中流和目的地址的主机名从中查询，可为 null
+     */
+    public TrafficAccounting(UidResolver resolver, Executor resolveExecutor, int defaultUid, HostnameCache hostnames) {
+        this.resolver = resolver;
+        this.resolveExecutor = resolveExecutor;
+        this.defaultUid = defaultUid;
+        this.hostnames = hostnames;
+    }
+
+    private String hostOf(int address) {
+        return hostnames == null ? null : hostnames.lookup(address);
+    }
+
+    /**
+     * @return 只能在一个线程中使用的记录器
+     */
+    public Recorder newRecorder() {
+        return new Recorder();
+    }
+
+    @Override
+    public long downBytes() {
+        return downBytes.sum();
+    }
+
+    @Override
+    public long upBytes() {
+        return upBytes.sum();
+    }
+
+    private FlowStats flow(int protocol, long key) {
+        ConcurrentHashMap<Long, FlowStats> flows = protocol == TCP ? tcpFlows : udpFlows;
+        FlowStats flow = flows.get(key);
+        if (flow != null) {
+            return flow;
+        }
+        FlowStats created = new FlowStats(protocol, key);
+        flow = flows.putIfAbsent(key, created);
+        if (flow != null) {
+            return flow;
+        }
+        resolveUid(created);
+        return created;
+    }
+
+    private void resolveUid(final FlowStats flow) {
+        if (resolver == null) {
+            flow.uid = defaultUid;
+            return;
+        }
+        try {
+            resolveExecutor.execute(() -> {
+                int uid = resolver.resolve(flow.protocol, flow.key);
+                flow.uid = uid == FlowStats.UID_UNKNOWN ? defaultUid : uid;
+            });
+        } catch (RejectedExecutionException e) {
+            // 正在停止
+            flow.uid = defaultUid;
+        }
+    }
+
+    /**
+     * 统计上一次快照以来的流量，只应在一个线程中调用
+     */
+    public synchronized TrafficSnapshot snapshot() {
+        TrafficSnapshot snapshot = new TrafficSnapshot();
+        TrafficSnapshot.Counters total = snapshot.total;
+        total.upBytes = upBytes.sum() - reportedTotal.upBytes;
+        total.upPackets = upPackets.sum() - reportedTotal.upPackets;
+        total.downBytes = downBytes.sum() - reportedTotal.downBytes;
+        total.downPackets = downPackets.sum() - reportedTotal.downPackets;
+        reportedTotal.add(total);
+
+        HashMap<Integer, TrafficSnapshot.App> apps = new HashMap<>();
+        for (FlowStats flow : retiring) {
+            collect(flow, snapshot, apps);
+        }
+        retiring.clear();
+        collectAll(tcpFlows, snapshot, apps);
+        collectAll(udpFlows, snapshot, apps);
+        if (!retiring.isEmpty()) {
+            retireGeneration++;
+        }
+        snapshot.apps.addAll(apps.values());
+        Collections.sort(snapshot.apps, (a, b) -> Long.compare(b.totalBytes(), a.totalBytes()));
+        for (SpaceSaving.Entry entry : destinations.top(TOP_DESTINATIONS)) {
+            int address = (int) (entry.item >>> 16);
+            snapshot.destinations.add(new TrafficSnapshot.Destination(
+                    address, (int) entry.item & 0xFFFF, entry.count, entry.error, hostOf(address)));
+        }
+        return snapshot;
+    }
+
+    private void collectAll(ConcurrentHashMap<Long, FlowStats> flows, TrafficSnapshot snapshot,
+                            HashMap<Integer, TrafficSnapshot.App> apps) {
+        for (Iterator<FlowStats> it = flows.values().iterator(); it.hasNext(); ) {
+            FlowStats flow = it.next();
+            if (collect(flow, snapshot, apps)) {
+                flow.idleSnapshots = 0;
+            } else if (++flow.idleSnapshots >= IDLE_SNAPSHOTS) {
+                flow.retired = true;
+                it.remove();
+                retiring.add(flow);
+            }
+        }
+    }
+
+    /**
+     * @return 这一间隔内是否有流量
+     */
+    private boolean collect(FlowStats flow, TrafficSnapshot snapshot, HashMap<Integer, TrafficSnapshot.App> apps) {
+        long upBytes = flow.upBytes.sum();
+        long upPackets = flow.upPackets.sum();
+        long downBytes = flow.downBytes.sum();
+        long downPackets = flow.downPackets.sum();
+        if (upPackets == flow.reportedUpPackets && downPackets == flow.reportedDownPackets) {
+            return false;
+        }
+        TrafficSnapshot.Flow delta = new TrafficSnapshot.Flow(flow.protocol, flow.key, flow.uid,
+                hostOf(FlowKey.destinationAddress(flow.key)));
+        delta.upBytes = upBytes - flow.reportedUpBytes;
+        delta.upPackets = upPackets - flow.reportedUpPackets;
+        delta.downBytes = downBytes - flow.reportedDownBytes;
+        delta.downPackets = downPackets - flow.reportedDownPackets;
+        flow.reportedUpBytes = upBytes;
+        flow.reportedUpPackets = upPackets;
+        flow.reportedDownBytes = downBytes;
+        flow.reportedDownPackets = downPackets;
+        snapshot.flows.add(delta);
+        destinations.add((FlowKey.destinationAddress(flow.key) & 0xFFFFFFFFL) << 16 | FlowKey.destinationPort(flow.key),
+                delta.totalBytes());
+
+        TrafficSnapshot.App app = apps.get(delta.uid);
+        if (app == null) {
+            app = new TrafficSnapshot.App(delta.uid);
+            apps.put(delta.uid, app);
+        }
+        app.add(delta);
+        return true;
+    }
+
+    /**
+     * 记录一个线程收发的包，非线程安全
+     */
+    public final class Recorder {
+        private final PacketView view = new PacketView();
+        // 线程私有的流表缓存，命中时不访问共享流表
+        private final LongObjectMap<FlowStats> tcpCache = new LongObjectMap<>();
+        private final LongObjectMap<FlowStats> udpCache = new LongObjectMap<>();
+        private final ArrayList<FlowStats> scratch = new ArrayList<>();
+        private int generation;
+
+        private Recorder() {
+
+        }
+
+        /**
+         * @param packet 设备发出的 IP 包，position 到 limit 之间是整个包，不会被修改
+         */
+        public void recordUpload(ByteBuffer packet) {
+            upBytes.add(packet.remaining());
+            upPackets.increment();
+            FlowStats flow = flowOf(packet, true);
+            if (flow != null) {
+                flow.upBytes.add(packet.remaining());
+                flow.upPackets.increment();
+            }
+        }
+
+        /**
+         * @param packet 发往设备的 IP 包，position 到 limit 之间是整个包，不会被修改
+         */
+        public void recordDownload(ByteBuffer packet) {
+            downBytes.add(packet.remaining());
+            downPackets.increment();
+            FlowStats flow = flowOf(packet, false);
+            if (flow != null) {
+                flow.downBytes.add(packet.remaining());
+                flow.downPackets.increment();
+            }
+        }
+
+        private FlowStats flowOf(ByteBuffer packet, boolean upload) {
+            if (!PacketView.isValid(packet)) {
+                return null;
+            }
+            view.wrap(packet);
+            if (!(view.isTCP() || view.isUDP())) {
+                return null;
+            }
+            if (generation != retireGeneration) {
+                generation = retireGeneration;
+                purge(tcpCache);
+                purge(udpCache);
+            }
+            // 流以设备一侧为源
+            long key = upload ? FlowKey.of(view)
+                    : FlowKey.of(view.sourceAddress(), view.sourcePort(), view.destinationPort());
+            LongObjectMap<FlowStats> cache = view.isTCP() ? tcpCache : udpCache;
+            FlowStats flow = cache.get(key);
+            if (flow == null || flow.retired) {
+                flow = flow(view.protocol(), key);
+                cache.put(key, flow);
+            }
+            return flow;
+        }
+
+        private void purge(LongObjectMap<FlowStats> cache) {
+            cache.valuesTo(scratch);
+            for (FlowStats flow : scratch) {
+                if (flow.retired) {
+                    cache.remove(flow.key);
+                }
+            }
+            scratch.clear();
+        }
+    }
+}
@@ -0,0 +1,299 @@
+package io.github.nic562.screen.recorder.tools.traffic;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+
+/**
+ * 顺序读取 {@link TrafficLogWriter} 写的流量日志，也可导出为 TSV 文本。
+ * 文件可以仍在写入中，末尾不完整的记录视为结束，不抛出异常。非线程安全。
+ */
+public class TrafficLogReader implements Closeable {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * 一条采样，由 {@link #next(Sample)} 填充，可反复使用；数组只有前 count 个元素有效
+     */
+    public static final class Sample {
+        public long time;
+        public long downBytes;
+        public long upBytes;
+        public int appCount;
+        public String[] appNames = new String[16];
+        public long[] appDownBytes = new long[16];
+        public long[] appUpBytes = new long[16];
+        public int destinationCount;
+        public String[] destinationNames = new String[16];
+        public long[] destinationBytes = new long[16];
+
+        void setAppCount(int n) {
+            appCount = n;
+            if (appNames.length < n) {
+                appNames = new String[n];
+                appDownBytes = new long[n];
+                appUpBytes = new long[n];
+            }
+        }
+
+        void setDestinationCount(int n) {
+            destinationCount = n;
+            if (destinationNames.length < n) {
+                destinationNames = new String[n];
+                destinationBytes = new long[n];
+            }
+        }
+    }
+
+    private final FileChannel channel;
+    private ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    private final int flags;
+    // 当前会话的名称表，下标即编号
+    private final ArrayList<String> names = new ArrayList<>();
+
+    /**
+     * @throws IOException 无法打开，或不是流量日志
+     */
+    public TrafficLogReader(File file) throws IOException {
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            buffer.limit(0);
+            if (!require(TrafficLogWriter.HEADER_SIZE)
+                    || buffer.getInt() != TrafficLogWriter.MAGIC
+                    || buffer.getShort() != TrafficLogWriter.VERSION) {
+                throw new IOException("not a traffic log: " + file);
+            }
+            flags = buffer.getShort();
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return 时间是否为 epoch 毫秒，否则为采样序号
+     */
+    public boolean isDateTime() {
+        return (flags & TrafficLogWriter.FLAG_DATE_TIME) != 0;
+    }
+
+    /**
+     * 读取下一条采样，跳过其它记录
+     *
+     * @return 没有完整的采样了时为 false
+     */
+    public boolean next(Sample sample) throws IOException {
+        // 整条记录都已读入缓冲区后才移动 position，遇到不完整的记录时保持原位
+        while (peekRecord() > 0) {
+            switch (buffer.get(buffer.position())) {
+                case TrafficLogWriter.RECORD_SESSION:
+                    buffer.get();
+                    names.clear();
+                    break;
+                case TrafficLogWriter.RECORD_NAME:
+                    readName();
+                    break;
+                default:
+                    readSample(sample);
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 保证 position 处的整条记录都已在缓冲区中
+     *
+     * @return 记录的长度；记录不完整，或类型未知（写入中断后又被追加，不应出现）时为 -1，之后的内容都不再读取
+     */
+    private int peekRecord() throws IOException {
+        if (!require(1)) {
+            return -1;
+        }
+        int size;
+        switch (buffer.get(buffer.position())) {
+            case TrafficLogWriter.RECORD_SESSION:
+                return 1;
+            case TrafficLogWriter.RECORD_NAME:
+                if (!require(1 + 4 + 2)) {
+                    return -1;
+                }
+                size = 1 + 4 + 2 + (buffer.getShort(buffer.position() + 1 + 4) & 0xFFFF);
+                break;
+            case TrafficLogWriter.RECORD_SAMPLE:
+                int headerSize = TrafficLogWriter.SAMPLE_HEADER_SIZE;
+                if (!require(headerSize)) {
+                    return -1;
+                }
+                int appCount = buffer.getShort(buffer.position() + headerSize - 4) & 0xFFFF;
+                int destinationCount = buffer.getShort(buffer.position() + headerSize - 2) & 0xFFFF;
+                size = headerSize + appCount * TrafficLogWriter.APP_ENTRY_SIZE
+                        + destinationCount * TrafficLogWriter.DESTINATION_ENTRY_SIZE;
+                break;
+            default:
+                return -1;
+        }
+        return require(size) ? size : -1;
+    }
+
+    private void readName() {
+        buffer.get();
+        int id = buffer.getInt();
+        int length = buffer.getShort() & 0xFFFF;
+        String name = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length,
+                StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + length);
+        while (names.size() <= id) {
+            names.add(null);
+        }
+        names.set(id, name);
+    }
+
+    private void readSample(Sample sample) {
+        buffer.get();
+        sample.time = buffer.getLong();
+        sample.downBytes = buffer.getLong();
+        sample.upBytes = buffer.getLong();
+        int appCount = buffer.getShort() & 0xFFFF;
+        int destinationCount = buffer.getShort() & 0xFFFF;
+        sample.setAppCount(appCount);
+        for (int i = 0; i < appCount; i++) {
+            sample.appNames[i] = name(buffer.getInt());
+            sample.appDownBytes[i] = buffer.getLong();
+            sample.appUpBytes[i] = buffer.getLong();
+        }
+        sample.setDestinationCount(destinationCount);
+        for (int i = 0; i < destinationCount; i++) {
+            sample.destinationNames[i] = name(buffer.getInt());
+            sample.destinationBytes[i] = buffer.getLong();
+        }
+    }
+
+    /**
+     * 供 {@link TrafficLogWriter} 接着追加前截去写入中断留下的尾部
+     *
+     * @return 文件头及其后连续的完整记录的总长度
+     * @throws IOException 无法打开，或不是流量日志
+     */
+    static long completeLength(File file) throws IOException {
+        try (TrafficLogReader reader = new TrafficLogReader(file)) {
+            int size;
+            while ((size = reader.peekRecord()) > 0) {
+                reader.buffer.position(reader.buffer.position() + size);
+            }
+            return reader.channel.position() - reader.buffer.remaining();
+        }
+    }
+
+    private String name(int id) {
+        String name = id >= 0 && id < names.size() ? names.get(id) : null;
+        return name == null ? "#" + id : name;
+    }
+
+    /**
+     * 保证 position 之后至少有 n 个字节，不够时从文件补充，必要时扩大缓冲区
+     *
+     * @return 文件中已没有这么多字节时为 false；文件仍在写入时，之后再调用可能读到新写入的部分
+     */
+    private boolean require(int n) throws IOException {
+        if (buffer.remaining() >= n) {
+            return true;
+        }
+        if (buffer.capacity() < n) {
+            ByteBuffer larger = ByteBuffer.allocate(Math.max(n, buffer.capacity() * 2)).order(ByteOrder.LITTLE_ENDIAN);
+            larger.put(buffer);
+            buffer = larger;
+        } else {
+            buffer.compact();
+        }
+        while (buffer.position() < n) {
+            if (channel.read(buffer) <= 0) {
+                break;
+            }
+        }
+        buffer.flip();
+        return buffer.remaining() >= n;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * 导出为 TSV：时间、下行、上行，每个出现过的应用各一对下行、上行列，最后一列为目的地址=字节数,...
+     * 应用列需要先把文件读一遍才能确定
+     */
+    public static void exportTsv(File file, Appendable out) throws IOException {
+        LinkedHashMap<String, Integer> appColumns = new LinkedHashMap<>();
+        boolean hasDestinations = false;
+        Sample sample = new Sample();
+        try (TrafficLogReader reader = new TrafficLogReader(file)) {
+            while (reader.next(sample)) {
+                for (int i = 0; i < sample.appCount; i++) {
+                    if (!appColumns.containsKey(sample.appNames[i])) {
+                        appColumns.put(sample.appNames[i], appColumns.size());
+                    }
+                }
+                hasDestinations |= sample.destinationCount > 0;
+            }
+        }
+
+        out.append("time\tdown\tup");
+        for (String app : appColumns.keySet()) {
+            out.append('\t').append(app).append(" down\t").append(app).append(" up");
+        }
+        if (hasDestinations) {
+            out.append("\tdestinations");
+        }
+        out.append('\n');
+
+        long[] appBytes = new long[appColumns.size() * 2];
+        try (TrafficLogReader reader = new TrafficLogReader(file)) {
+            boolean dateTime = reader.isDateTime();
+            ZoneId zone = ZoneId.systemDefault();
+            while (reader.next(sample)) {
+                if (dateTime) {
+                    out.append(LocalDateTime.ofInstant(Instant.ofEpochMilli(sample.time), zone).toString());
+                } else {
+                    out.append(Long.toString(sample.time));
+                }
+                out.append('\t').append(Long.toString(sample.downBytes))
+                        .append('\t').append(Long.toString(sample.upBytes));
+                Arrays.fill(appBytes, 0);
+                for (int i = 0; i < sample.appCount; i++) {
+                    Integer column = appColumns.get(sample.appNames[i]);
+                    // 第一遍之后新写入的应用没有列
+                    if (column != null) {
+                        appBytes[column * 2] += sample.appDownBytes[i];
+                        appBytes[column * 2 + 1] += sample.appUpBytes[i];
+                    }
+                }
+                for (long bytes : appBytes) {
+                    out.append('\t').append(Long.toString(bytes));
+                }
+                if (hasDestinations) {
+                    out.append('\t');
+                    for (int i = 0; i < sample.destinationCount; i++) {
+                        if (i > 0) {
+                            out.append(',');
+                        }
+                        out.append(sample.destinationNames[i]).append('=')
+                                .append(Long.toString(sample.destinationBytes[i]));
+                    }
+                }
+                out.append('\n');
+            }
+        }
+    }
+}
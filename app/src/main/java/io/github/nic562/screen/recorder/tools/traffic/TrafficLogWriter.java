@@ -0,0 +1,220 @@
+package io.github.nic562.screen.recorder.tools.traffic;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * 流量日志的二进制写入，只追加。
+ * <p>
+ * 文件以 {@link #MAGIC}、{@link #VERSION}、标志位开头，之后是记录，每条记录以一个字节的类型开头：
+ * <ul>
+ * <li>{@link #RECORD_SESSION}：每次打开写入一条，之后的名称编号重新开始</li>
+ * <li>{@link #RECORD_NAME}：int 编号，short 长度，UTF-8 字节；定义应用名或目的地址，先于引用它的采样写入</li>
+ * <li>{@link #RECORD_SAMPLE}：long 时间，long 下行，long 上行，short 应用数，short 目的地址数，
+ * 然后每个应用为 int 名称编号、long 下行、long 上行，每个目的地址为 int 名称编号、long 字节数</li>
+ * </ul>
+ * 时间在 {@link #FLAG_DATE_TIME} 置位时为 epoch 毫秒，否则为采样序号。数值均为小端序定长字段。
+ * <p>
+ * 记录先写入内存缓冲区，满了或距上次写出超过 {@link #FLUSH_INTERVAL_MS} 才写入文件，
+ * 距上次 fsync 超过 {@link #SYNC_INTERVAL_MS} 再 force 一次；异常退出最多丢失这段时间的数据，
+ * 末尾不完整的记录由 {@link TrafficLogReader} 忽略，下次打开时截去。非线程安全。
+ */
+public class TrafficLogWriter implements Closeable {
+    static final int MAGIC = 0x4C54544E; // "NTTL"
+    static final short VERSION = 1;
+    public static final int FLAG_DATE_TIME = 1;
+
+    static final int HEADER_SIZE = 4 + 2 + 2;
+    static final byte RECORD_SESSION = 0;
+    static final byte RECORD_NAME = 1;
+    static final byte RECORD_SAMPLE = 2;
+    static final int SAMPLE_HEADER_SIZE = 1 + 8 + 8 + 8 + 2 + 2;
+    static final int APP_ENTRY_SIZE = 4 + 8 + 8;
+    static final int DESTINATION_ENTRY_SIZE = 4 + 8;
+    // 名称超出此长度的部分截去
+    static final int MAX_NAME_BYTES = 255;
+    // 单条采样中应用数、目的地址数的上限
+    static final int MAX_ENTRIES = 0x7FFF;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final long FLUSH_INTERVAL_MS = 5 * 1000L;
+    private static final long SYNC_INTERVAL_MS = 60 * 1000L;
+
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    private final HashMap<String, Integer> names = new HashMap<>();
+    private long lastFlush;
+    private long lastSync;
+
+    // 正在组装的采样
+    private long time;
+    private long downBytes;
+    private long upBytes;
+    private int appCount;
+    private int[] appNames = new int[16];
+    private long[] appDownBytes = new long[16];
+    private long[] appUpBytes = new long[16];
+    private int destinationCount;
+    private int[] destinationNames = new int[16];
+    private long[] destinationBytes = new long[16];
+
+    /**
+     * 打开文件，不存在则创建；已有内容时校验文件头，截去末尾不完整的记录后接着追加
+     *
+     * @param flags 仅在新建文件时写入，见 {@link #FLAG_DATE_TIME}
+     * @throws IOException 无法打开，或已有内容不是流量日志
+     */
+    public TrafficLogWriter(File file, int flags) throws IOException {
+        File dir = file.getParentFile();
+        if (dir != null && !dir.exists()) {
+            dir.mkdirs();
+        }
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.READ);
+        try {
+            long size = channel.size();
+            if (size == 0) {
+                buffer.putInt(MAGIC).putShort(VERSION).putShort((short) flags);
+            } else {
+                // 上次异常退出时末尾可能只写了半条记录，先截去，否则新的记录会被当作它的一部分
+                long complete = TrafficLogReader.completeLength(file);
+                if (complete < size) {
+                    channel.truncate(complete);
+                    size = complete;
+                }
+            }
+            channel.position(size);
+            buffer.put(RECORD_SESSION);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        lastFlush = lastSync = nowMillis();
+    }
+
+    private static long nowMillis() {
+        return System.nanoTime() / 1000000;
+    }
+
+    /**
+     * 开始一条采样，随后调用 {@link #app}、{@link #destination}，最后 {@link #endSample()}
+     *
+     * @param time epoch 毫秒或序号，见 {@link #FLAG_DATE_TIME}
+     */
+    public void beginSample(long time, long downBytes, long upBytes) {
+        this.time = time;
+        this.downBytes = downBytes;
+        this.upBytes = upBytes;
+        appCount = 0;
+        destinationCount = 0;
+    }
+
+    public void app(String name, long downBytes, long upBytes) throws IOException {
+        if (appCount == MAX_ENTRIES) {
+            return;
+        }
+        if (appCount == appNames.length) {
+            int n = appCount * 2;
+            appNames = Arrays.copyOf(appNames, n);
+            appDownBytes = Arrays.copyOf(appDownBytes, n);
+            appUpBytes = Arrays.copyOf(appUpBytes, n);
+        }
+        appNames[appCount] = nameId(name);
+        appDownBytes[appCount] = downBytes;
+        appUpBytes[appCount] = upBytes;
+        appCount++;
+    }
+
+    public void destination(String name, long bytes) throws IOException {
+        if (destinationCount == MAX_ENTRIES) {
+            return;
+        }
+        if (destinationCount == destinationNames.length) {
+            int n = destinationCount * 2;
+            destinationNames = Arrays.copyOf(destinationNames, n);
+            destinationBytes = Arrays.copyOf(destinationBytes, n);
+        }
+        destinationNames[destinationCount] = nameId(name);
+        destinationBytes[destinationCount] = bytes;
+        destinationCount++;
+    }
+
+    public void endSample() throws IOException {
+        ensure(SAMPLE_HEADER_SIZE);
+        buffer.put(RECORD_SAMPLE)
+                .putLong(time)
+                .putLong(downBytes)
+                .putLong(upBytes)
+                .putShort((short) appCount)
+                .putShort((short) destinationCount);
+        for (int i = 0; i < appCount; i++) {
+            ensure(APP_ENTRY_SIZE);
+            buffer.putInt(appNames[i]).putLong(appDownBytes[i]).putLong(appUpBytes[i]);
+        }
+        for (int i = 0; i < destinationCount; i++) {
+            ensure(DESTINATION_ENTRY_SIZE);
+            buffer.putInt(destinationNames[i]).putLong(destinationBytes[i]);
+        }
+        long now = nowMillis();
+        if (now - lastFlush >= FLUSH_INTERVAL_MS) {
+            flush();
+        }
+        if (now - lastSync >= SYNC_INTERVAL_MS) {
+            channel.force(false);
+            lastSync = now;
+        }
+    }
+
+    /**
+     * 名称首次出现时写入定义记录
+     */
+    private int nameId(String name) throws IOException {
+        Integer id = names.get(name);
+        if (id != null) {
+            return id;
+        }
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        int length = Math.min(bytes.length, MAX_NAME_BYTES);
+        int newId = names.size();
+        ensure(1 + 4 + 2 + length);
+        buffer.put(RECORD_NAME).putInt(newId).putShort((short) length).put(bytes, 0, length);
+        names.put(name, newId);
+        return newId;
+    }
+
+    private void ensure(int size) throws IOException {
+        if (buffer.remaining() < size) {
+            flush();
+        }
+    }
+
+    /**
+     * 把缓冲区中的记录写入文件，不做 fsync
+     */
+    public void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+        lastFlush = nowMillis();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+            channel.force(false);
+        } finally {
+            channel.close();
+        }
+    }
+}
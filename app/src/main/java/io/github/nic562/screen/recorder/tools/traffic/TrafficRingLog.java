@@ -0,0 +1,163 @@
+package io.github.nic562.screen.recorder.tools.traffic;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * 高频流量采样的环形日志：定长文件通过内存映射写入，写满后覆盖最早的采样，
+ * 写入只是几次内存写，不经过系统调用，也不随采样时间增长占用空间。
+ * 其它进程可以用 {@link TrafficRingLogReader} 在写入的同时映射同一文件翻页读取。
+ * <p>
+ * 文件头 {@link #HEADER_SIZE} 字节：int {@link #MAGIC}，short {@link #VERSION}，short 保留，
+ * int 容量（条），int 采样间隔毫秒，long 已写入的总条数。之后是容量条 {@link #RECORD_SIZE} 字节的记录：
+ * long 序号加一，long epoch 毫秒，long 下行字节数，long 上行字节数，long 校验值，第 i 条采样位于第 i % 容量 个位置。
+ * 写一条记录时先把序号置 0，写完各字段再写入序号，最后更新总条数；
+ * 读取方在字段前后各读一次序号，两次都等于期望值且校验值与各字段相符才算有效，以此丢弃正在被覆盖的记录。
+ * <p>
+ * 写入方与读取方之间没有内存屏障：minSdk 26 上没有 VarHandle，映射内存的普通读写在弱内存序的 CPU 上
+ * 可能被重排，只靠序号无法排除读到新旧字段混合的记录，因此由校验值 {@link #check} 兜底，
+ * 与各字段不符的记录按正在被覆盖处理。总条数也可能先于记录本身可见，这时最新一条的序号对不上，同样被丢弃。
+ * 数值均为小端序。只应在一个线程中写入。
+ */
+public class TrafficRingLog implements Closeable {
+    static final int MAGIC = 0x474E5252; // "RRNG"
+    static final short VERSION = 2;
+    static final int HEADER_SIZE = 64;
+    static final int RECORD_SIZE = 40;
+    static final int CAPACITY_OFFSET = 8;
+    static final int INTERVAL_OFFSET = 12;
+    static final int COUNT_OFFSET = 16;
+
+    /**
+     * 累计流量的来源，采样时取两次读数之差
+     */
+    public interface Source {
+        long downBytes();
+
+        long upBytes();
+    }
+
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private final int capacity;
+    private final int intervalMs;
+    private long count = 0;
+
+    /**
+     * 删除已有的文件后重新创建并映射。不在原文件上截断，正在映射旧文件的读取方仍访问旧的内容，不会越界
+     *
+     * @param capacity   最多保留的采样条数
+     * @param intervalMs 采样间隔，只记录在文件头中供读取方参考
+     */
+    public TrafficRingLog(File file, int capacity, int intervalMs) throws IOException {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity: " + capacity);
+        }
+        File dir = file.getParentFile();
+        if (dir != null && !dir.exists()) {
+            dir.mkdirs();
+        }
+        this.capacity = capacity;
+        this.intervalMs = intervalMs;
+        Files.deleteIfExists(file.toPath());
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        try {
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) capacity * RECORD_SIZE);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(CAPACITY_OFFSET, capacity);
+        buffer.putInt(INTERVAL_OFFSET, intervalMs);
+        buffer.putLong(COUNT_OFFSET, 0);
+        buffer.putShort(4, VERSION);
+        // 文件头其余部分写好后才写入 MAGIC，读取方以此判断文件已可用
+        buffer.putInt(0, MAGIC);
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public int getIntervalMs() {
+        return intervalMs;
+    }
+
+    public void append(long time, long downBytes, long upBytes) {
+        int offset = HEADER_SIZE + (int) (count % capacity) * RECORD_SIZE;
+        buffer.putLong(offset, 0);
+        buffer.putLong(offset + 8, time);
+        buffer.putLong(offset + 16, downBytes);
+        buffer.putLong(offset + 24, upBytes);
+        buffer.putLong(offset + 32, check(count + 1, time, downBytes, upBytes));
+        buffer.putLong(offset, count + 1);
+        count++;
+        buffer.putLong(COUNT_OFFSET, count);
+    }
+
+    /**
+     * 记录各字段的混合，任一字段换成另一条记录的值都几乎不可能仍然相符
+     */
+    static long check(long sequence, long time, long downBytes, long upBytes) {
+        long h = sequence * 0x9E3779B97F4A7C15L;
+        h = (h ^ time) * 0xC2B2AE3D27D4EB4FL;
+        h = (h ^ downBytes) * 0x9E3779B97F4A7C15L;
+        h = (h ^ upBytes) * 0xC2B2AE3D27D4EB4FL;
+        return h ^ (h >>> 31);
+    }
+
+    /**
+     * 每隔 intervalMs 读一次 source，把两次读数之差写入日志，直到线程被中断；结束时关闭日志。
+     * 按固定节拍而不是固定休眠时长调度，写入本身的耗时不会累积成漂移；落后超过一个间隔时跳过错过的节拍，
+     * 那一条采样覆盖更长的时间。
+     */
+    public Runnable sampler(final Source source) {
+        return () -> {
+            try {
+                long down = source.downBytes();
+                long up = source.upBytes();
+                long next = System.nanoTime();
+                long interval = intervalMs * 1000000L;
+                while (!Thread.currentThread().isInterrupted()) {
+                    next += interval;
+                    long wait = next - System.nanoTime();
+                    if (wait > 0) {
+                        Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+                    } else {
+                        next = System.nanoTime();
+                    }
+                    long currentDown = source.downBytes();
+                    long currentUp = source.upBytes();
+                    append(System.currentTimeMillis(), currentDown - down, currentUp - up);
+                    down = currentDown;
+                    up = currentUp;
+                }
+            } catch (InterruptedException e) {
+                // 停止
+            } finally {
+                try {
+                    close();
+                } catch (IOException e) {
+                    // 映射仍然有效，已写入的数据不会丢失
+                }
+            }
+        };
+    }
+
+    /**
+     * 把映射的内容写回文件后关闭；映射的内存由 GC 回收
+     */
+    @Override
+    public void close() throws IOException {
+        buffer.force();
+        channel.close();
+    }
+}
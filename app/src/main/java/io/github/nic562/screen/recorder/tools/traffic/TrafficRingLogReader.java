@@ -0,0 +1,156 @@
+package io.github.nic562.screen.recorder.tools.traffic;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+
+/**
+ * 只读映射 {@link TrafficRingLog} 的文件，按采样序号翻页读取，写入方可以同时在另一个进程中继续写入。
+ * 序号从 0 开始，只有最近 {@link #getCapacity()} 条仍在文件中；读取时正被覆盖或尚未完整可见的记录会被丢弃。非线程安全。
+ */
+public class TrafficRingLogReader implements Closeable {
+
+    /**
+     * 一条采样，由 {@link #read(long, Sample[])} 填充，可反复使用
+     */
+    public static final class Sample {
+        public long index;
+        public long time;
+        public long downBytes;
+        public long upBytes;
+    }
+
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private final int capacity;
+    private final int intervalMs;
+
+    /**
+     * @throws IOException 无法打开，或不是环形日志，或写入方尚未完成初始化
+     */
+    public TrafficRingLogReader(File file) throws IOException {
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            long size = channel.size();
+            if (size < TrafficRingLog.HEADER_SIZE) {
+                throw new IOException("not a traffic ring log: " + file);
+            }
+            MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, TrafficRingLog.HEADER_SIZE);
+            header.order(ByteOrder.LITTLE_ENDIAN);
+            capacity = header.getInt(TrafficRingLog.CAPACITY_OFFSET);
+            intervalMs = header.getInt(TrafficRingLog.INTERVAL_OFFSET);
+            if (header.getInt(0) != TrafficRingLog.MAGIC || header.getShort(4) != TrafficRingLog.VERSION
+                    || capacity <= 0 || size < TrafficRingLog.HEADER_SIZE + (long) capacity * TrafficRingLog.RECORD_SIZE) {
+                throw new IOException("not a traffic ring log: " + file);
+            }
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                    TrafficRingLog.HEADER_SIZE + (long) capacity * TrafficRingLog.RECORD_SIZE);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public int getIntervalMs() {
+        return intervalMs;
+    }
+
+    /**
+     * @return 已写入的总条数，即下一条采样的序号
+     */
+    public long count() {
+        return buffer.getLong(TrafficRingLog.COUNT_OFFSET);
+    }
+
+    /**
+     * @return 仍在文件中的最早一条采样的序号
+     */
+    public long oldest() {
+        return Math.max(0, count() - capacity);
+    }
+
+    /**
+     * 从序号 from 起读取至多 samples.length 条连续的采样
+     *
+     * @param from 早于 {@link #oldest()} 时从仍在文件中的最早一条开始，实际起点见 samples[0].index
+     * @return 读到的条数；已读到最新一条时可能少于 samples.length，之后再以下一序号调用可读到新写入的采样
+     */
+    public int read(long from, Sample[] samples) {
+        long count = count();
+        long index = Math.max(from, Math.max(0, count - capacity));
+        int n = 0;
+        while (n < samples.length && index < count) {
+            if (readRecord(index, samples[n])) {
+                n++;
+            } else if (n == 0) {
+                // 最早的一条正被覆盖，从下一条开始
+                index++;
+                continue;
+            } else {
+                break;
+            }
+            index++;
+        }
+        return n;
+    }
+
+    private boolean readRecord(long index, Sample sample) {
+        int offset = TrafficRingLog.HEADER_SIZE + (int) (index % capacity) * TrafficRingLog.RECORD_SIZE;
+        long sequence = index + 1;
+        if (buffer.getLong(offset) != sequence) {
+            return false;
+        }
+        sample.index = index;
+        sample.time = buffer.getLong(offset + 8);
+        sample.downBytes = buffer.getLong(offset + 16);
+        sample.upBytes = buffer.getLong(offset + 24);
+        long check = buffer.getLong(offset + 32);
+        return buffer.getLong(offset) == sequence
+                && check == TrafficRingLog.check(sequence, sample.time, sample.downBytes, sample.upBytes);
+    }
+
+    /**
+     * 导出最近至多 maxSamples 条采样为 TSV：时间、下行、上行；导出期间新写入的采样不包括在内
+     */
+    public void exportTsv(Appendable out, int maxSamples) throws IOException {
+        Sample[] samples = new Sample[256];
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = new Sample();
+        }
+        ZoneId zone = ZoneId.systemDefault();
+        out.append("time\tdown\tup\n");
+        long end = count();
+        long from = end - maxSamples;
+        int n;
+        while (from < end && (n = read(from, samples)) > 0) {
+            for (int i = 0; i < n && samples[i].index < end; i++) {
+                Sample sample = samples[i];
+                out.append(LocalDateTime.ofInstant(Instant.ofEpochMilli(sample.time), zone).toString())
+                        .append('\t').append(Long.toString(sample.downBytes))
+                        .append('\t').append(Long.toString(sample.upBytes))
+                        .append('\n');
+            }
+            from = samples[n - 1].index + 1;
+        }
+    }
+
+    /**
+     * 映射的内存由 GC 回收
+     */
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,98 @@
+package io.github.nic562.screen.recorder.tools.traffic;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import io.github.nic562.screen.recorder.tools.protocol.FlowKey;
+import io.github.nic562.screen.recorder.tools.protocol.PacketView;
+
+/**
+ * 两次 {@link TrafficAccounting#snapshot()} 之间的流量：全部流量，有流量的各个流，以及按应用汇总的流量；
+ * 另附整个会话中累计流量最大的目的地址
+ */
+public final class TrafficSnapshot {
+
+    public static class Counters {
+        public long upBytes;
+        public long upPackets;
+        public long downBytes;
+        public long downPackets;
+
+        void add(Counters other) {
+            upBytes += other.upBytes;
+            upPackets += other.upPackets;
+            downBytes += other.downBytes;
+            downPackets += other.downPackets;
+        }
+
+        public long totalBytes() {
+            return upBytes + downBytes;
+        }
+    }
+
+    public static final class Flow extends Counters {
+        public final int protocol;
+        // 见 FlowKey
+        public final long key;
+        public final int uid;
+        // 目的地址的主机名，未知时为 null
+        public final String host;
+
+        Flow(int protocol, long key, int uid, String host) {
+            this.protocol = protocol;
+            this.key = key;
+            this.uid = uid;
+            this.host = host;
+        }
+
+        @Override
+        public String toString() {
+            String destination = host == null ? FlowKey.toString(key)
+                    : host + ":" + FlowKey.destinationPort(key) + ":" + FlowKey.sourcePort(key);
+            return protocol + " " + destination + " uid=" + uid + " up=" + upBytes + " down=" + downBytes;
+        }
+    }
+
+    public static final class App extends Counters {
+        // 无法确定所属应用的流量计入 FlowStats.UID_UNKNOWN
+        public final int uid;
+
+        App(int uid) {
+            this.uid = uid;
+        }
+    }
+
+    public static final class Destination {
+        public final int address;
+        public final int port;
+        // 本次会话累计字节数的估计值，不小于真实值，至多多出 error
+        public final long bytes;
+        public final long error;
+        // 主机名，未知时为 null
+        public final String host;
+
+        Destination(int address, int port, long bytes, long error, String host) {
+            this.address = address;
+            this.port = port;
+            this.bytes = bytes;
+            this.error = error;
+            this.host = host;
+        }
+
+        /**
+         * @return 主机名:端口，主机名未知时为 IP:端口
+         */
+        @Override
+        public String toString() {
+            return (host == null ? PacketView.addressToString(address) : host) + ":" + port;
+        }
+    }
+
+    // 经过 tun 的全部流量，包括不属于任何流的包
+    public final Counters total = new Counters();
+    public final List<Flow> flows = new ArrayList<>();
+    // 按总流量从大到小排列
+    public final List<App> apps = new ArrayList<>();
+    // 从大到小
+    public final List<Destination> destinations = new ArrayList<>();
+}
@@ -0,0 +1,90 @@
+package io.github.nic562.screen.recorder.tools.bio;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class HashedTimingWheelTest {
+
+    private static class Recorder extends HashedTimingWheel.Timeout {
+        final List<Long> fired;
+        final long id;
+
+        Recorder(List<Long> fired, long id) {
+            this.fired = fired;
+            this.id = id;
+        }
+
+        @Override
+        protected void expire() {
+            fired.add(id);
+        }
+    }
+
+    @Test
+    public void expiresAtDeadline() {
+        List<Long> fired = new ArrayList<>();
+        HashedTimingWheel wheel = new HashedTimingWheel(10, 8, 0);
+        Recorder a = new Recorder(fired, 1);
+        Recorder b = new Recorder(fired, 2);
+        wheel.schedule(a, 25, 0);
+        wheel.schedule(b, 300, 0);
+        assertEquals(0, wheel.advance(20));
+        assertEquals(1, wheel.advance(30));
+        assertFalse(a.isScheduled());
+        assertTrue(b.isScheduled());
+        // 300 毫秒超过一圈（80 毫秒），经过的圈数不会提前到期
+        assertEquals(0, wheel.advance(290));
+        assertEquals(1, wheel.advance(300));
+        assertEquals(2, fired.size());
+        assertTrue(wheel.isEmpty());
+    }
+
+    @Test
+    public void cancelledTimerDoesNotFire() {
+        List<Long> fired = new ArrayList<>();
+        HashedTimingWheel wheel = new HashedTimingWheel(10, 8, 0);
+        Recorder a = new Recorder(fired, 1);
+        wheel.schedule(a, 50, 0);
+        wheel.cancel(a);
+        assertEquals(0, wheel.advance(1000));
+        assertTrue(fired.isEmpty());
+        assertEquals(-1, wheel.millisToNextTimer(1000));
+    }
+
+    @Test
+    public void nextTimerSkipsEmptySlots() {
+        HashedTimingWheel wheel = new HashedTimingWheel(10, 512, 0);
+        Recorder a = new Recorder(new ArrayList<>(), 1);
+        wheel.schedule(a, 1000, 0);
+        // 没有更早的定时器，不必每 10 毫秒唤醒一次
+        assertEquals(1000, wheel.millisToNextTimer(0));
+        assertEquals(995, wheel.millisToNextTimer(5));
+        wheel.schedule(new Recorder(new ArrayList<>(), 2), 30, 0);
+        assertEquals(30, wheel.millisToNextTimer(0));
+    }
+
+    @Test
+    public void nextTimerWakesOncePerRoundForLongTimeouts() {
+        List<Long> fired = new ArrayList<>();
+        HashedTimingWheel wheel = new HashedTimingWheel(10, 8, 0);
+        wheel.schedule(new Recorder(fired, 1), 1000, 0);
+        long now = 0;
+        int wakeups = 0;
+        while (fired.isEmpty()) {
+            long wait = wheel.millisToNextTimer(now);
+            assertTrue(wait > 0);
+            now += wait;
+            wheel.advance(now);
+            wakeups++;
+        }
+        assertEquals(1000, now);
+        // 一圈 80 毫秒，1000 毫秒约 13 圈，而不是 100 个 tick
+        assertTrue(wakeups <= 13);
+    }
+}
@@ -0,0 +1,138 @@
+package io.github.nic562.screen.recorder.tools.bio;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import io.github.nic562.screen.recorder.tools.protocol.FlowKey;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class LongObjectMapTest {
+
+    /**
+     * 在容量为 capacity 的表中初始位置相同的 n 个键
+     */
+    private static long[] collidingKeys(int capacity, int n) {
+        long[] keys = new long[n];
+        int home = -1;
+        int found = 0;
+        for (int port = 1; found < n; port++) {
+            long key = FlowKey.of(0x0A000001, 443, port);
+            int slot = FlowKey.hash(key) & (capacity - 1);
+            if (home < 0) {
+                home = slot;
+            }
+            if (slot == home) {
+                keys[found++] = key;
+            }
+        }
+        return keys;
+    }
+
+    @Test
+    public void putGetReplace() {
+        LongObjectMap<String> map = new LongObjectMap<>();
+        assertTrue(map.isEmpty());
+        assertNull(map.put(1L, "a"));
+        assertEquals("a", map.put(1L, "b"));
+        assertEquals("b", map.get(1L));
+        assertEquals(1, map.size());
+        assertNull(map.get(2L));
+        assertFalse(map.containsKey(2L));
+        // 0 是合法的键
+        assertNull(map.put(0L, "zero"));
+        assertEquals("zero", map.get(0L));
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void rejectsNullValue() {
+        new LongObjectMap<String>().put(1L, null);
+    }
+
+    @Test
+    public void collidingKeysStayReachableAfterRemoval() {
+        // 默认 64 个元素对应容量 128，5 个键落在同一个初始位置
+        long[] keys = collidingKeys(128, 5);
+        LongObjectMap<Long> map = new LongObjectMap<>();
+        for (long key : keys) {
+            map.put(key, key);
+        }
+        // 删除探测链中间的元素，后面的元素必须前移而不是断链
+        assertEquals(Long.valueOf(keys[1]), map.remove(keys[1]));
+        assertNull(map.remove(keys[1]));
+        for (int i = 0; i < keys.length; i++) {
+            assertEquals(i == 1 ? null : Long.valueOf(keys[i]), map.get(keys[i]));
+        }
+        map.remove(keys[0]);
+        map.remove(keys[4]);
+        assertEquals(Long.valueOf(keys[2]), map.get(keys[2]));
+        assertEquals(Long.valueOf(keys[3]), map.get(keys[3]));
+        assertEquals(2, map.size());
+    }
+
+    @Test
+    public void probeChainWrapsAroundTableEnd() {
+        LongObjectMap<Long> map = new LongObjectMap<>(1);
+        // 容量 4：找初始位置在最后一格的键，探测链从表尾绕回表头
+        List<Long> keys = new ArrayList<>();
+        for (long port = 1; keys.size() < 2; port++) {
+            long key = FlowKey.of(1, 2, (int) port);
+            if ((FlowKey.hash(key) & 3) == 3) {
+                keys.add(key);
+            }
+        }
+        map.put(keys.get(0), keys.get(0));
+        map.put(keys.get(1), keys.get(1));
+        map.remove(keys.get(0));
+        assertEquals(keys.get(1), map.get(keys.get(1)));
+        assertEquals(1, map.size());
+    }
+
+    @Test
+    public void growsPastInitialCapacity() {
+        LongObjectMap<Integer> map = new LongObjectMap<>(4);
+        for (int i = 0; i < 10000; i++) {
+            map.put(FlowKey.of(i, 80, i >>> 3), i);
+        }
+        assertEquals(10000, map.size());
+        for (int i = 0; i < 10000; i++) {
+            assertEquals(Integer.valueOf(i), map.get(FlowKey.of(i, 80, i >>> 3)));
+        }
+        List<Integer> values = new ArrayList<>();
+        map.valuesTo(values);
+        assertEquals(10000, values.size());
+        map.clear();
+        assertTrue(map.isEmpty());
+        assertNull(map.get(FlowKey.of(0, 80, 0)));
+    }
+
+    @Test
+    public void matchesHashMapUnderRandomChurn() {
+        Random random = new Random(5);
+        LongObjectMap<Long> map = new LongObjectMap<>(8);
+        Map<Long, Long> expected = new HashMap<>();
+        for (int i = 0; i < 200000; i++) {
+            // 键空间小，插入删除交替，探测链频繁变化
+            long key = FlowKey.of(0x0A000001, 443, random.nextInt(2000));
+            if (random.nextInt(3) == 0) {
+                assertEquals(expected.remove(key), map.remove(key));
+            } else {
+                long value = random.nextLong();
+                assertEquals(expected.put(key, value), map.put(key, value));
+            }
+        }
+        assertEquals(expected.size(), map.size());
+        for (int port = 0; port < 2000; port++) {
+            long key = FlowKey.of(0x0A000001, 443, port);
+            assertEquals(expected.get(key), map.get(key));
+        }
+    }
+}
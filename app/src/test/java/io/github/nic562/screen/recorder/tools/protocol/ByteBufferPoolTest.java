@@ -0,0 +1,65 @@
+package io.github.nic562.screen.recorder.tools.protocol;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ByteBufferPoolTest {
+
+    @Test
+    public void acquireReusesReleasedBufferOfSameClass() {
+        ByteBufferPool pool = new ByteBufferPool();
+        ByteBuffer buffer = pool.acquire(100);
+        assertTrue(buffer.isDirect());
+        assertEquals(ByteBufferPool.SMALL_BUFFER_SIZE, buffer.capacity());
+        buffer.put((byte) 1);
+        pool.release(buffer);
+        ByteBuffer again = pool.acquire(ByteBufferPool.SMALL_BUFFER_SIZE);
+        assertSame(buffer, again);
+        assertEquals(0, again.position());
+        assertNotSame(buffer, pool.acquire(ByteBufferPool.SMALL_BUFFER_SIZE));
+    }
+
+    @Test
+    public void oversizedRequestsAreNotPooled() {
+        ByteBufferPool pool = new ByteBufferPool();
+        ByteBuffer buffer = pool.acquire(ByteBufferPool.LARGE_BUFFER_SIZE + 1);
+        assertFalse(buffer.isDirect());
+        pool.release(buffer);
+        assertNotSame(buffer, pool.acquire(ByteBufferPool.LARGE_BUFFER_SIZE + 1));
+    }
+
+    @Test
+    public void fullClassDropsExtraBuffers() {
+        ByteBufferPool pool = new ByteBufferPool(new int[]{64}, new int[]{1});
+        ByteBuffer a = pool.acquire(64);
+        ByteBuffer b = pool.acquire(64);
+        pool.release(a);
+        pool.release(b);
+        assertSame(a, pool.acquire(64));
+        assertNotSame(b, pool.acquire(64));
+    }
+
+    @Test
+    public void doubleReleaseIsCaught() {
+        ByteBufferPool pool = new ByteBufferPool();
+        ByteBuffer buffer = pool.acquire(ByteBufferPool.MEDIUM_BUFFER_SIZE);
+        pool.release(buffer);
+        try {
+            pool.release(buffer);
+        } catch (AssertionError expected) {
+            return;
+        }
+        // only caught when the JVM runs with assertions enabled, as Gradle does for unit tests
+        if (ByteBufferPool.class.desiredAssertionStatus()) {
+            fail("second release accepted");
+        }
+    }
+}
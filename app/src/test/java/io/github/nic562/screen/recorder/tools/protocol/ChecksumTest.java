@@ -0,0 +1,122 @@
+package io.github.nic562.screen.recorder.tools.protocol;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class ChecksumTest {
+
+    /**
+     * The summation Packet used before Checksum: one 16-bit word at a time.
+     */
+    private static int legacySum(ByteBuffer buffer, int offset, int length, int sum) {
+        int i = offset;
+        while (length > 1) {
+            sum += buffer.getShort(i) & 0xFFFF;
+            i += 2;
+            length -= 2;
+        }
+        if (length > 0) {
+            sum += (buffer.get(i) & 0xFF) << 8;
+        }
+        while (sum >> 16 > 0) {
+            sum = (sum & 0xFFFF) + (sum >> 16);
+        }
+        return sum;
+    }
+
+    private static ByteBuffer tcp(Random random, int payloadSize) {
+        int length = Packet.IP4_HEADER_SIZE + Packet.TCP_HEADER_SIZE + payloadSize;
+        byte[] bytes = new byte[length];
+        random.nextBytes(bytes);
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        buffer.put(0, (byte) 0x45);
+        buffer.putShort(2, (short) length);
+        buffer.put(9, (byte) 6);
+        buffer.put(Packet.IP4_HEADER_SIZE + 12, (byte) 0x50);
+        return buffer;
+    }
+
+    private static int legacyTcp(ByteBuffer buffer, int tcpLength) {
+        ByteBuffer copy = ByteBuffer.allocate(buffer.capacity());
+        copy.put(buffer.duplicate());
+        copy.putShort(Packet.IP4_HEADER_SIZE + 16, (short) 0);
+        int source = copy.getInt(12);
+        int destination = copy.getInt(16);
+        int sum = (source >>> 16) + (source & 0xFFFF) + (destination >>> 16) + (destination & 0xFFFF)
+                + 6 + tcpLength;
+        return ~legacySum(copy, Packet.IP4_HEADER_SIZE, tcpLength, sum) & 0xFFFF;
+    }
+
+    private static int legacyIp4(ByteBuffer buffer) {
+        ByteBuffer copy = ByteBuffer.allocate(Packet.IP4_HEADER_SIZE);
+        copy.put(buffer.array(), 0, Packet.IP4_HEADER_SIZE);
+        copy.putShort(10, (short) 0);
+        return ~legacySum(copy, 0, Packet.IP4_HEADER_SIZE, 0) & 0xFFFF;
+    }
+
+    @Test
+    public void fullSumMatchesLegacyForEveryLength() {
+        Random random = new Random(1);
+        for (int payloadSize = 0; payloadSize < 80; payloadSize++) {
+            ByteBuffer buffer = tcp(random, payloadSize);
+            int tcpLength = Packet.TCP_HEADER_SIZE + payloadSize;
+            assertEquals("payload " + payloadSize, legacyTcp(buffer, tcpLength),
+                    Checksum.updateTcp(buffer, 0, Packet.IP4_HEADER_SIZE, tcpLength));
+            assertEquals(legacyIp4(buffer), Checksum.updateIp4(buffer, 0));
+        }
+    }
+
+    @Test
+    public void fullSumOfLargeAllOnesPayload() {
+        ByteBuffer buffer = ByteBuffer.allocate(65535);
+        for (int i = 0; i < buffer.capacity(); i++) {
+            buffer.put(i, (byte) 0xFF);
+        }
+        assertEquals(legacySum(buffer, 0, buffer.capacity(), 0),
+                Checksum.fold(Checksum.sum(buffer, 0, buffer.capacity(), 0)));
+    }
+
+    @Test
+    public void packetWithChecksumSumsToZero() {
+        Random random = new Random(2);
+        ByteBuffer buffer = tcp(random, 33);
+        int tcpLength = Packet.TCP_HEADER_SIZE + 33;
+        Checksum.updateTcp(buffer, 0, Packet.IP4_HEADER_SIZE, tcpLength);
+        Checksum.updateIp4(buffer, 0);
+        long pseudo = Checksum.pseudoHeaderSum(buffer.getInt(12), buffer.getInt(16), 6, tcpLength);
+        assertEquals(0xFFFF, Checksum.fold(Checksum.sum(buffer, Packet.IP4_HEADER_SIZE, tcpLength, pseudo)));
+        assertEquals(0xFFFF, Checksum.fold(Checksum.sum(buffer, 0, Packet.IP4_HEADER_SIZE, 0)));
+    }
+
+    @Test
+    public void incrementalUpdateMatchesFullSum() {
+        Random random = new Random(3);
+        int checksumOffset = Packet.IP4_HEADER_SIZE + 16;
+        for (int round = 0; round < 1000; round++) {
+            int payloadSize = random.nextInt(64);
+            int tcpLength = Packet.TCP_HEADER_SIZE + payloadSize;
+            ByteBuffer buffer = tcp(random, payloadSize);
+            Checksum.updateTcp(buffer, 0, Packet.IP4_HEADER_SIZE, tcpLength);
+
+            // sequence and acknowledgement numbers, flags and window, as the TCP handler rewrites them
+            Checksum.putInt(buffer, Packet.IP4_HEADER_SIZE + 4, random.nextInt(), checksumOffset);
+            Checksum.putInt(buffer, Packet.IP4_HEADER_SIZE + 8, round == 0 ? 0 : random.nextInt(), checksumOffset);
+            Checksum.putShort(buffer, Packet.IP4_HEADER_SIZE + 14, (short) random.nextInt(), checksumOffset);
+            int patched = buffer.getShort(checksumOffset) & 0xFFFF;
+
+            assertEquals(legacyTcp(buffer, tcpLength), patched);
+        }
+    }
+
+    @Test
+    public void adjustLeavesChecksumUnchangedForSameWord() {
+        assertEquals(0x1234, Checksum.adjust(0x1234, 0xBEEF, 0xBEEF));
+        assertEquals(0x1234, Checksum.adjust32(0x1234, 0xCAFEBABE, 0xCAFEBABE));
+        assertEquals(Checksum.adjust(0x1234, 0x0000, 0xABCD),
+                Checksum.adjust32(0x1234, 0x00000000, 0x0000ABCD));
+    }
+}
@@ -0,0 +1,186 @@
+package io.github.nic562.screen.recorder.tools.protocol;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DnsResponseParserTest {
+
+    private static final int TYPE_A = 1;
+    private static final int TYPE_CNAME = 5;
+    private static final int TYPE_AAAA = 28;
+
+    private static class Message {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        Message(int flags, int questions, int answers) {
+            putShort(0x1234);
+            putShort(flags);
+            putShort(questions);
+            putShort(answers);
+            putShort(0);
+            putShort(0);
+        }
+
+        Message putShort(int value) {
+            out.write(value >>> 8);
+            out.write(value);
+            return this;
+        }
+
+        Message putInt(int value) {
+            return putShort(value >>> 16).putShort(value & 0xFFFF);
+        }
+
+        Message name(String name) {
+            for (String label : name.split("\\.")) {
+                out.write(label.length());
+                out.write(label.getBytes(), 0, label.length());
+            }
+            out.write(0);
+            return this;
+        }
+
+        Message pointer(int offset) {
+            return putShort(0xC000 | offset);
+        }
+
+        Message question() {
+            return putShort(TYPE_A).putShort(1);
+        }
+
+        Message record(int type, int ttl, byte[] data) {
+            putShort(type).putShort(1).putInt(ttl).putShort(data.length);
+            out.write(data, 0, data.length);
+            return this;
+        }
+
+        int size() {
+            return out.size();
+        }
+
+        /**
+         * Places the message after a few bytes of unrelated data, as in a packet buffer.
+         */
+        ByteBuffer buffer(int offset) {
+            byte[] bytes = out.toByteArray();
+            ByteBuffer buffer = ByteBuffer.allocate(offset + bytes.length);
+            buffer.position(offset);
+            buffer.put(bytes);
+            buffer.clear();
+            return buffer;
+        }
+    }
+
+    private static byte[] ip4(int address) {
+        return ByteBuffer.allocate(4).putInt(address).array();
+    }
+
+    private static List<String> parse(Message message) {
+        return parse(message, message.size());
+    }
+
+    private static List<String> parse(Message message, int length) {
+        List<String> result = new ArrayList<>();
+        ByteBuffer buffer = message.buffer(28);
+        int count = new DnsResponseParser().parse(buffer, 28, length,
+                (name, address, ttl) -> result.add(name + " " + PacketView.addressToString(address) + " " + ttl));
+        assertEquals(result.size(), count);
+        return result;
+    }
+
+    @Test
+    public void reportsAddressesUnderQuestionName() {
+        Message message = new Message(0x8180, 1, 3).name("WWW.Example.com").question();
+        message.pointer(12).record(TYPE_CNAME, 300, new byte[]{3, 'c', 'd', 'n', (byte) 0xC0, 16});
+        message.putShort(0xC000 | 12).record(TYPE_A, 60, ip4(0x5DB8D822));
+        message.putShort(0xC000 | 12).record(TYPE_A, 60, ip4(0x5DB8D823));
+        List<String> result = parse(message);
+        assertEquals(2, result.size());
+        assertEquals("www.example.com 93.184.216.34 60", result.get(0));
+        assertEquals("www.example.com 93.184.216.35 60", result.get(1));
+    }
+
+    @Test
+    public void skipsNonARecords() {
+        byte[] ip6 = new byte[16];
+        ip6[15] = 1;
+        Message message = new Message(0x8180, 1, 4).name("example.com").question();
+        message.pointer(12).record(TYPE_AAAA, 60, ip6);
+        message.pointer(12).record(TYPE_CNAME, 60, new byte[]{1, 'x', 0});
+        // A record of the wrong length is not an address either
+        message.pointer(12).record(TYPE_A, 60, new byte[]{1, 2, 3});
+        message.pointer(12).record(TYPE_A, 30, ip4(0x01020304));
+        assertEquals(1, parse(message).size());
+        assertEquals("example.com 1.2.3.4 30", parse(message).get(0));
+
+        Message onlyIp6 = new Message(0x8180, 1, 1).name("example.com").question();
+        onlyIp6.pointer(12).record(TYPE_AAAA, 60, ip6);
+        assertTrue(parse(onlyIp6).isEmpty());
+    }
+
+    @Test
+    public void ignoresQueriesAndErrors() {
+        Message query = new Message(0x0100, 1, 1).name("example.com").question();
+        query.pointer(12).record(TYPE_A, 60, ip4(1));
+        assertTrue(parse(query).isEmpty());
+
+        Message nxDomain = new Message(0x8183, 1, 1).name("example.com").question();
+        nxDomain.pointer(12).record(TYPE_A, 60, ip4(1));
+        assertTrue(parse(nxDomain).isEmpty());
+    }
+
+    @Test
+    public void stopsAtTruncatedAnswer() {
+        Message message = new Message(0x8180, 1, 2).name("example.com").question();
+        message.pointer(12).record(TYPE_A, 60, ip4(0x01010101));
+        int firstEnd = message.size();
+        message.pointer(12).record(TYPE_A, 60, ip4(0x02020202));
+        // every cut inside the second record keeps the first answer and drops the second
+        for (int length = firstEnd; length < message.size(); length++) {
+            List<String> result = parse(message, length);
+            assertEquals("length " + length, 1, result.size());
+        }
+        assertEquals(2, parse(message).size());
+        for (int length = 0; length < firstEnd; length++) {
+            assertTrue(parse(message, length).isEmpty());
+        }
+    }
+
+    @Test
+    public void compressionPointerLoopIsRejected() {
+        // question name is a pointer to itself
+        Message self = new Message(0x8180, 1, 1).pointer(12).question();
+        self.pointer(12).record(TYPE_A, 60, ip4(1));
+        assertTrue(parse(self).isEmpty());
+
+        // "a" -> "b" -> "a" ..., the answer name "b" is at offset 20
+        Message loop = new Message(0x8180, 1, 1);
+        loop.putShort(0x0161).pointer(20).question();
+        loop.putShort(0x0162).pointer(12);
+        loop.record(TYPE_A, 60, ip4(1));
+        assertTrue(parse(loop).isEmpty());
+
+        // pointer past the end of the message
+        Message outside = new Message(0x8180, 1, 1).pointer(0x3FFF).question();
+        outside.pointer(12).record(TYPE_A, 60, ip4(1));
+        assertTrue(parse(outside).isEmpty());
+    }
+
+    @Test
+    public void rejectsOverlongName() {
+        StringBuilder name = new StringBuilder();
+        for (int i = 0; i < 5; i++) {
+            name.append(i > 0 ? "." : "").append(new String(new char[60]).replace('\0', 'a'));
+        }
+        Message message = new Message(0x8180, 1, 1).name(name.toString()).question();
+        message.pointer(12).record(TYPE_A, 60, ip4(1));
+        assertTrue(parse(message).isEmpty());
+    }
+}
@@ -0,0 +1,67 @@
+package io.github.nic562.screen.recorder.tools.protocol;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FlowKeyTest {
+
+    @Test
+    public void packUnpackRoundTrip() {
+        int[] addresses = {0, 1, 0x7F000001, 0x80000000, 0xC0A80101, 0xFFFFFFFF};
+        int[] ports = {0, 1, 80, 443, 32768, 65535};
+        for (int address : addresses) {
+            for (int destinationPort : ports) {
+                for (int sourcePort : ports) {
+                    long key = FlowKey.of(address, destinationPort, sourcePort);
+                    assertEquals(address, FlowKey.destinationAddress(key));
+                    assertEquals(destinationPort, FlowKey.destinationPort(key));
+                    assertEquals(sourcePort, FlowKey.sourcePort(key));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void fieldsDoNotOverlap() {
+        Set<Long> keys = new HashSet<>();
+        keys.add(FlowKey.of(1, 0, 0));
+        keys.add(FlowKey.of(0, 1, 0));
+        keys.add(FlowKey.of(0, 0, 1));
+        keys.add(FlowKey.of(0, 0, 0));
+        assertEquals(4, keys.size());
+        // out of range ports are masked rather than spilling into the neighbouring field
+        assertEquals(FlowKey.of(7, 0xFFFF, 0), FlowKey.of(7, -1, 0));
+        assertEquals(FlowKey.of(7, 0, 0x1234), FlowKey.of(7, 0, 0x51234));
+    }
+
+    @Test
+    public void keyOfViewUsesDestinationAndSourcePort() {
+        ByteBuffer buffer = ByteBuffer.allocate(Packet.IP4_HEADER_SIZE + Packet.UDP_HEADER_SIZE);
+        buffer.put(0, (byte) 0x45);
+        buffer.putShort(2, (short) buffer.capacity());
+        buffer.put(9, (byte) 17);
+        buffer.putInt(16, 0x08080808);
+        buffer.putShort(20, (short) 50000);
+        buffer.putShort(22, (short) 53);
+        long key = FlowKey.of(new PacketView(buffer));
+        assertEquals(FlowKey.of(0x08080808, 53, 50000), key);
+        assertEquals("8.8.8.8:53:50000", FlowKey.toString(key));
+    }
+
+    @Test
+    public void hashSpreadsSequentialPorts() {
+        int mask = 1023;
+        Set<Integer> slots = new HashSet<>();
+        for (int port = 40000; port < 40512; port++) {
+            slots.add(FlowKey.hash(FlowKey.of(0x0A000001, 443, port)) & mask);
+        }
+        // 512 keys into 1024 slots, a poor hash would pile them into a few
+        assertTrue(slots.size() > 350);
+    }
+}
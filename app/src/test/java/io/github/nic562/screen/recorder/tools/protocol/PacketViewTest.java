@@ -0,0 +1,100 @@
+package io.github.nic562.screen.recorder.tools.protocol;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class PacketViewTest {
+
+    private static ByteBuffer tcp(int payloadSize) {
+        int length = Packet.IP4_HEADER_SIZE + Packet.TCP_HEADER_SIZE + payloadSize;
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        buffer.put(0, (byte) 0x45);
+        buffer.putShort(2, (short) length);
+        buffer.put(9, (byte) 6);
+        buffer.putInt(12, 0x0A000102);
+        buffer.putInt(16, 0x5DB8D822);
+        buffer.putShort(20, (short) 40000);
+        buffer.putShort(22, (short) 443);
+        buffer.putInt(24, 1000);
+        buffer.put(32, (byte) 0x50);
+        buffer.put(33, (byte) Packet.TCPHeader.SYN);
+        return buffer;
+    }
+
+    @Test
+    public void acceptsWellFormedTcp() {
+        ByteBuffer buffer = tcp(10);
+        assertTrue(PacketView.isValid(buffer));
+        PacketView view = new PacketView(buffer);
+        assertEquals(4, view.version());
+        assertEquals(443, view.destinationPort());
+        assertEquals(10, view.payloadSize());
+    }
+
+    @Test
+    public void rejectsShortBuffers() {
+        assertFalse(PacketView.isValid(ByteBuffer.allocate(0)));
+        assertFalse(PacketView.isValid(ByteBuffer.allocate(Packet.IP4_HEADER_SIZE - 1)));
+        ByteBuffer buffer = tcp(0);
+        buffer.limit(Packet.IP4_HEADER_SIZE + 10);
+        assertFalse(PacketView.isValid(buffer));
+    }
+
+    @Test
+    public void rejectsMalformedHeaders() {
+        ByteBuffer ipv6 = tcp(0);
+        ipv6.put(0, (byte) 0x65);
+        assertFalse(PacketView.isValid(ipv6));
+
+        ByteBuffer shortIhl = tcp(0);
+        shortIhl.put(0, (byte) 0x44);
+        assertFalse(PacketView.isValid(shortIhl));
+
+        ByteBuffer longIhl = tcp(0);
+        longIhl.put(0, (byte) 0x4F);
+        assertFalse(PacketView.isValid(longIhl));
+
+        ByteBuffer totalTooLong = tcp(0);
+        totalTooLong.putShort(2, (short) 1000);
+        assertFalse(PacketView.isValid(totalTooLong));
+
+        ByteBuffer tcpOffsetTooLong = tcp(0);
+        tcpOffsetTooLong.put(32, (byte) 0xF0);
+        assertFalse(PacketView.isValid(tcpOffsetTooLong));
+    }
+
+    @Test
+    public void packetRejectsMalformedBuffer() {
+        try {
+            new Packet(ByteBuffer.allocate(4), new PacketView());
+            fail();
+        } catch (IllegalArgumentException expected) {
+            // rejected before any header access
+        }
+    }
+
+    @Test
+    public void packetSharesCallerView() {
+        PacketView view = new PacketView();
+        ByteBuffer buffer = tcp(5);
+        Packet packet = new Packet(buffer, view);
+        assertTrue(packet.isTCP);
+        assertEquals(Packet.IP4_HEADER_SIZE + Packet.TCP_HEADER_SIZE, buffer.position());
+        assertEquals(FlowKey.of(0x5DB8D822, 443, 40000), packet.flowKey);
+
+        // the view is re-pointed at another packet, this one can still be read through any view
+        new Packet(tcp(0), view);
+        assertSame(view, packet.view(view));
+        assertEquals(5, view.payloadSize());
+        assertTrue(view.isSYN());
+        assertNull(new Packet().view(view));
+    }
+}
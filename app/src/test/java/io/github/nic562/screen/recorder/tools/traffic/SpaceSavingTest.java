@@ -0,0 +1,119 @@
+package io.github.nic562.screen.recorder.tools.traffic;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SpaceSavingTest {
+
+    private static boolean contains(List<SpaceSaving.Entry> entries, long item) {
+        for (SpaceSaving.Entry entry : entries) {
+            if (entry.item == item) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Test
+    public void exactWhileUnderCapacity() {
+        SpaceSaving sketch = new SpaceSaving(4);
+        sketch.add(1, 10);
+        sketch.add(2, 30);
+        sketch.add(1, 5);
+        sketch.add(3, 20);
+        List<SpaceSaving.Entry> top = sketch.top(10);
+        assertEquals(3, top.size());
+        assertEquals(2, top.get(0).item);
+        assertEquals(30, top.get(0).count);
+        assertEquals(3, top.get(1).item);
+        assertEquals(1, top.get(2).item);
+        assertEquals(15, top.get(2).count);
+        for (SpaceSaving.Entry entry : top) {
+            assertEquals(0, entry.error);
+        }
+        assertEquals(1, sketch.top(1).size());
+    }
+
+    @Test
+    public void newItemTakesOverMinimumCounter() {
+        SpaceSaving sketch = new SpaceSaving(3);
+        sketch.add(1, 100);
+        sketch.add(2, 7);
+        sketch.add(3, 50);
+        // 计数器已满，最小的 2 被替换，新元素继承其计数作为误差
+        sketch.add(4, 1);
+        List<SpaceSaving.Entry> top = sketch.top(3);
+        assertEquals(3, sketch.size());
+        assertFalse(contains(top, 2));
+        SpaceSaving.Entry last = top.get(2);
+        assertEquals(4, last.item);
+        assertEquals(8, last.count);
+        assertEquals(7, last.error);
+        // 下一次替换的是当前最小的 4，而不是更早加入的元素
+        sketch.add(5, 1);
+        top = sketch.top(3);
+        assertFalse(contains(top, 4));
+        assertTrue(contains(top, 1));
+        assertTrue(contains(top, 3));
+        assertEquals(9, top.get(2).count);
+        assertEquals(8, top.get(2).error);
+    }
+
+    @Test
+    public void countsBoundTrueTotals() {
+        Random random = new Random(22);
+        int capacity = 32;
+        SpaceSaving sketch = new SpaceSaving(capacity);
+        Map<Long, Long> exact = new HashMap<>();
+        long total = 0;
+        for (int i = 0; i < 100000; i++) {
+            // 少数大流量加上大量长尾
+            long item = random.nextInt(10) < 3 ? random.nextInt(5) : 100 + random.nextInt(5000);
+            long weight = 1 + random.nextInt(1500);
+            sketch.add(item, weight);
+            exact.merge(item, weight, Long::sum);
+            total += weight;
+        }
+        List<SpaceSaving.Entry> top = sketch.top(capacity);
+        long minCount = top.get(top.size() - 1).count;
+        for (SpaceSaving.Entry entry : top) {
+            long actual = exact.get(entry.item);
+            assertTrue(entry.count >= actual);
+            assertTrue(entry.count - entry.error <= actual);
+            assertTrue(entry.error <= minCount);
+            assertTrue(entry.error <= total / capacity);
+        }
+        // 累计超过 总权重 / capacity 的元素必然在监视之列
+        for (Map.Entry<Long, Long> e : exact.entrySet()) {
+            if (e.getValue() > total / capacity) {
+                assertTrue("heavy item " + e.getKey(), contains(top, e.getKey()));
+            }
+        }
+        for (long heavy = 0; heavy < 5; heavy++) {
+            assertTrue(contains(sketch.top(5), heavy));
+        }
+    }
+
+    @Test
+    public void clearStartsOver() {
+        SpaceSaving sketch = new SpaceSaving(2);
+        sketch.add(1, 1);
+        sketch.add(2, 2);
+        sketch.add(3, 3);
+        sketch.clear();
+        assertEquals(0, sketch.size());
+        sketch.add(9, 4);
+        List<SpaceSaving.Entry> top = sketch.top(2);
+        assertEquals(1, top.size());
+        assertEquals(9, top.get(0).item);
+        assertEquals(0, top.get(0).error);
+    }
+}
@@ -0,0 +1,166 @@
+package io.github.nic562.screen.recorder.tools.traffic;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TrafficLogTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static void writeSamples(File file, int from, int to) throws IOException {
+        try (TrafficLogWriter writer = new TrafficLogWriter(file, 0)) {
+            for (int i = from; i < to; i++) {
+                writer.beginSample(i, i * 10L, i * 20L);
+                writer.app("app" + (i % 3), i, i + 1);
+                if (i % 2 == 0) {
+                    writer.app("应用", 7, 8);
+                }
+                writer.destination("host" + (i % 5) + ".example.com", i * 100L);
+                writer.endSample();
+            }
+        }
+    }
+
+    private static void assertSample(TrafficLogReader.Sample sample, int i) {
+        assertEquals(i, sample.time);
+        assertEquals(i * 10L, sample.downBytes);
+        assertEquals(i * 20L, sample.upBytes);
+        assertEquals(i % 2 == 0 ? 2 : 1, sample.appCount);
+        assertEquals("app" + (i % 3), sample.appNames[0]);
+        assertEquals(i, sample.appDownBytes[0]);
+        assertEquals(i + 1, sample.appUpBytes[0]);
+        if (i % 2 == 0) {
+            assertEquals("应用", sample.appNames[1]);
+            assertEquals(7, sample.appDownBytes[1]);
+            assertEquals(8, sample.appUpBytes[1]);
+        }
+        assertEquals(1, sample.destinationCount);
+        assertEquals("host" + (i % 5) + ".example.com", sample.destinationNames[0]);
+        assertEquals(i * 100L, sample.destinationBytes[0]);
+    }
+
+    private static int readAll(File file) throws IOException {
+        TrafficLogReader.Sample sample = new TrafficLogReader.Sample();
+        int n = 0;
+        try (TrafficLogReader reader = new TrafficLogReader(file)) {
+            while (reader.next(sample)) {
+                assertSample(sample, n);
+                n++;
+            }
+        }
+        return n;
+    }
+
+    @Test
+    public void roundTripWithNameTable() throws IOException {
+        File file = new File(folder.getRoot(), "traffic.dat");
+        writeSamples(file, 0, 5000);
+        assertEquals(5000, readAll(file));
+        try (TrafficLogReader reader = new TrafficLogReader(file)) {
+            assertFalse(reader.isDateTime());
+        }
+    }
+
+    @Test
+    public void appendingStartsNewSessionOfNames() throws IOException {
+        File file = new File(folder.getRoot(), "traffic.dat");
+        writeSamples(file, 0, 10);
+        // 新会话的名称编号从 0 重新开始，读取方按会话解析
+        writeSamples(file, 10, 20);
+        assertEquals(20, readAll(file));
+    }
+
+    @Test
+    public void readerStopsAtTruncatedTail() throws IOException {
+        File file = new File(folder.getRoot(), "traffic.dat");
+        writeSamples(file, 0, 20);
+        byte[] whole = Files.readAllBytes(file.toPath());
+        int previous = 0;
+        for (int length = TrafficLogWriter.HEADER_SIZE; length <= whole.length; length++) {
+            try (RandomAccessFile f = new RandomAccessFile(file, "rw")) {
+                f.setLength(0);
+                f.write(whole, 0, length);
+            }
+            int n = readAll(file);
+            assertTrue(n >= previous && n <= 20);
+            previous = n;
+        }
+        assertEquals(20, previous);
+    }
+
+    @Test
+    public void writerTruncatesIncompleteTailBeforeAppending() throws IOException {
+        File file = new File(folder.getRoot(), "traffic.dat");
+        writeSamples(file, 0, 10);
+        long complete = file.length();
+        writeSamples(file, 10, 11);
+        byte[] whole = Files.readAllBytes(file.toPath());
+        // 第 11 条采样只写了一部分就中断
+        for (int cut = (int) complete + 1; cut < whole.length; cut += 7) {
+            try (RandomAccessFile f = new RandomAccessFile(file, "rw")) {
+                f.setLength(0);
+                f.write(whole, 0, cut);
+            }
+            try (TrafficLogWriter writer = new TrafficLogWriter(file, 0)) {
+                writer.beginSample(10, 100, 200);
+                writer.app("app1", 10, 11);
+                writer.destination("host0.example.com", 1000);
+                writer.endSample();
+            }
+            TrafficLogReader.Sample sample = new TrafficLogReader.Sample();
+            int n = 0;
+            try (TrafficLogReader reader = new TrafficLogReader(file)) {
+                while (reader.next(sample)) {
+                    if (n < 10) {
+                        assertSample(sample, n);
+                    }
+                    n++;
+                }
+            }
+            assertEquals("cut at " + cut, 11, n);
+            assertEquals(10, sample.time);
+            assertEquals("app1", sample.appNames[0]);
+            assertEquals("host0.example.com", sample.destinationNames[0]);
+        }
+    }
+
+    @Test
+    public void writerKeepsCompleteFileAsIs() throws IOException {
+        File file = new File(folder.getRoot(), "traffic.dat");
+        writeSamples(file, 0, 3);
+        byte[] before = Files.readAllBytes(file.toPath());
+        new TrafficLogWriter(file, 0).close();
+        byte[] after = Files.readAllBytes(file.toPath());
+        // 只多了一条会话记录
+        assertEquals(before.length + 1, after.length);
+        byte[] prefix = new byte[before.length];
+        System.arraycopy(after, 0, prefix, 0, before.length);
+        assertArrayEquals(before, prefix);
+    }
+
+    @Test
+    public void rejectsOtherFiles() throws IOException {
+        File file = folder.newFile("other.dat");
+        Files.write(file.toPath(), "not a traffic log".getBytes());
+        try {
+            new TrafficLogWriter(file, 0).close();
+            fail();
+        } catch (IOException expected) {
+            // 不覆盖别的文件
+        }
+        assertEquals("not a traffic log", new String(Files.readAllBytes(file.toPath())));
+    }
+}
@@ -0,0 +1,174 @@
+package io.github.nic562.screen.recorder.tools.traffic;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TrafficRingLogTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static TrafficRingLogReader.Sample[] samples(int n) {
+        TrafficRingLogReader.Sample[] samples = new TrafficRingLogReader.Sample[n];
+        for (int i = 0; i < n; i++) {
+            samples[i] = new TrafficRingLogReader.Sample();
+        }
+        return samples;
+    }
+
+    private static void append(TrafficRingLog log, long i) {
+        log.append(1000 + i, i * 3, i * 5);
+    }
+
+    private static void assertSample(TrafficRingLogReader.Sample sample, long index) {
+        assertEquals(index, sample.index);
+        assertEquals(1000 + index, sample.time);
+        assertEquals(index * 3, sample.downBytes);
+        assertEquals(index * 5, sample.upBytes);
+    }
+
+    @Test
+    public void readsBeforeWrap() throws IOException {
+        File file = new File(folder.getRoot(), "traffic.ring");
+        try (TrafficRingLog log = new TrafficRingLog(file, 8, 100);
+             TrafficRingLogReader reader = new TrafficRingLogReader(file)) {
+            assertEquals(8, reader.getCapacity());
+            assertEquals(100, reader.getIntervalMs());
+            assertEquals(0, reader.read(0, samples(4)));
+            for (int i = 0; i < 5; i++) {
+                append(log, i);
+            }
+            assertEquals(5, reader.count());
+            assertEquals(0, reader.oldest());
+            TrafficRingLogReader.Sample[] samples = samples(8);
+            assertEquals(5, reader.read(0, samples));
+            for (int i = 0; i < 5; i++) {
+                assertSample(samples[i], i);
+            }
+            assertEquals(2, reader.read(3, samples));
+            assertSample(samples[0], 3);
+        }
+    }
+
+    @Test
+    public void overwrittenSamplesAreSkippedAfterWrap() throws IOException {
+        File file = new File(folder.getRoot(), "traffic.ring");
+        try (TrafficRingLog log = new TrafficRingLog(file, 8, 100);
+             TrafficRingLogReader reader = new TrafficRingLogReader(file)) {
+            for (int i = 0; i < 21; i++) {
+                append(log, i);
+            }
+            assertEquals(21, reader.count());
+            assertEquals(13, reader.oldest());
+            TrafficRingLogReader.Sample[] samples = samples(16);
+            // 起点早于最早一条时从最早一条开始，跨过文件末尾绕回开头
+            assertEquals(8, reader.read(0, samples));
+            for (int i = 0; i < 8; i++) {
+                assertSample(samples[i], 13 + i);
+            }
+            // 按页读取
+            TrafficRingLogReader.Sample[] page = samples(3);
+            long from = reader.oldest();
+            int total = 0;
+            int n;
+            while ((n = reader.read(from, page)) > 0) {
+                for (int i = 0; i < n; i++) {
+                    assertSample(page[i], from + i);
+                }
+                total += n;
+                from = page[n - 1].index + 1;
+            }
+            assertEquals(8, total);
+            // 之后写入的采样从下一序号接着读到
+            append(log, 21);
+            assertEquals(1, reader.read(from, page));
+            assertSample(page[0], 21);
+        }
+    }
+
+    @Test
+    public void exportKeepsMostRecent() throws IOException {
+        File file = new File(folder.getRoot(), "traffic.ring");
+        try (TrafficRingLog log = new TrafficRingLog(file, 300, 10);
+             TrafficRingLogReader reader = new TrafficRingLogReader(file)) {
+            for (int i = 0; i < 1000; i++) {
+                append(log, i);
+            }
+            StringBuilder out = new StringBuilder();
+            reader.exportTsv(out, 500);
+            String[] lines = out.toString().split("\n");
+            // 表头加上仍在文件中的 300 条
+            assertEquals(301, lines.length);
+            assertTrue(lines[1].endsWith("\t" + 700 * 3 + "\t" + 700 * 5));
+            assertTrue(lines[300].endsWith("\t" + 999 * 3 + "\t" + 999 * 5));
+
+            out.setLength(0);
+            reader.exportTsv(out, 10);
+            assertEquals(11, out.toString().split("\n").length);
+        }
+    }
+
+    @Test
+    public void tornRecordIsDropped() throws IOException {
+        File file = new File(folder.getRoot(), "traffic.ring");
+        try (TrafficRingLog log = new TrafficRingLog(file, 4, 100)) {
+            for (int i = 0; i < 4; i++) {
+                append(log, i);
+            }
+        }
+        // 第 2 条的下行字节数换成了别的值，序号仍然相符
+        try (RandomAccessFile f = new RandomAccessFile(file, "rw")) {
+            f.seek(TrafficRingLog.HEADER_SIZE + 2 * TrafficRingLog.RECORD_SIZE + 16);
+            f.write(0x7F);
+        }
+        try (TrafficRingLogReader reader = new TrafficRingLogReader(file)) {
+            TrafficRingLogReader.Sample[] samples = samples(4);
+            assertEquals(2, reader.read(0, samples));
+            assertSample(samples[1], 1);
+            assertEquals(1, reader.read(3, samples));
+            assertSample(samples[0], 3);
+        }
+    }
+
+    @Test
+    public void concurrentReaderNeverSeesMixedRecords() throws Exception {
+        File file = new File(folder.getRoot(), "traffic.ring");
+        final TrafficRingLog log = new TrafficRingLog(file, 16, 1);
+        final AtomicBoolean done = new AtomicBoolean();
+        Thread writer = new Thread(() -> {
+            for (int i = 0; i < 2000000; i++) {
+                append(log, i);
+            }
+            done.set(true);
+        });
+        try (TrafficRingLogReader reader = new TrafficRingLogReader(file)) {
+            writer.start();
+            TrafficRingLogReader.Sample[] samples = samples(8);
+            long reads = 0;
+            while (!done.get()) {
+                long from = reader.count() - 10;
+                int n = reader.read(from, samples);
+                for (int i = 0; i < n; i++) {
+                    assertSample(samples[i], samples[i].index);
+                    if (i > 0) {
+                        assertEquals(samples[i - 1].index + 1, samples[i].index);
+                    }
+                }
+                reads += n;
+            }
+            writer.join();
+            assertTrue(reads > 0);
+        } finally {
+            log.close();
+        }
+    }
+}
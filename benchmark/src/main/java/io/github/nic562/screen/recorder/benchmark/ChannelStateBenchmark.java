@@ -0,0 +1,132 @@
+package io.github.nic562.screen.recorder.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.channels.Pipe;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-channel state lookup of NioSingleThreadTcpHandler: the former global {@code synchronized}
+ * ObjAttrUtil map against the typed {@code SelectionKey} attachment.
+ * <p>
+ * The lookup benchmarks do what one selected key costs in handleSockets + doWrite. The state is
+ * shared, run with {@code -t 4} to see the lock contention of the legacy map. The churn benchmarks
+ * open one connection per call; the legacy map never removed its entries, run with {@code -prof gc}
+ * and look at the retained entry count printed after each iteration.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ChannelStateBenchmark {
+
+    static class PipeState {
+        SelectionKey key;
+    }
+
+    @State(Scope.Benchmark)
+    public static class Channels {
+        @Param({"16", "256"})
+        public int flows;
+
+        Selector selector;
+        Pipe[] pipes;
+        SelectionKey[] keys;
+        final LegacyObjAttrUtil legacy = new LegacyObjAttrUtil();
+
+        @Setup
+        public void setup() throws IOException {
+            selector = Selector.open();
+            pipes = new Pipe[flows];
+            keys = new SelectionKey[flows];
+            for (int i = 0; i < flows; i++) {
+                pipes[i] = Pipe.open();
+                Pipe.SourceChannel channel = pipes[i].source();
+                channel.configureBlocking(false);
+                PipeState pipe = new PipeState();
+                pipe.key = channel.register(selector, SelectionKey.OP_READ, pipe);
+                keys[i] = pipe.key;
+                legacy.setAttr(channel, "type", "remote");
+                legacy.setAttr(channel, "pipe", pipe);
+                legacy.setAttr(channel, "key", pipe.key);
+            }
+        }
+
+        @TearDown
+        public void tearDown() throws IOException {
+            for (Pipe pipe : pipes) {
+                pipe.source().close();
+                pipe.sink().close();
+            }
+            selector.close();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next;
+
+        SelectionKey next(Channels channels) {
+            SelectionKey key = channels.keys[next];
+            next = next + 1 == channels.flows ? 0 : next + 1;
+            return key;
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Churn {
+        final LegacyObjAttrUtil legacy = new LegacyObjAttrUtil();
+
+        @TearDown(Level.Iteration)
+        public void report() {
+            System.out.println("legacy retained entries: " + legacy.size());
+        }
+    }
+
+    @Benchmark
+    public Object legacyLookup(Channels channels, Cursor cursor) {
+        Object channel = cursor.next(channels).channel();
+        PipeState pipe = (PipeState) channels.legacy.getAttr(channel, "pipe");
+        channels.legacy.getAttr(channel, "pipe");
+        SelectionKey key = (SelectionKey) channels.legacy.getAttr(channel, "key");
+        return key == pipe.key ? key : null;
+    }
+
+    @Benchmark
+    public Object attachmentLookup(Channels channels, Cursor cursor) {
+        PipeState pipe = (PipeState) cursor.next(channels).attachment();
+        return pipe.key;
+    }
+
+    @Benchmark
+    public Object legacyChurn(Churn churn) {
+        Object channel = new Object();
+        PipeState pipe = new PipeState();
+        churn.legacy.setAttr(channel, "type", "remote");
+        churn.legacy.setAttr(channel, "pipe", pipe);
+        churn.legacy.setAttr(channel, "key", pipe.key);
+        return churn.legacy.getAttr(channel, "pipe");
+    }
+
+    @Benchmark
+    public Object attachmentChurn() {
+        // state lives and dies with the pipe, nothing outside of it references the entry
+        return new PipeState();
+    }
+}
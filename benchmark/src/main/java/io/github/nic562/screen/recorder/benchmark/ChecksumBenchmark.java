@@ -0,0 +1,77 @@
+package io.github.nic562.screen.recorder.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import io.github.nic562.screen.recorder.tools.protocol.Checksum;
+import io.github.nic562.screen.recorder.tools.protocol.Packet;
+
+/**
+ * TCP + IPv4 checksum of one outgoing segment: the old per-short implementation, the 8-bytes-at-a-time
+ * full sum and the RFC 1624 incremental rewrite of seq/ack/flags/window.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ChecksumBenchmark {
+    private static final int HEADER_SIZE = Packet.IP4_HEADER_SIZE + Packet.TCP_HEADER_SIZE;
+
+    @Param({"0", "64", "512", "1460", "4096", "16344"})
+    public int payloadSize;
+
+    private ByteBuffer buffer;
+    private InetAddress sourceAddress;
+    private InetAddress destinationAddress;
+    private long seq;
+
+    @Setup
+    public void setup() throws Exception {
+        sourceAddress = InetAddress.getByName("93.184.216.34");
+        destinationAddress = InetAddress.getByName("10.0.1.2");
+        Packet packet = Packet.buildTcpPacket(new InetSocketAddress(sourceAddress, 443),
+                new InetSocketAddress(destinationAddress, 40000), (byte) Packet.TCPHeader.ACK, 1, 1, 1);
+        buffer = ByteBuffer.allocateDirect(HEADER_SIZE + payloadSize);
+        byte[] payload = new byte[payloadSize];
+        new Random(42).nextBytes(payload);
+        buffer.position(HEADER_SIZE);
+        buffer.put(payload);
+        packet.updateTCPBuffer(buffer, (byte) Packet.TCPHeader.ACK, 1, 1, payloadSize);
+    }
+
+    @Benchmark
+    public int legacyFullSum() {
+        return LegacyChecksum.tcp(buffer, sourceAddress, destinationAddress, Packet.TCP_HEADER_SIZE + payloadSize)
+                + LegacyChecksum.ip4(buffer, Packet.IP4_HEADER_SIZE);
+    }
+
+    @Benchmark
+    public int fullSum() {
+        return Checksum.updateTcp(buffer, 0, Packet.IP4_HEADER_SIZE, Packet.TCP_HEADER_SIZE + payloadSize)
+                + Checksum.updateIp4(buffer, 0);
+    }
+
+    @Benchmark
+    public short incrementalRewrite() {
+        seq += payloadSize;
+        Packet.rewriteTCPHeader(buffer, (byte) Packet.TCPHeader.ACK, seq, seq + 1, 65535);
+        return buffer.getShort(Packet.IP4_HEADER_SIZE + 16);
+    }
+}
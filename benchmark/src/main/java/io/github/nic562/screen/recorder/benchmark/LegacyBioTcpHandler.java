@@ -1,30 +1,49 @@
-package io.github.nic562.screen.recorder.tools.bio;
+package io.github.nic562.screen.recorder.benchmark;
 
 import android.net.VpnService;
 import android.os.Build;
 import android.util.Log;
 
 import java.io.IOException;
-import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.ClosedChannelException;
 import java.nio.channels.SocketChannel;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import io.github.nic562.screen.recorder.tools.bio.BioUtil;
+import io.github.nic562.screen.recorder.tools.bio.LongObjectMap;
+import io.github.nic562.screen.recorder.tools.protocol.ByteBufferPool;
+import io.github.nic562.screen.recorder.tools.protocol.FlowKey;
 import io.github.nic562.screen.recorder.tools.protocol.Packet;
 import io.github.nic562.screen.recorder.tools.protocol.Packet.TCPHeader;
-import io.github.nic562.screen.recorder.tools.protocol.TCBStatus;;
-
-public class BioTcpHandler implements Runnable {
+import io.github.nic562.screen.recorder.tools.protocol.PacketView;
+import io.github.nic562.screen.recorder.tools.protocol.TCBStatus;
+
+/**
+ * Copy of the thread-per-connection BioTcpHandler the VPN service used before the NIO handler: every
+ * connection gets an UpStreamWorker and a DownStreamWorker thread and a blocking connect. Kept as the
+ * baseline for {@link TcpFlowScalingBenchmark}.
+ */
+final class LegacyBioTcpHandler implements Runnable {
+
+    static class ProxyException extends RuntimeException {
+        ProxyException(String msg) {
+            super(msg);
+        }
+    }
 
     BlockingQueue<Packet> queue;
-    ConcurrentHashMap<String, TcpTunnel> tunnels = new ConcurrentHashMap();
+    // 只在 run() 线程中访问
+    LongObjectMap<TcpTunnel> tunnels = new LongObjectMap<>();
 
     private static int HEADER_SIZE = Packet.IP4_HEADER_SIZE + Packet.TCP_HEADER_SIZE;
+    // 本端通告的 MSS，发往设备的包不超过 tun 的 MTU
+    private static final int MSS = Packet.MTU - HEADER_SIZE;
+    // SYN-ACK 只带 MSS 选项
+    private static final byte[] SYN_OPTIONS = {TCPHeader.OPTION_MSS, 4, (byte) (MSS >> 8), (byte) MSS};
 
     static class TcpTunnel {
 
@@ -35,6 +54,10 @@ public class BioTcpHandler implements Runnable {
         public long theirSequenceNum = 0;
         public long myAcknowledgementNum = 0;
         public long theirAcknowledgementNum = 0;
+        // 发送窗口，mySequenceNum 即 SND.NXT；SYN-ACK 不带窗口扩大选项，设备通告的窗口不放大
+        public long sndUna = 0;
+        public int sndWnd = 0;
+        public int sndMss = TCPHeader.DEFAULT_MSS;//发往设备的数据段大小上限
 
         public TCBStatus tcbStatus = TCBStatus.SYN_SENT;
         public BlockingQueue<Packet> tunnelInputQueue = new ArrayBlockingQueue(1024);
@@ -43,25 +66,28 @@ public class BioTcpHandler implements Runnable {
         public SocketChannel destSocket;
         private VpnService vpnService;
         BlockingQueue<ByteBuffer> networkToDeviceQueue;
+        ByteBufferPool bufferPool;
 
         public int packId = 1;
 
         public boolean upActive = true;
         public boolean downActive = true;
-        public String tunnelKey;
-        public BlockingQueue<String> tunnelCloseMsgQueue;
+        public long tunnelKey;
+        public BlockingQueue<Long> tunnelCloseMsgQueue;
 
     }
 
-    private static final String TAG = BioTcpHandler.class.getSimpleName();
+    private static final String TAG = LegacyBioTcpHandler.class.getSimpleName();
 
     private VpnService vpnService;
     BlockingQueue<ByteBuffer> networkToDeviceQueue;
+    ByteBufferPool bufferPool;
 
-    public BioTcpHandler(BlockingQueue<Packet> queue, BlockingQueue<ByteBuffer> networkToDeviceQueue, VpnService vpnService) {
+    public LegacyBioTcpHandler(BlockingQueue<Packet> queue, BlockingQueue<ByteBuffer> networkToDeviceQueue, VpnService vpnService, ByteBufferPool bufferPool) {
         this.queue = queue;
         this.vpnService = vpnService;
         this.networkToDeviceQueue = networkToDeviceQueue;
+        this.bufferPool = bufferPool;
     }
 
     private static void sendTcpPack(TcpTunnel tunnel, byte flag, byte[] data) {
@@ -73,23 +99,27 @@ public class BioTcpHandler implements Runnable {
         if (data != null) {
             dataLen = data.length;
         }
+        byte[] options = (flag & (byte) TCPHeader.SYN) != 0 ? SYN_OPTIONS : null;
+        int headerSize = HEADER_SIZE + (options == null ? 0 : options.length);
         Packet packet = Packet.buildTcpPacket(tunnel.destinationAddress, tunnel.sourceAddress, flag,
                 tunnel.myAcknowledgementNum, tunnel.mySequenceNum, tunnel.packId);
         tunnel.packId += 1;
-        ByteBuffer byteBuffer = ByteBuffer.allocate(Packet.DEF_BUFFER_SIZE);
+        ByteBuffer byteBuffer = tunnel.bufferPool.acquire(headerSize + dataLen);
         //
-        byteBuffer.position(HEADER_SIZE);
+        byteBuffer.position(headerSize);
         if (data != null) {
-            if (byteBuffer.remaining() < data.length) {
-                System.currentTimeMillis();
-            }
             byteBuffer.put(data);
         }
 
-        packet.updateTCPBuffer(byteBuffer, flag, tunnel.mySequenceNum, tunnel.myAcknowledgementNum, dataLen);
-        byteBuffer.position(HEADER_SIZE + dataLen);
+        packet.updateTCPBuffer(byteBuffer, flag, tunnel.mySequenceNum, tunnel.myAcknowledgementNum,
+                0xFFFF, options, dataLen);
+        // 入队前置为读模式，输出线程直接写出，不再 flip
+        byteBuffer.limit(headerSize + dataLen);
+        byteBuffer.position(0);
 
-        tunnel.networkToDeviceQueue.offer(byteBuffer);
+        if (!tunnel.networkToDeviceQueue.offer(byteBuffer)) {
+            tunnel.bufferPool.release(byteBuffer);
+        }
 
         if ((flag & (byte) TCPHeader.SYN) != 0) {
             tunnel.mySequenceNum += 1;
@@ -105,6 +135,7 @@ public class BioTcpHandler implements Runnable {
     private static class UpStreamWorker implements Runnable {
 
         TcpTunnel tunnel;
+        private final PacketView packetView = new PacketView();
 
         public UpStreamWorker(TcpTunnel tunnel) {
             this.tunnel = tunnel;
@@ -145,15 +176,19 @@ public class BioTcpHandler implements Runnable {
                 tunnel.tcbStatus = TCBStatus.SYN_RECEIVED;
             }
 //            Log.i(TAG, String.format("handleSyn  %d %d", tunnel.tunnelId, packet.packId));
-            TCPHeader tcpHeader = packet.tcpHeader;
+            PacketView view = packet.view(packetView);
             if (synCount == 0) {
                 tunnel.mySequenceNum = 1;
-                tunnel.theirSequenceNum = tcpHeader.sequenceNumber;
-                tunnel.myAcknowledgementNum = tcpHeader.sequenceNumber + 1;
-                tunnel.theirAcknowledgementNum = tcpHeader.acknowledgementNumber;
+                tunnel.sndUna = 1;
+                tunnel.sndWnd = view.window();
+                int mss = view.tcpMss();
+                tunnel.sndMss = Math.min(MSS, mss > 0 ? mss : TCPHeader.DEFAULT_MSS);
+                tunnel.theirSequenceNum = view.sequenceNumber();
+                tunnel.myAcknowledgementNum = view.sequenceNumber() + 1;
+                tunnel.theirAcknowledgementNum = view.acknowledgementNumber();
                 sendTcpPack(tunnel, (byte) (TCPHeader.SYN | TCPHeader.ACK), null);
             } else {
-                tunnel.myAcknowledgementNum = tcpHeader.sequenceNumber + 1;
+                tunnel.myAcknowledgementNum = view.sequenceNumber() + 1;
             }
             synCount += 1;
         }
@@ -175,21 +210,23 @@ public class BioTcpHandler implements Runnable {
 
 //            Log.d(TAG, String.format("handleAck %d ", packet.packId));
 
-            TCPHeader tcpHeader = packet.tcpHeader;
+            PacketView view = packet.view(packetView);
+            updateSendWindow(view);
+
             int payloadSize = packet.backingBuffer.remaining();
 
             if (payloadSize == 0) {
                 return;
             }
 
-            long newAck = tcpHeader.sequenceNumber + payloadSize;
-            if (newAck <= tunnel.myAcknowledgementNum) {
+            long newAck = view.sequenceNumber() + payloadSize;
+            if ((int) (newAck - tunnel.myAcknowledgementNum) <= 0) {
                 Log.d(TAG, String.format("handleAck duplicate ack", tunnel.myAcknowledgementNum, newAck));
                 return;
             }
 
-            tunnel.myAcknowledgementNum = tcpHeader.sequenceNumber;
-            tunnel.theirAcknowledgementNum = tcpHeader.acknowledgementNumber;
+            tunnel.myAcknowledgementNum = view.sequenceNumber();
+            tunnel.theirAcknowledgementNum = view.acknowledgementNumber();
 
             tunnel.myAcknowledgementNum += payloadSize;
             writeToRemote(packet.backingBuffer);
@@ -199,10 +236,24 @@ public class BioTcpHandler implements Runnable {
             System.currentTimeMillis();
         }
 
+        /**
+         * 更新设备已确认的序号及窗口，唤醒等待窗口的 DownStreamWorker
+         */
+        private void updateSendWindow(PacketView view) {
+            int acked = (int) (view.acknowledgementNumber() - tunnel.sndUna);
+            if (acked < 0 || acked > (int) (tunnel.mySequenceNum - tunnel.sndUna)) {
+                return;
+            }
+            tunnel.sndUna += acked;
+            tunnel.sndWnd = view.window();
+            tunnel.notifyAll();
+        }
+
         private void handleFin(Packet packet) {
             Log.i(TAG, String.format("handleFin %d", tunnel.tunnelId));
-            tunnel.myAcknowledgementNum = packet.tcpHeader.sequenceNumber + 1;
-            tunnel.theirAcknowledgementNum = packet.tcpHeader.acknowledgementNumber;
+            PacketView view = packet.view(packetView);
+            tunnel.myAcknowledgementNum = view.sequenceNumber() + 1;
+            tunnel.theirAcknowledgementNum = view.acknowledgementNumber();
             sendTcpPack(tunnel, (byte) (TCPHeader.ACK), null);
             //closeTunnel(tunnel);
             //closeDownStream();
@@ -240,13 +291,13 @@ public class BioTcpHandler implements Runnable {
                     //Log.i(TAG, "lastIdentification " + tunnel.lastIdentification);
                     synchronized (tunnel) {
                         boolean end = false;
-                        TCPHeader tcpHeader = packet.tcpHeader;
+                        PacketView view = packet.view(packetView);
 
-                        if (tcpHeader.isSYN()) {
+                        if (view.isSYN()) {
                             handleSyn(packet);
                             end = true;
                         }
-                        if (!end && tcpHeader.isRST()) {
+                        if (!end && view.isRST()) {
                             //
                             //Log.i(TAG, String.format("handleRst %d", tunnel.tunnelId));
                             //tunnel.destSocket.close();
@@ -254,11 +305,11 @@ public class BioTcpHandler implements Runnable {
                             end = true;
                             break;
                         }
-                        if (!end && tcpHeader.isFIN()) {
+                        if (!end && view.isFIN()) {
                             handleFin(packet);
                             end = true;
                         }
-                        if (!end && tcpHeader.isACK()) {
+                        if (!end && view.isACK()) {
                             handleAck(packet);
                         }
 //                        if (!tunnel.downActive && !tunnel.upActive) {
@@ -271,6 +322,10 @@ public class BioTcpHandler implements Runnable {
                 } catch (IOException e) {
                     e.printStackTrace();
                     return;
+                } finally {
+                    if (packet != null) {
+                        tunnel.bufferPool.release(packet.backingBuffer);
+                    }
                 }
             }
             Log.i(TAG, String.format("UpStreamWorker quit"));
@@ -358,6 +413,27 @@ public class BioTcpHandler implements Runnable {
         }
     }
 
+    private static final int QUEUE_LOW_WATER = 64;
+
+    /**
+     * 等待设备窗口有空间且 networkToDeviceQueue 未满
+     *
+     * @return 可发送的字节数
+     */
+    private static int waitSendWindow(TcpTunnel tunnel) throws InterruptedException {
+        synchronized (tunnel) {
+            while (true) {
+                int budget = tunnel.sndWnd - (int) (tunnel.mySequenceNum - tunnel.sndUna);
+                if (!tunnel.downActive
+                        || (budget > 0 && tunnel.networkToDeviceQueue.remainingCapacity() >= QUEUE_LOW_WATER)) {
+                    return Math.max(budget, 1);
+                }
+                // 队列腾出空间时没有通知，超时后重新检查
+                tunnel.wait(10);
+            }
+        }
+    }
+
     private static class DownStreamWorker implements Runnable {
         TcpTunnel tunnel;
 
@@ -367,13 +443,16 @@ public class BioTcpHandler implements Runnable {
 
         @Override
         public void run() {
-            ByteBuffer buffer = ByteBuffer.allocate(4 * 1024);
+            // 一次最多读取 64 KB，再按 MSS 切分
+            ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
 
             String quitType = "rst";
 
             try {
                 while (true) {
+                    int budget = waitSendWindow(tunnel);
                     buffer.clear();
+                    buffer.limit(Math.min(budget, buffer.capacity()));
                     if (tunnel.destSocket == null) {
                         throw new ProxyException("tunnel maybe closed");
                     }
@@ -386,9 +465,11 @@ public class BioTcpHandler implements Runnable {
                         } else {
                             if (tunnel.tcbStatus != TCBStatus.CLOSE_WAIT) {
                                 buffer.flip();
-                                byte[] data = new byte[buffer.remaining()];
-                                buffer.get(data);
-                                sendTcpPack(tunnel, (byte) (TCPHeader.ACK), data);
+                                while (buffer.hasRemaining()) {
+                                    byte[] data = new byte[Math.min(buffer.remaining(), tunnel.sndMss)];
+                                    buffer.get(data);
+                                    sendTcpPack(tunnel, (byte) (TCPHeader.ACK), data);
+                                }
                             }
                         }
                     }
@@ -420,10 +501,12 @@ public class BioTcpHandler implements Runnable {
 
     private TcpTunnel initTunnel(Packet packet) {
         TcpTunnel tunnel = new TcpTunnel();
-        tunnel.sourceAddress = new InetSocketAddress(packet.ip4Header.sourceAddress, packet.tcpHeader.sourcePort);
-        tunnel.destinationAddress = new InetSocketAddress(packet.ip4Header.destinationAddress, packet.tcpHeader.destinationPort);
+        PacketView view = packet.view(new PacketView());
+        tunnel.sourceAddress = new InetSocketAddress(PacketView.toInetAddress(view.sourceAddress()), view.sourcePort());
+        tunnel.destinationAddress = new InetSocketAddress(PacketView.toInetAddress(view.destinationAddress()), view.destinationPort());
         tunnel.vpnService = vpnService;
         tunnel.networkToDeviceQueue = networkToDeviceQueue;
+        tunnel.bufferPool = bufferPool;
         tunnel.tunnelCloseMsgQueue = tunnelCloseMsgQueue;
         Thread t = new Thread(new UpStreamWorker(tunnel));
         t.start();
@@ -431,7 +514,7 @@ public class BioTcpHandler implements Runnable {
         return tunnel;
     }
 
-    public BlockingQueue<String> tunnelCloseMsgQueue = new ArrayBlockingQueue<>(1024);
+    public BlockingQueue<Long> tunnelCloseMsgQueue = new ArrayBlockingQueue<>(1024);
 
     @Override
     public void run() {
@@ -439,32 +522,29 @@ public class BioTcpHandler implements Runnable {
         while (true) {
             try {
                 Packet currentPacket = queue.take();
-                InetAddress destinationAddress = currentPacket.ip4Header.destinationAddress;
-                TCPHeader tcpHeader = currentPacket.tcpHeader;
-                //Log.d(TAG, String.format("get pack %d tcp " + tcpHeader.printSimple() + " ", currentPacket.packId));
-                int destinationPort = tcpHeader.destinationPort;
-                int sourcePort = tcpHeader.sourcePort;
-                String ipAndPort = destinationAddress.getHostAddress() + ":" +
-                        destinationPort + ":" + sourcePort;
+                //Log.d(TAG, String.format("get pack %d tcp %s", currentPacket.packId, currentPacket.view(new PacketView())));
+                long key = currentPacket.flowKey;
                 //
                 while (true) {
-                    String s = this.tunnelCloseMsgQueue.poll();
-                    if (s == null) {
+                    Long closed = this.tunnelCloseMsgQueue.poll();
+                    if (closed == null) {
                         break;
                     } else {
-                        tunnels.remove(ipAndPort);
-                        Log.i(TAG, String.format("remove tunnel %s", ipAndPort));
+                        tunnels.remove(closed);
+                        Log.i(TAG, String.format("remove tunnel %s", FlowKey.toString(closed)));
                     }
                 }
                 //
-                if (!tunnels.containsKey(ipAndPort)) {
-                    TcpTunnel tcpTunnel = initTunnel(currentPacket);
-                    tcpTunnel.tunnelKey = ipAndPort;
-                    tunnels.put(ipAndPort, tcpTunnel);
+                TcpTunnel tcpTunnel = tunnels.get(key);
+                if (tcpTunnel == null) {
+                    tcpTunnel = initTunnel(currentPacket);
+                    tcpTunnel.tunnelKey = key;
+                    tunnels.put(key, tcpTunnel);
                 }
-                TcpTunnel tcpTunnel = tunnels.get(ipAndPort);
                 //
-                tcpTunnel.tunnelInputQueue.offer(currentPacket);
+                if (!tcpTunnel.tunnelInputQueue.offer(currentPacket)) {
+                    bufferPool.release(currentPacket.backingBuffer);
+                }
             } catch (Exception e) {
                 e.printStackTrace();
             }
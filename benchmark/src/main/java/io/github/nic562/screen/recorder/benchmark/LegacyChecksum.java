@@ -0,0 +1,69 @@
+package io.github.nic562.screen.recorder.benchmark;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * Copy of the checksum code Packet used before {@code Checksum} existed, kept as the baseline:
+ * duplicates the buffer, wraps the address arrays and sums one {@code getShort()} at a time.
+ */
+final class LegacyChecksum {
+
+    private LegacyChecksum() {
+
+    }
+
+    static int ip4(ByteBuffer backingBuffer, int headerLength) {
+        ByteBuffer buffer = backingBuffer.duplicate();
+        buffer.position(0);
+
+        // Clear previous checksum
+        buffer.putShort(10, (short) 0);
+
+        int ipLength = headerLength;
+        int sum = 0;
+        while (ipLength > 0) {
+            sum += buffer.getShort() & 0xFFFF;
+            ipLength -= 2;
+        }
+        while (sum >> 16 > 0)
+            sum = (sum & 0xFFFF) + (sum >> 16);
+
+        sum = ~sum;
+        backingBuffer.putShort(10, (short) sum);
+        return sum;
+    }
+
+    static int tcp(ByteBuffer backingBuffer, InetAddress sourceAddress, InetAddress destinationAddress, int tcpLength) {
+        int sum;
+
+        // Calculate pseudo-header checksum
+        ByteBuffer buffer = ByteBuffer.wrap(sourceAddress.getAddress());
+        sum = (buffer.getShort() & 0xFFFF) + (buffer.getShort() & 0xFFFF);
+
+        buffer = ByteBuffer.wrap(destinationAddress.getAddress());
+        sum += (buffer.getShort() & 0xFFFF) + (buffer.getShort() & 0xFFFF);
+
+        sum += 6 + tcpLength;
+
+        buffer = backingBuffer.duplicate();
+        // Clear previous checksum
+        buffer.putShort(20 + 16, (short) 0);
+
+        // Calculate TCP segment checksum
+        buffer.position(20);
+        while (tcpLength > 1) {
+            sum += buffer.getShort() & 0xFFFF;
+            tcpLength -= 2;
+        }
+        if (tcpLength > 0)
+            sum += (buffer.get() & 0xFF) << 8;
+
+        while (sum >> 16 > 0)
+            sum = (sum & 0xFFFF) + (sum >> 16);
+
+        sum = ~sum;
+        backingBuffer.putShort(20 + 16, (short) sum);
+        return sum;
+    }
+}
@@ -0,0 +1,33 @@
+package io.github.nic562.screen.recorder.benchmark;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Copy of the ObjAttrUtil NioSingleThreadTcpHandler used before per-channel state moved to the
+ * {@code SelectionKey} attachment, kept as the baseline for {@link ChannelStateBenchmark}.
+ */
+final class LegacyObjAttrUtil {
+    private Map<Object, Map<String, Object>> objAttrs = new HashMap<>();
+
+    synchronized Object getAttr(Object obj, String k) {
+        Map<String, Object> map = objAttrs.get(obj);
+        if (map == null) {
+            return null;
+        }
+        return map.get(k);
+    }
+
+    synchronized void setAttr(Object obj, String k, Object value) {
+        Map<String, Object> map = objAttrs.get(obj);
+        if (map == null) {
+            objAttrs.put(obj, new HashMap<String, Object>());
+            map = objAttrs.get(obj);
+        }
+        map.put(k, value);
+    }
+
+    synchronized int size() {
+        return objAttrs.size();
+    }
+}
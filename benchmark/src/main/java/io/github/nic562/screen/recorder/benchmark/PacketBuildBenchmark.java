@@ -0,0 +1,72 @@
+package io.github.nic562.screen.recorder.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import io.github.nic562.screen.recorder.tools.protocol.ByteBufferPool;
+import io.github.nic562.screen.recorder.tools.protocol.Packet;
+
+/**
+ * Outgoing segment construction as done by sendTcpPack: {@link Packet#buildTcpPacket} followed by
+ * {@link Packet#updateTCPBuffer}, into a fresh heap buffer or a pooled direct one.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PacketBuildBenchmark {
+
+    @Param({"0", "1460", "4096"})
+    public int payloadSize;
+
+    private InetSocketAddress source;
+    private InetSocketAddress destination;
+    private byte[] payload;
+    private final ByteBufferPool bufferPool = new ByteBufferPool();
+    private long seq;
+
+    @Setup
+    public void setup() {
+        source = new InetSocketAddress(Packets.address(0x5DB8D822), 443);
+        destination = new InetSocketAddress(Packets.address(0x0A000102), 40000);
+        payload = new byte[payloadSize];
+    }
+
+    private ByteBuffer build(ByteBuffer buffer) {
+        byte flags = (byte) Packet.TCPHeader.ACK;
+        seq += payloadSize;
+        Packet packet = Packet.buildTcpPacket(source, destination, flags, 1, seq, (int) seq);
+        buffer.position(Packets.TCP_HEADER_SIZE);
+        buffer.put(payload);
+        packet.updateTCPBuffer(buffer, flags, seq, 1, payloadSize);
+        buffer.position(Packets.TCP_HEADER_SIZE + payloadSize);
+        return buffer;
+    }
+
+    @Benchmark
+    public ByteBuffer heapBuffer() {
+        return build(ByteBuffer.allocate(Packet.DEF_BUFFER_SIZE));
+    }
+
+    @Benchmark
+    public ByteBuffer pooledBuffer() {
+        ByteBuffer buffer = build(bufferPool.acquire(Packets.TCP_HEADER_SIZE + payloadSize));
+        bufferPool.release(buffer);
+        return buffer;
+    }
+}
@@ -0,0 +1,84 @@
+package io.github.nic562.screen.recorder.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import io.github.nic562.screen.recorder.tools.protocol.Packet;
+import io.github.nic562.screen.recorder.tools.protocol.PacketView;
+
+/**
+ * Per-packet parse done by TunnelThread and the TCP handler: reading the flow fields
+ * through the header objects versus the {@link PacketView} flyweight.
+ * Run with {@code -prof gc} to see the allocation rate of each path.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PacketParseBenchmark {
+
+    @Param({"0", "1460"})
+    public int payloadSize;
+
+    private ByteBuffer buffer;
+    private final PacketView view = new PacketView();
+
+    @Setup
+    public void setup() {
+        buffer = Packets.tcp(0x5DB8D822, 443, 40000, (byte) Packet.TCPHeader.ACK, payloadSize);
+    }
+
+    @Benchmark
+    public void headerObjects(Blackhole bh) {
+        buffer.position(0);
+        Packet packet = new Packet(buffer);
+        Packet.IP4Header ip4Header = packet.getIp4Header();
+        Packet.TCPHeader tcpHeader = packet.getTcpHeader();
+        bh.consume(ip4Header.destinationAddress);
+        bh.consume(tcpHeader.destinationPort);
+        bh.consume(tcpHeader.sourcePort);
+        bh.consume(tcpHeader.sequenceNumber);
+        bh.consume(tcpHeader.flags);
+        bh.consume(packet.backingBuffer.remaining());
+    }
+
+    @Benchmark
+    public void packetView(Blackhole bh) {
+        buffer.position(0);
+        Packet packet = new Packet(buffer, view);
+        PacketView v = packet.view(view);
+        bh.consume(v.destinationAddress());
+        bh.consume(v.destinationPort());
+        bh.consume(v.sourcePort());
+        bh.consume(v.sequenceNumber());
+        bh.consume(v.tcpFlags());
+        bh.consume(packet.backingBuffer.remaining());
+    }
+
+    @Benchmark
+    public void reusedView(Blackhole bh) {
+        buffer.position(0);
+        PacketView v = view.wrap(buffer);
+        bh.consume(v.destinationAddress());
+        bh.consume(v.destinationPort());
+        bh.consume(v.sourcePort());
+        bh.consume(v.sequenceNumber());
+        bh.consume(v.tcpFlags());
+        bh.consume(v.payloadSize());
+    }
+}
@@ -0,0 +1,54 @@
+package io.github.nic562.screen.recorder.benchmark;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+
+import io.github.nic562.screen.recorder.tools.protocol.Packet;
+
+/**
+ * Builds the device-side packets the benchmarks feed to the code under test.
+ */
+final class Packets {
+    static final int TCP_HEADER_SIZE = Packet.IP4_HEADER_SIZE + Packet.TCP_HEADER_SIZE;
+
+    private Packets() {
+
+    }
+
+    /**
+     * A TCP segment from the tun device (10.0.1.2:sourcePort) to destination:destinationPort,
+     * flipped and ready to be read like a buffer filled by TunnelThread.
+     */
+    static ByteBuffer tcp(int destination, int destinationPort, int sourcePort, byte flags, int payloadSize) {
+        return tcp(destination, destinationPort, sourcePort, flags, 1, 1, payloadSize);
+    }
+
+    static ByteBuffer tcp(int destination, int destinationPort, int sourcePort, byte flags,
+                          long sequenceNum, long ackNum, int payloadSize) {
+        InetSocketAddress source = new InetSocketAddress(address(0x0A000102), sourcePort);
+        InetSocketAddress dest = new InetSocketAddress(address(destination), destinationPort);
+        Packet packet = Packet.buildTcpPacket(source, dest, flags, ackNum, sequenceNum, 1);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(TCP_HEADER_SIZE + payloadSize);
+        buffer.position(TCP_HEADER_SIZE);
+        for (int i = 0; i < payloadSize; i++) {
+            buffer.put((byte) i);
+        }
+        packet.updateTCPBuffer(buffer, flags, sequenceNum, ackNum, payloadSize);
+        buffer.position(0);
+        buffer.limit(TCP_HEADER_SIZE + payloadSize);
+        return buffer;
+    }
+
+    static InetAddress address(int address) {
+        byte[] bytes = {
+                (byte) (address >>> 24), (byte) (address >>> 16), (byte) (address >>> 8), (byte) address
+        };
+        try {
+            return InetAddress.getByAddress(bytes);
+        } catch (UnknownHostException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+}
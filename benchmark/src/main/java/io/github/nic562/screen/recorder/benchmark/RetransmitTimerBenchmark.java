@@ -0,0 +1,108 @@
+package io.github.nic562.screen.recorder.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+
+import io.github.nic562.screen.recorder.tools.bio.HashedTimingWheel;
+
+/**
+ * What one ACK costs the retransmission timer of NioSingleThreadTcpHandler: every connection has
+ * a pending timer, an ACK re-arms the timer of one of them and the clock moves on by a tick.
+ * <p>
+ * The shared HashedTimingWheel is compared with a {@code PriorityQueue} of deadlines, the obvious
+ * alternative, whose {@code remove(Object)} on re-arm is linear in the number of connections.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RetransmitTimerBenchmark {
+    private static final long TICK_MS = 10;
+    private static final long RTO_MS = 200;
+
+    static class WheelTimer extends HashedTimingWheel.Timeout {
+        int fired;
+
+        @Override
+        protected void expire() {
+            fired++;
+        }
+    }
+
+    static class HeapTimer implements Comparable<HeapTimer> {
+        long deadline;
+
+        @Override
+        public int compareTo(HeapTimer o) {
+            return Long.compare(deadline, o.deadline);
+        }
+    }
+
+    @Param({"100", "10000"})
+    public int connections;
+
+    private HashedTimingWheel wheel;
+    private WheelTimer[] wheelTimers;
+    private PriorityQueue<HeapTimer> heap;
+    private HeapTimer[] heapTimers;
+    private long wheelNow;
+    private long heapNow;
+    private int next;
+
+    @Setup
+    public void setup() {
+        wheel = new HashedTimingWheel(TICK_MS, 512, 0);
+        wheelTimers = new WheelTimer[connections];
+        heap = new PriorityQueue<>(connections);
+        heapTimers = new HeapTimer[connections];
+        for (int i = 0; i < connections; i++) {
+            wheelTimers[i] = new WheelTimer();
+            wheel.schedule(wheelTimers[i], RTO_MS, 0);
+            heapTimers[i] = new HeapTimer();
+            heapTimers[i].deadline = RTO_MS;
+            heap.add(heapTimers[i]);
+        }
+    }
+
+    private int nextConnection() {
+        int i = next;
+        next = i + 1 == connections ? 0 : i + 1;
+        return i;
+    }
+
+    @Benchmark
+    public int timingWheel() {
+        wheelNow += 1;
+        wheel.schedule(wheelTimers[nextConnection()], RTO_MS, wheelNow);
+        return wheel.advance(wheelNow);
+    }
+
+    @Benchmark
+    public int priorityQueue() {
+        heapNow += 1;
+        HeapTimer timer = heapTimers[nextConnection()];
+        heap.remove(timer);
+        timer.deadline = heapNow + RTO_MS;
+        heap.add(timer);
+        int fired = 0;
+        while (heap.peek().deadline <= heapNow) {
+            heap.poll();
+            fired++;
+        }
+        return fired;
+    }
+}
@@ -0,0 +1,158 @@
+package io.github.nic562.screen.recorder.benchmark;
+
+import android.net.VpnService;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import io.github.nic562.screen.recorder.tools.bio.ShardedNioTcpHandler;
+import io.github.nic562.screen.recorder.tools.protocol.ByteBufferPool;
+import io.github.nic562.screen.recorder.tools.protocol.Packet;
+import io.github.nic562.screen.recorder.tools.protocol.PacketView;
+
+/**
+ * Many flows through ShardedNioTcpHandler to a loopback echo server: each operation sends one data
+ * segment on every flow and waits until all of them have been echoed back.
+ * <p>
+ * With one shard every flow is served by the same selector thread; with more shards the flows are
+ * spread over as many threads and the round should finish sooner on a multi-core machine.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ShardedTcpThroughputBenchmark {
+    private static final int LOOPBACK = 0x7F000001;
+    private static final int FIRST_SOURCE_PORT = 40000;
+
+    @Param({"1", "4"})
+    public int shards;
+
+    @Param({"16"})
+    public int flows;
+
+    @Param({"1024"})
+    public int payloadSize;
+
+    private ServerSocket server;
+    private Thread handlerThread;
+    private ShardedNioTcpHandler handler;
+    private final BlockingQueue<ByteBuffer> networkToDeviceQueue = new ArrayBlockingQueue<>(4096);
+    private final ByteBufferPool bufferPool = new ByteBufferPool();
+    private long[] mySeq;
+    private long[] theirSeq;
+
+    @Setup
+    public void setup() throws Exception {
+        server = new ServerSocket(0, flows, InetAddress.getLoopbackAddress());
+        Thread acceptThread = new Thread(this::accept, "accept");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+
+        handler = new ShardedNioTcpHandler(shards, 1000, networkToDeviceQueue, new VpnService(), bufferPool);
+        handlerThread = new Thread(handler, "tcp-handler");
+        handlerThread.setDaemon(true);
+        handlerThread.start();
+
+        mySeq = new long[flows];
+        theirSeq = new long[flows];
+        for (int i = 0; i < flows; i++) {
+            mySeq[i] = 1000;
+            offer(i, Packet.TCPHeader.SYN, 0);
+            mySeq[i] += 1;
+            ByteBuffer synAck = networkToDeviceQueue.take();
+            theirSeq[i] = new PacketView(synAck).sequenceNumber() + 1;
+            bufferPool.release(synAck);
+            offer(i, Packet.TCPHeader.ACK, 0);
+        }
+        // let the connects complete before timing anything
+        Thread.sleep(200);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        handlerThread.interrupt();
+        server.close();
+    }
+
+    private void accept() {
+        try {
+            while (true) {
+                Socket socket = server.accept();
+                Thread echo = new Thread(() -> echo(socket), "echo");
+                echo.setDaemon(true);
+                echo.start();
+            }
+        } catch (IOException e) {
+            // server closed at tear down
+        }
+    }
+
+    private static void echo(Socket socket) {
+        try (Socket s = socket) {
+            s.setTcpNoDelay(true);
+            InputStream in = s.getInputStream();
+            OutputStream out = s.getOutputStream();
+            byte[] buffer = new byte[Packet.DEF_BUFFER_SIZE];
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                out.write(buffer, 0, n);
+            }
+        } catch (IOException e) {
+            // server closed at tear down
+        }
+    }
+
+    private void offer(int flow, int flags, int size) {
+        ByteBuffer buffer = Packets.tcp(LOOPBACK, server.getLocalPort(), FIRST_SOURCE_PORT + flow, (byte) flags,
+                mySeq[flow], theirSeq[flow], size);
+        if (!handler.offer(new Packet(buffer))) {
+            throw new IllegalStateException("tcp queue full");
+        }
+    }
+
+    @Benchmark
+    public int echoRound() throws InterruptedException {
+        for (int i = 0; i < flows; i++) {
+            offer(i, Packet.TCPHeader.ACK | Packet.TCPHeader.PSH, payloadSize);
+            mySeq[i] += payloadSize;
+        }
+        int expected = flows * payloadSize;
+        int received = 0;
+        while (received < expected) {
+            ByteBuffer buffer = networkToDeviceQueue.take();
+            PacketView view = new PacketView(buffer);
+            int size = view.payloadSize();
+            if (size > 0) {
+                int flow = view.destinationPort() - FIRST_SOURCE_PORT;
+                received += size;
+                theirSeq[flow] = view.sequenceNumber() + size;
+            }
+            bufferPool.release(buffer);
+        }
+        return received;
+    }
+}
@@ -0,0 +1,147 @@
+package io.github.nic562.screen.recorder.benchmark;
+
+import android.net.VpnService;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import io.github.nic562.screen.recorder.tools.bio.NioSingleThreadTcpHandler;
+import io.github.nic562.screen.recorder.tools.protocol.ByteBufferPool;
+import io.github.nic562.screen.recorder.tools.protocol.Packet;
+import io.github.nic562.screen.recorder.tools.protocol.PacketView;
+
+/**
+ * Round trip through NioSingleThreadTcpHandler to a loopback echo server: a data segment is offered
+ * as TunnelThread would, and the time is taken when the echoed bytes come back on the
+ * network-to-device queue.
+ * <p>
+ * The CPU time the handler thread burns while the connection sits idle for one second is printed at
+ * setup, it should be close to zero now that the loop blocks in {@code select()}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TcpEchoLatencyBenchmark {
+    private static final int LOOPBACK = 0x7F000001;
+    private static final int SOURCE_PORT = 40000;
+
+    @Param({"64", "1024"})
+    public int payloadSize;
+
+    private ServerSocket server;
+    private Thread echoThread;
+    private Thread handlerThread;
+    private NioSingleThreadTcpHandler handler;
+    private final BlockingQueue<ByteBuffer> networkToDeviceQueue = new ArrayBlockingQueue<>(1000);
+    private final ByteBufferPool bufferPool = new ByteBufferPool();
+    private long mySeq = 1000;
+    private long theirSeq;
+
+    @Setup
+    public void setup() throws Exception {
+        server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        echoThread = new Thread(this::echo, "echo");
+        echoThread.setDaemon(true);
+        echoThread.start();
+
+        handler = new NioSingleThreadTcpHandler(new ArrayBlockingQueue<>(1000), networkToDeviceQueue,
+                new VpnService(), bufferPool);
+        handlerThread = new Thread(handler, "tcp-handler");
+        handlerThread.setDaemon(true);
+        handlerThread.start();
+
+        offer(Packet.TCPHeader.SYN, 0);
+        mySeq += 1;
+        ByteBuffer synAck = take();
+        theirSeq = new PacketView(synAck).sequenceNumber() + 1;
+        bufferPool.release(synAck);
+        offer(Packet.TCPHeader.ACK, 0);
+        // let the connect complete before timing anything
+        Thread.sleep(200);
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        long cpu = threads.getThreadCpuTime(handlerThread.getId());
+        Thread.sleep(1000);
+        cpu = threads.getThreadCpuTime(handlerThread.getId()) - cpu;
+        System.out.printf("handler thread idle CPU: %.3f ms per second%n", cpu / 1e6);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        handlerThread.interrupt();
+        server.close();
+    }
+
+    private void echo() {
+        try (Socket socket = server.accept()) {
+            socket.setTcpNoDelay(true);
+            InputStream in = socket.getInputStream();
+            OutputStream out = socket.getOutputStream();
+            byte[] buffer = new byte[Packet.DEF_BUFFER_SIZE];
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                out.write(buffer, 0, n);
+            }
+        } catch (IOException e) {
+            // server closed at tear down
+        }
+    }
+
+    private void offer(int flags, int size) {
+        ByteBuffer buffer = Packets.tcp(LOOPBACK, server.getLocalPort(), SOURCE_PORT, (byte) flags,
+                mySeq, theirSeq, size);
+        if (!handler.offer(new Packet(buffer))) {
+            throw new IllegalStateException("tcp queue full");
+        }
+    }
+
+    private ByteBuffer take() throws InterruptedException {
+        // queued buffers are already flipped, ready to be written to the tun device
+        return networkToDeviceQueue.take();
+    }
+
+    @Benchmark
+    public int roundTrip() throws InterruptedException {
+        // the ack of what came back so far rides on the next data segment
+        offer(Packet.TCPHeader.ACK | Packet.TCPHeader.PSH, payloadSize);
+        mySeq += payloadSize;
+        int received = 0;
+        while (received < payloadSize) {
+            ByteBuffer buffer = take();
+            PacketView view = new PacketView(buffer);
+            int size = view.payloadSize();
+            if (size > 0) {
+                received += size;
+                theirSeq = view.sequenceNumber() + size;
+            }
+            bufferPool.release(buffer);
+        }
+        return received;
+    }
+}
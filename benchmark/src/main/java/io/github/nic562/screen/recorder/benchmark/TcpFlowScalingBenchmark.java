@@ -0,0 +1,200 @@
+package io.github.nic562.screen.recorder.benchmark;
+
+import android.net.VpnService;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import io.github.nic562.screen.recorder.tools.bio.ProxyEngines;
+import io.github.nic562.screen.recorder.tools.bio.TcpHandler;
+import io.github.nic562.screen.recorder.tools.protocol.ByteBufferPool;
+import io.github.nic562.screen.recorder.tools.protocol.Packet;
+import io.github.nic562.screen.recorder.tools.protocol.PacketView;
+
+/**
+ * Many concurrent flows through the thread-per-connection LegacyBioTcpHandler and through the TCP
+ * handler of each {@link ProxyEngines} engine, which replaced it.
+ * <p>
+ * Setup opens {@code flows} connections to a single-threaded loopback echo server and prints how many
+ * threads and how much heap the handler added; the legacy handler needs two threads per flow. Each
+ * operation then sends one data segment on every flow and waits for all echoes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TcpFlowScalingBenchmark {
+    private static final int LOOPBACK = 0x7F000001;
+    private static final int FIRST_SOURCE_PORT = 20000;
+
+    @Param({"bio", "nio", "sharded_nio"})
+    public String handler;
+
+    @Param({"500"})
+    public int flows;
+
+    @Param({"256"})
+    public int payloadSize;
+
+    private ServerSocketChannel server;
+    private Thread echoThread;
+    private Thread handlerThread;
+    private final BlockingQueue<Packet> deviceToNetworkQueue = new ArrayBlockingQueue<>(4096);
+    private final BlockingQueue<ByteBuffer> networkToDeviceQueue = new ArrayBlockingQueue<>(4096);
+    private final ByteBufferPool bufferPool = new ByteBufferPool();
+    private TcpHandler engineHandler;
+    private long[] mySeq;
+    private long[] theirSeq;
+
+    @Setup
+    public void setup() throws Exception {
+        server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), flows);
+        echoThread = new Thread(this::echo, "echo");
+        echoThread.setDaemon(true);
+        echoThread.start();
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        System.gc();
+        int threadsBefore = threads.getThreadCount();
+        long heapBefore = memory.getHeapMemoryUsage().getUsed();
+
+        Runnable runnable;
+        if ("bio".equals(handler)) {
+            runnable = new LegacyBioTcpHandler(deviceToNetworkQueue, networkToDeviceQueue, new VpnService(), bufferPool);
+        } else {
+            engineHandler = ProxyEngines.byName(handler).createTcpHandler(networkToDeviceQueue, new VpnService(), bufferPool);
+            runnable = engineHandler;
+        }
+        handlerThread = new Thread(runnable, "tcp-handler");
+        handlerThread.setDaemon(true);
+        handlerThread.start();
+
+        mySeq = new long[flows];
+        theirSeq = new long[flows];
+        for (int i = 0; i < flows; i++) {
+            mySeq[i] = 1000;
+            offer(i, Packet.TCPHeader.SYN, 0);
+            mySeq[i] += 1;
+            ByteBuffer synAck = networkToDeviceQueue.take();
+            theirSeq[i] = new PacketView(synAck).sequenceNumber() + 1;
+            bufferPool.release(synAck);
+            offer(i, Packet.TCPHeader.ACK, 0);
+        }
+        // one round so that every flow is connected and has its buffers allocated
+        echoRound();
+
+        System.gc();
+        System.out.printf("%s, %d flows: +%d threads, +%d KB heap%n", handler, flows,
+                threads.getThreadCount() - threadsBefore,
+                (memory.getHeapMemoryUsage().getUsed() - heapBefore) / 1024);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        // the legacy handler never returns from run(), its workers die with the fork
+        handlerThread.interrupt();
+        echoThread.interrupt();
+        server.close();
+    }
+
+    private void echo() {
+        ByteBuffer buffer = ByteBuffer.allocate(Packet.DEF_BUFFER_SIZE);
+        try (Selector selector = Selector.open()) {
+            server.configureBlocking(false);
+            server.register(selector, SelectionKey.OP_ACCEPT);
+            while (!Thread.currentThread().isInterrupted()) {
+                selector.select();
+                for (Iterator<SelectionKey> it = selector.selectedKeys().iterator(); it.hasNext(); ) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    if (key.isAcceptable()) {
+                        SocketChannel channel = server.accept();
+                        if (channel != null) {
+                            channel.configureBlocking(false);
+                            channel.register(selector, SelectionKey.OP_READ);
+                        }
+                    } else if (key.isReadable()) {
+                        SocketChannel channel = (SocketChannel) key.channel();
+                        buffer.clear();
+                        if (channel.read(buffer) < 0) {
+                            channel.close();
+                            continue;
+                        }
+                        buffer.flip();
+                        // the payloads are small, the socket buffer always takes them
+                        while (buffer.hasRemaining()) {
+                            channel.write(buffer);
+                        }
+                    }
+                }
+            }
+        } catch (IOException e) {
+            // server closed at tear down
+        }
+    }
+
+    private void offer(int flow, int flags, int size) throws InterruptedException {
+        ByteBuffer buffer = Packets.tcp(LOOPBACK, server.socket().getLocalPort(), FIRST_SOURCE_PORT + flow,
+                (byte) flags, mySeq[flow], theirSeq[flow], size);
+        Packet packet = new Packet(buffer);
+        if (engineHandler != null) {
+            if (!engineHandler.offer(packet)) {
+                throw new IllegalStateException("tcp queue full");
+            }
+        } else {
+            deviceToNetworkQueue.put(packet);
+        }
+    }
+
+    @Benchmark
+    public int echoRound() throws InterruptedException {
+        for (int i = 0; i < flows; i++) {
+            offer(i, Packet.TCPHeader.ACK | Packet.TCPHeader.PSH, payloadSize);
+            mySeq[i] += payloadSize;
+        }
+        int expected = flows * payloadSize;
+        int received = 0;
+        while (received < expected) {
+            ByteBuffer buffer = networkToDeviceQueue.take();
+            PacketView view = new PacketView(buffer);
+            int size = view.payloadSize();
+            if (size > 0) {
+                int flow = view.destinationPort() - FIRST_SOURCE_PORT;
+                received += size;
+                theirSeq[flow] = view.sequenceNumber() + size;
+            }
+            bufferPool.release(buffer);
+        }
+        return received;
+    }
+}
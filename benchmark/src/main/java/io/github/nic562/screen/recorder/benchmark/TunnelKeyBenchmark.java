@@ -0,0 +1,95 @@
+package io.github.nic562.screen.recorder.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import io.github.nic562.screen.recorder.tools.bio.LongObjectMap;
+import io.github.nic562.screen.recorder.tools.protocol.FlowKey;
+import io.github.nic562.screen.recorder.tools.protocol.Packet;
+import io.github.nic562.screen.recorder.tools.protocol.PacketView;
+
+/**
+ * Flow lookup done for every TCP packet by NioSingleThreadTcpHandler.handleReadFromVpn:
+ * build the key of the packet and find its pipe among {@code flows} open pipes.
+ * <p>
+ * The string variants are the former "ip:dstPort:srcPort" keys, {@link #longKey()} is the
+ * {@link FlowKey} lookup the handlers use now.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TunnelKeyBenchmark {
+
+    @Param({"16", "1024", "8192"})
+    public int flows;
+
+    private PacketView[] packets;
+    private final Map<String, Object> pipes = new HashMap<>();
+    private final LongObjectMap<Object> longPipes = new LongObjectMap<>();
+    private int next;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        packets = new PacketView[flows];
+        for (int i = 0; i < flows; i++) {
+            int destination = 0x5DB80000 | random.nextInt(0xFFFF);
+            int sourcePort = 10000 + i;
+            ByteBuffer buffer = Packets.tcp(destination, 443, sourcePort, (byte) Packet.TCPHeader.ACK, 0);
+            packets[i] = new PacketView(buffer);
+            Object pipe = new Object();
+            pipes.put(stringKey(packets[i]), pipe);
+            longPipes.put(FlowKey.of(packets[i]), pipe);
+        }
+    }
+
+    private static String stringKey(PacketView view) {
+        return PacketView.addressToString(view.destinationAddress()) + ":" +
+                view.destinationPort() + ":" + view.sourcePort();
+    }
+
+    private PacketView nextPacket() {
+        PacketView view = packets[next];
+        next = next + 1 == flows ? 0 : next + 1;
+        return view;
+    }
+
+    /**
+     * The key as originally built, through InetAddress.getHostAddress().
+     */
+    @Benchmark
+    public Object inetAddressStringKey() {
+        PacketView view = nextPacket();
+        String key = PacketView.toInetAddress(view.destinationAddress()).getHostAddress() + ":" +
+                view.destinationPort() + ":" + view.sourcePort();
+        return pipes.get(key);
+    }
+
+    @Benchmark
+    public Object stringKey() {
+        return pipes.get(stringKey(nextPacket()));
+    }
+
+    @Benchmark
+    public Object longKey() {
+        return longPipes.get(FlowKey.of(nextPacket()));
+    }
+}
@@ -0,0 +1,23 @@
+package android.net;
+
+import java.net.DatagramSocket;
+import java.net.Socket;
+
+/**
+ * JVM stand-in for android.net.VpnService: there is no tun interface off-device,
+ * so sockets never need protecting.
+ */
+public class VpnService {
+
+    public boolean protect(int socket) {
+        return true;
+    }
+
+    public boolean protect(Socket socket) {
+        return true;
+    }
+
+    public boolean protect(DatagramSocket socket) {
+        return true;
+    }
+}
@@ -0,0 +1,20 @@
+package android.os;
+
+/**
+ * JVM stand-in for android.os.Build, reports the app's target SDK.
+ */
+public final class Build {
+
+    private Build() {
+
+    }
+
+    public static final class VERSION {
+        public static final int SDK_INT = 30;
+    }
+
+    public static final class VERSION_CODES {
+        public static final int N = 24;
+        public static final int Q = 29;
+    }
+}